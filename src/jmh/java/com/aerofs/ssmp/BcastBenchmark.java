@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import com.aerofs.ssmp.SSMPRequest.SubscriptionFlag;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.aerofs.ssmp.Loopback.id;
+
+/**
+ * BCAST from a sender sharing many topics with the same few recipients
+ *
+ * Total membership grows with the number of topics while the set of unique recipients stays
+ * the same, so the cost of de-duplication shows up as the topic count rises.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BcastBenchmark {
+    private static final int BATCH = 100;
+
+    @Param({ "1", "100", "500" })
+    public int topics;
+
+    @Param({ "20" })
+    public int recipients;
+
+    private SSMPServer _server;
+    private final List<SSMPClient> _clients = new ArrayList<>();
+    private final AtomicLong _received = new AtomicLong();
+    private SSMPClient _sender;
+    private List<SSMPRequest> _batch;
+
+    @Setup
+    public void setUp() throws Exception {
+        _server = Loopback.server();
+        _server.start();
+        int port = _server.getListeningPort();
+        _sender = Bench.connect(port, "sender", e -> {});
+        _clients.add(_sender);
+        for (int i = 0; i < recipients; ++i) {
+            _clients.add(Bench.connect(port, "r" + i, e -> _received.incrementAndGet()));
+        }
+        List<SSMPRequest> subscribe = new ArrayList<>();
+        for (int i = 0; i < topics; ++i) {
+            subscribe.add(SSMPRequest.subscribe(id("t" + i), SubscriptionFlag.NONE));
+        }
+        for (SSMPClient c : _clients) Bench.pipeline(c, subscribe);
+        _batch = Collections.nCopies(BATCH, SSMPRequest.bcast("hello"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        _clients.forEach(SSMPClient::disconnect);
+        _server.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void bcast() throws Exception {
+        Bench.pipeline(_sender, _batch);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.aerofs.ssmp.Loopback.id;
+
+/**
+ * Helpers shared by the benchmarks, on top of {@link Loopback}
+ */
+final class Bench {
+    private Bench() {}
+
+    /**
+     * @return a client connected to a loopback server, handing events to {@code h}
+     */
+    static SSMPClient connect(int port, String id, EventHandler h) throws Exception {
+        SSMPClient c = new SSMPClient("localhost", port, Loopback.TIMER, Loopback.CLIENTS,
+                () -> Loopback.ssl(true), h);
+        CountDownLatch l = new CountDownLatch(1);
+        c.connect(id(id), id("secret"), "pw", new SSMPClient.ConnectionListener() {
+            @Override public void connected() { l.countDown(); }
+            @Override public void disconnected() {}
+        });
+        if (!l.await(5, TimeUnit.SECONDS)) throw new IllegalStateException("connect " + id);
+        return c;
+    }
+
+    /**
+     * Send requests without waiting for responses, then wait for all of them
+     */
+    static void pipeline(SSMPClient c, List<SSMPRequest> requests) throws Exception {
+        List<Future<SSMPResponse>> l = new ArrayList<>(requests.size());
+        for (SSMPRequest r : requests) l.add(c.request(r));
+        for (Future<SSMPResponse> f : l) {
+            int code = f.get(30, TimeUnit.SECONDS).code;
+            if (code != SSMPResponse.OK) throw new IllegalStateException("code " + code);
+        }
+    }
+}
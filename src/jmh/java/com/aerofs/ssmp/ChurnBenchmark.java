@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import com.aerofs.ssmp.SSMPRequest.SubscriptionFlag;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.aerofs.ssmp.Loopback.id;
+
+/**
+ * SUBSCRIBE/UNSUBSCRIBE churn from many clients over a small set of shared topics, with and
+ * without sharding, see {@link SSMPServer#setShards}
+ *
+ * Every client pipelines its requests at once, so that the server sees them concurrently.
+ * Sharding is experimental: it has yet to beat the unsharded server here.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChurnBenchmark {
+    private static final int CLIENTS = 32;
+    private static final int TOPICS = 16;
+    private static final int REQUESTS = CLIENTS * TOPICS * 2;
+
+    @Param({ "0", "4" })
+    public int shards;
+
+    private SSMPServer _server;
+    private final List<SSMPClient> _clients = new ArrayList<>();
+    private final List<SSMPRequest> _churn = new ArrayList<>();
+
+    @Setup
+    public void setUp() throws Exception {
+        _server = Loopback.server();
+        _server.setShards(shards);
+        _server.start();
+        int port = _server.getListeningPort();
+        for (int i = 0; i < CLIENTS; ++i) _clients.add(Bench.connect(port, "c" + i, e -> {}));
+        for (int i = 0; i < TOPICS; ++i) {
+            _churn.add(SSMPRequest.subscribe(id("t" + i), SubscriptionFlag.NONE));
+            _churn.add(SSMPRequest.unsubscribe(id("t" + i)));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        _clients.forEach(SSMPClient::disconnect);
+        _server.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public void churn() throws Exception {
+        List<Future<SSMPResponse>> l = new ArrayList<>(REQUESTS);
+        for (SSMPRequest r : _churn) {
+            for (SSMPClient c : _clients) l.add(c.request(r));
+        }
+        for (Future<SSMPResponse> f : l) {
+            int code = f.get(30, TimeUnit.SECONDS).code;
+            if (code != SSMPResponse.OK) throw new IllegalStateException("code " + code);
+        }
+    }
+}
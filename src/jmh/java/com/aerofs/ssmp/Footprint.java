@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import com.aerofs.ssmp.SSMPRequest.SubscriptionFlag;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.aerofs.ssmp.Loopback.id;
+
+/**
+ * Retained heap per idle connection and per subscription, as seen from the server
+ *
+ * Clients run in a child JVM so that only server-side state shows up in the live heap of
+ * this one. Sizes include the Netty channel, pipeline and SSL engine.
+ *
+ * The parent tells the child to proceed with a line on its stdin, and the child reports each
+ * completed step with a UCAST to {@link #PARENT}, which leaves its stdout to actual output.
+ */
+public class Footprint {
+    private static final int TOPICS = 20;
+    private static final String PARENT = "footprint";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1 && args[0].equals("clients")) {
+            clients(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int status = 1;
+        try {
+            measure(n);
+            status = 0;
+        } finally {
+            // Netty workers are not daemon threads
+            System.exit(status);
+        }
+    }
+
+    private static void measure(int n) throws Exception {
+        SSMPServer server = Loopback.server();
+        server.start();
+        BlockingQueue<SSMPEvent> steps = new LinkedBlockingQueue<>();
+        SSMPClient parent = Bench.connect(server.getListeningPort(), PARENT, steps::add);
+        Process p = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "java", "-cp", System.getProperty("java.class.path"),
+                Footprint.class.getName(), "clients",
+                Integer.toString(server.getListeningPort()), Integer.toString(n))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        try {
+            PrintStream out = new PrintStream(p.getOutputStream(), true);
+
+            // a first client warms up lazily allocated server state
+            expect(steps, "warm");
+            long base = live();
+            out.println();
+            expect(steps, "connected");
+            long connected = live();
+            out.println();
+            expect(steps, "subscribed");
+            long subscribed = live();
+
+            System.out.println("retained bytes per idle connection: " + (connected - base) / n);
+            System.out.println("retained bytes per subscription: "
+                    + (subscribed - connected) / ((n + 1) * TOPICS));
+        } finally {
+            p.destroy();
+            parent.disconnect();
+            server.stop();
+        }
+    }
+
+    private static void expect(BlockingQueue<SSMPEvent> steps, String step) throws Exception {
+        SSMPEvent e = steps.poll(60, TimeUnit.SECONDS);
+        String s = e != null ? new String(e.payload, StandardCharsets.UTF_8) : null;
+        if (!step.equals(s)) throw new IllegalStateException("expected " + step + ": " + s);
+    }
+
+    private static long live() throws Exception {
+        // let in-flight handshakes and responses settle
+        Thread.sleep(500);
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Connects n clients, then subscribes every one of them to TOPICS shared topics, reporting
+     * each step to the parent and waiting for a line on stdin before the next one
+     */
+    private static void clients(int port, int n) throws Exception {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        List<SSMPClient> l = new ArrayList<>();
+        SSMPClient warmup = Bench.connect(port, "warmup", e -> {});
+        l.add(warmup);
+        done(warmup, "warm");
+        in.readLine();
+        for (int i = 0; i < n; ++i) l.add(Bench.connect(port, "c" + i, e -> {}));
+        done(warmup, "connected");
+        in.readLine();
+        List<SSMPRequest> subscribe = new ArrayList<>();
+        for (int t = 0; t < TOPICS; ++t) {
+            subscribe.add(SSMPRequest.subscribe(id("t" + t), SubscriptionFlag.NONE));
+        }
+        for (SSMPClient c : l) Bench.pipeline(c, subscribe);
+        done(warmup, "subscribed");
+        // exits when the parent goes away
+        in.readLine();
+        System.exit(0);
+    }
+
+    private static void done(SSMPClient c, String step) throws Exception {
+        Bench.pipeline(c, Collections.singletonList(SSMPRequest.ucast(id(PARENT), step)));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Swar} scanning versus a byte at a time, over a 64-byte identifier and a 1KB text
+ * payload, in heap and direct buffers
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanBenchmark {
+    @Param({ "false", "true" })
+    public boolean direct;
+
+    private ChannelBuffer _id;
+    private ChannelBuffer _payload;
+
+    @Setup
+    public void setUp() {
+        byte[] id = new byte[64];
+        for (int i = 0; i < id.length; ++i) id[i] = (byte)"abcXYZ019:@.-_".charAt(i % 14);
+        byte[] payload = new byte[1024];
+        Arrays.fill(payload, (byte)'x');
+        payload[payload.length - 1] = '\n';
+        _id = copy(id);
+        _payload = copy(payload);
+    }
+
+    private ChannelBuffer copy(byte[] b) {
+        ChannelBuffer c = direct ? ChannelBuffers.directBuffer(b.length)
+                : ChannelBuffers.buffer(b.length);
+        c.writeBytes(b);
+        return c;
+    }
+
+    @Benchmark
+    public int identifierSwar() {
+        return Swar.span(_id, 0, _id.writerIndex(), SSMPIdentifier.ALLOWED);
+    }
+
+    @Benchmark
+    public int identifierBytewise() {
+        int n = _id.writerIndex();
+        for (int i = 0; i < n; ++i) {
+            if (!SSMPIdentifier.ALLOWED.contains(_id.getByte(i))) return i;
+        }
+        return n;
+    }
+
+    @Benchmark
+    public int payloadSwar() {
+        return Swar.indexOf(_payload, 0, _payload.writerIndex(), (byte)'\n');
+    }
+
+    @Benchmark
+    public int payloadBytewise() {
+        return _payload.indexOf(0, _payload.writerIndex(), (byte)'\n');
+    }
+}
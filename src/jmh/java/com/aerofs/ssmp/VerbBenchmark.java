@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import com.google.common.collect.ImmutableMap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verb lookup through {@link VerbTable} versus the former copy into a String and map lookup
+ *
+ * Covers every request and event verb. The buffer holds the verb followed by the rest of a
+ * frame, as it does when the decoders look it up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VerbBenchmark {
+    @Param({ "LOGIN", "SUBSCRIBE", "UNSUBSCRIBE", "UCAST", "MCAST", "BCAST", "PING", "PONG",
+            "CLOSE", "NOACK", "PRESENCE", "NACK" })
+    public String verb;
+
+    private static final ImmutableMap<String, SSMPRequest.Type> REQUESTS;
+    private static final ImmutableMap<String, SSMPEvent.Type> EVENTS;
+    static {
+        ImmutableMap.Builder<String, SSMPRequest.Type> r = ImmutableMap.builder();
+        for (SSMPRequest.Type t : SSMPRequest.Type.values()) r.put(t.name(), t);
+        REQUESTS = r.build();
+        ImmutableMap.Builder<String, SSMPEvent.Type> e = ImmutableMap.builder();
+        for (SSMPEvent.Type t : SSMPEvent.Type.values()) e.put(t.name(), t);
+        EVENTS = e.build();
+    }
+
+    private ChannelBuffer _b;
+    private int _n;
+
+    @Setup
+    public void setUp() {
+        _b = ChannelBuffers.wrappedBuffer((verb + " some:topic payload\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        _n = verb.length();
+    }
+
+    @Benchmark
+    public Object requestTable() {
+        return SSMPRequest.Type.byName(_b, _b.readerIndex(), _n);
+    }
+
+    @Benchmark
+    public Object requestMap() {
+        byte[] v = new byte[_n];
+        _b.getBytes(_b.readerIndex(), v);
+        return REQUESTS.get(new String(v, StandardCharsets.US_ASCII));
+    }
+
+    @Benchmark
+    public Object eventTable() {
+        return SSMPEvent.Type.byName(_b, _b.readerIndex(), _n);
+    }
+
+    @Benchmark
+    public Object eventMap() {
+        byte[] v = new byte[_n];
+        _b.getBytes(_b.readerIndex(), v);
+        return EVENTS.get(new String(v, StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+
+import static com.aerofs.ssmp.SSMPDecoder.*;
+
+/**
+ * Length-prefixed alternative to the text framing (protocol v2)
+ *
+ * Every frame starts with a fixed header:
+ *
+ *   op     u8    OP | code, the high bit never starts a text frame
+ *   flags  u8    FLAG_BINARY if the payload is binary
+ *   len1   u8    length of the first identifier, 0 if absent
+ *   len2   u8    length of the second identifier, 0 if absent
+ *   arg    u16   response code
+ *   plen   u16   payload length, 0 if absent
+ *
+ * followed by the identifiers and the payload, so a frame is decoded with bounds checks only.
+ *
+ * Requests use code 1 + {@link SSMPRequest.Type#ordinal}, the destination as first identifier
+ * and, for LOGIN only, the scheme as second identifier. Events use code
+ * 1 + {@link SSMPEvent.Type#ordinal}, the sender as first identifier and the destination as
+ * second identifier. Responses use code 0.
+ *
+ * A client opts in by sending its LOGIN request in binary form. The server then answers, and
+ * keeps talking to that connection, in binary form, while other connections keep using text.
+ * The limits on identifiers and payloads are the same as for text frames, since frames are
+ * relayed across framings, and so are the constraints on text payloads.
+ */
+final class BinaryFraming {
+    static final int HEADER_LENGTH = 8;
+    static final int FLAG_BINARY = 1;
+
+    private static final int OP = 0x80;
+    private static final int RESPONSE = 0;
+
+    private static final SSMPRequest.Type[] REQUESTS = SSMPRequest.Type.values();
+    private static final SSMPEvent.Type[] EVENTS = SSMPEvent.Type.values();
+
+    private BinaryFraming() {}
+
+    /**
+     * @return whether the (non-empty) buffer starts with a binary frame
+     */
+    static boolean isBinary(ChannelBuffer b) {
+        return (b.getByte(b.readerIndex()) & OP) != 0;
+    }
+
+    /**
+     * @return length of the frame at the reader index, or {@link SSMPDecoder#MORE} if it is not
+     * complete yet
+     */
+    static int length(ChannelBuffer b) {
+        if (b.readableBytes() < HEADER_LENGTH) return MORE;
+        int i = b.readerIndex();
+        int len1 = b.getUnsignedByte(i + 2);
+        int len2 = b.getUnsignedByte(i + 3);
+        int plen = b.getUnsignedShort(i + 6);
+        if (len1 > MAX_ID_LENGTH || len2 > MAX_ID_LENGTH || plen > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException();
+        }
+        int n = HEADER_LENGTH + len1 + len2 + plen;
+        return b.readableBytes() < n ? MORE : n;
+    }
+
+    /**
+     * Fields of a complete frame, read in place
+     */
+    static class Frame {
+        final int code;
+        final int flags;
+        final int arg;
+        final @Nullable SSMPIdentifier id1;
+        final @Nullable SSMPIdentifier id2;
+        final @Nullable ChannelBuffer payload;
+
+        /**
+         * Read the complete frame at the reader index, without consuming it
+         *
+         * The payload shares its content with b.
+         */
+        Frame(ChannelBuffer b, @Nullable IdentifierTable ids) {
+            int i = b.readerIndex();
+            int op = b.getUnsignedByte(i);
+            if ((op & OP) == 0) throw new IllegalArgumentException();
+            code = op & ~OP;
+            flags = b.getUnsignedByte(i + 1);
+            int len1 = b.getUnsignedByte(i + 2);
+            int len2 = b.getUnsignedByte(i + 3);
+            arg = b.getUnsignedShort(i + 4);
+            int plen = b.getUnsignedShort(i + 6);
+            i += HEADER_LENGTH;
+            id1 = identifier(b, i, len1, ids);
+            i += len1;
+            id2 = identifier(b, i, len2, null);
+            i += len2;
+            payload = plen > 0 ? payload(b, i, plen, (flags & FLAG_BINARY) != 0) : null;
+        }
+
+        boolean isBinary() {
+            return (flags & FLAG_BINARY) != 0;
+        }
+
+        @Nullable SSMPRequest.Type request() {
+            return code > 0 && code <= REQUESTS.length ? REQUESTS[code - 1] : null;
+        }
+
+        @Nullable SSMPEvent.Type event() {
+            return code > 0 && code <= EVENTS.length ? EVENTS[code - 1] : null;
+        }
+
+        boolean isResponse() {
+            return code == RESPONSE;
+        }
+    }
+
+    private static @Nullable SSMPIdentifier identifier(ChannelBuffer b, int offset, int n,
+                                                       @Nullable IdentifierTable t) {
+        if (n == 0) return null;
+        if (Swar.span(b, offset, offset + n, SSMPIdentifier.ALLOWED) != offset + n) {
+            throw new IllegalArgumentException();
+        }
+        if (t != null) return t.get(b, offset, n);
+        byte[] id = new byte[n];
+        b.getBytes(offset, id);
+        return new SSMPIdentifier(id);
+    }
+
+    // text payloads must remain valid when relayed to text connections
+    static ChannelBuffer payload(ChannelBuffer b, int offset, int n, boolean binary) {
+        if (!binary) {
+            byte c = b.getByte(offset);
+            if ((c >= 0 && c <= 3) || Swar.indexOf(b, offset, offset + n, (byte)'\n') != -1) {
+                throw new IllegalArgumentException();
+            }
+        }
+        return b.slice(offset, n);
+    }
+
+    static ChannelBuffer request(SSMPRequest r) {
+        ChannelBuffer b = ChannelBuffers.buffer(maxLength(r));
+        request(r, b);
+        return b;
+    }
+
+    /**
+     * Append a request frame to the given buffer, which must have room for {@link #maxLength}
+     */
+    static void request(SSMPRequest r, ChannelBuffer b) {
+        byte[] id1 = r.to != null ? r.to.getBytes() : null;
+        byte[] id2 = null;
+        byte[] payload = r.payload;
+        if (r.type == SSMPRequest.Type.LOGIN && payload != null) {
+            // see SSMPRequest.login
+            String s = new String(payload, StandardCharsets.UTF_8);
+            int sp = s.indexOf(' ');
+            id2 = (sp == -1 ? s : s.substring(0, sp)).getBytes(StandardCharsets.US_ASCII);
+            payload = sp == -1 ? null : s.substring(sp + 1).getBytes(StandardCharsets.UTF_8);
+        }
+        int plen = payload != null ? payload.length : 0;
+        if (plen > MAX_PAYLOAD_LENGTH) throw new IllegalArgumentException("payload too large");
+        writeHeader(b, OP | (r.type.ordinal() + 1), r.binary, id1, id2, 0, plen);
+        if (plen > 0) b.writeBytes(payload);
+    }
+
+    /**
+     * @return upper bound of the length of the frame of a request
+     */
+    static int maxLength(SSMPRequest r) {
+        // the scheme and credentials of a LOGIN are split out of the payload, minus a space
+        return HEADER_LENGTH + (r.to != null ? r.to.getBytes().length : 0)
+                + (r.payload != null ? r.payload.length : 0);
+    }
+
+    static ChannelBuffer response(int code, @Nullable String message) {
+        byte[] payload = message != null && !message.isEmpty()
+                ? message.getBytes(StandardCharsets.UTF_8) : null;
+        int plen = payload != null ? payload.length : 0;
+        ChannelBuffer b = header(OP | RESPONSE, false, null, null, code, plen, plen);
+        if (plen > 0) b.writeBytes(payload);
+        return b;
+    }
+
+    /**
+     * Translate a text response, e.g. from {@link Authenticator#unauthorized}
+     */
+    static ChannelBuffer response(ChannelBuffer text) {
+        String s = text.toString(text.readerIndex(), text.readableBytes(), StandardCharsets.UTF_8);
+        int end = s.indexOf('\n');
+        if (end != -1) s = s.substring(0, end);
+        int code = Integer.parseInt(s.substring(0, CODE_LENGTH));
+        return response(code, s.length() > CODE_LENGTH + 1 ? s.substring(CODE_LENGTH + 1) : null);
+    }
+
+    /**
+     * Binary counterpart of {@link SSMPResponseEncoder#encode}
+     */
+    static ChannelBuffer event(SSMPEvent ev) {
+        int plen = ev._slice != null ? ev._slice.readableBytes()
+                : ev.payload != null ? ev.payload.length : 0;
+        if (plen > MAX_PAYLOAD_LENGTH) throw new IllegalArgumentException("payload too large");
+        byte[] to = ev.to != null ? ev.to.getBytes() : null;
+        int op = OP | (ev.type.ordinal() + 1);
+        if (ev._slice != null) {
+            return ChannelBuffers.wrappedBuffer(
+                    header(op, ev.binary, ev.from.getBytes(), to, 0, plen, 0), ev._slice);
+        }
+        ChannelBuffer b = header(op, ev.binary, ev.from.getBytes(), to, 0, plen, plen);
+        if (plen > 0) b.writeBytes(ev.payload);
+        return b;
+    }
+
+    // @return buffer holding the header and identifiers, with room for extra bytes
+    private static ChannelBuffer header(int op, boolean binary, @Nullable byte[] id1,
+                                        @Nullable byte[] id2, int arg, int plen, int extra) {
+        int len1 = id1 != null ? id1.length : 0;
+        int len2 = id2 != null ? id2.length : 0;
+        ChannelBuffer b = ChannelBuffers.buffer(HEADER_LENGTH + len1 + len2 + extra);
+        writeHeader(b, op, binary, id1, id2, arg, plen);
+        return b;
+    }
+
+    private static void writeHeader(ChannelBuffer b, int op, boolean binary, @Nullable byte[] id1,
+                                    @Nullable byte[] id2, int arg, int plen) {
+        int len1 = id1 != null ? id1.length : 0;
+        int len2 = id2 != null ? id2.length : 0;
+        b.writeByte(op);
+        b.writeByte(binary ? FLAG_BINARY : 0);
+        b.writeByte(len1);
+        b.writeByte(len2);
+        b.writeShort(arg);
+        b.writeShort(plen);
+        if (id1 != null) b.writeBytes(id1);
+        if (id2 != null) b.writeBytes(id2);
+    }
+}
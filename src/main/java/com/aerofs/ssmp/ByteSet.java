@@ -8,12 +8,32 @@ package com.aerofs.ssmp;
 public class ByteSet {
     private final long[] d = new long[4];
 
+    // word-at-a-time matching, see Swar: per-byte addends of each run of consecutive members
+    private final long[] _lo;
+    private final long[] _hi;
+
     interface Initializer {
         void init(ByteSet s);
     }
 
     public ByteSet(Initializer... ii) {
         for (Initializer i : ii) i.init(this);
+        int runs = 0;
+        for (int c = 0; c < 128; ++c) {
+            if (contains((byte)c) && (c == 0 || !contains((byte)(c - 1)))) ++runs;
+        }
+        boolean ascii = d[2] == 0 && d[3] == 0;
+        _lo = new long[ascii ? runs : 0];
+        _hi = new long[ascii ? runs : 0];
+        for (int c = 0, r = 0; ascii && c < 128; ++c) {
+            if (!contains((byte)c)) continue;
+            int e = c;
+            while (e < 127 && contains((byte)(e + 1))) ++e;
+            _lo[r] = Swar.ONES * (128 - c);
+            _hi[r] = Swar.ONES * (127 - e);
+            ++r;
+            c = e;
+        }
     }
 
     public static Initializer Range(char a, char b) {
@@ -38,10 +58,33 @@ public class ByteSet {
     }
 
     private void set(byte b) {
-        d[b / 64] |= (1L << (b & 63));
+        d[(b & 0xff) >>> 6] |= (1L << (b & 63));
     }
 
     public boolean contains(byte b) {
-        return (d[b / 64] & (1L << (b & 63))) != 0;
+        return (d[(b & 0xff) >>> 6] & (1L << (b & 63))) != 0;
+    }
+
+    /**
+     * @return a word with the high bit of each byte set iff the corresponding byte of v is in
+     * this set
+     */
+    long matches(long v) {
+        if (_lo.length == 0) {
+            long m = 0;
+            for (int i = 0; i < 8; ++i) {
+                if (contains((byte)(v >>> (8 * i)))) m |= 0x80L << (8 * i);
+            }
+            return m;
+        }
+        // for a 7-bit byte x, x >= lo iff x + 128 - lo has its high bit set, and x <= hi
+        // iff x + 127 - hi has not; neither sum carries over into the next byte
+        long x = v & Swar.LOW;
+        long m = 0;
+        for (int r = 0; r < _lo.length; ++r) {
+            m |= (x + _lo[r]) & ~(x + _hi[r]);
+        }
+        // bytes with the high bit set are never members
+        return m & ~v & Swar.HIGH;
     }
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules the delivery of a publish to large subscriber lists.
+ *
+ * Fan-out to fewer than {@code threshold} recipients runs inline on the I/O worker that decoded
+ * the request. Larger fan-outs are split in chunks of {@code chunk} recipients and handed to the
+ * executor (e.g. a {@link java.util.concurrent.ForkJoinPool}) so a publish to a huge topic does
+ * not stall every other connection served by the same worker.
+ *
+ * Deliveries originating from a given publisher go through its {@link Sequencer}, so that the
+ * order in which they reach any recipient matches the order of the requests.
+ */
+public class FanOut {
+    private final static Logger L = LoggerFactory.getLogger(FanOut.class);
+
+    private final Executor _executor;
+    private final int _threshold;
+    private final int _chunk;
+
+    interface Range {
+        void deliver(int from, int to);
+    }
+
+    public FanOut(Executor executor, int threshold, int chunk) {
+        if (threshold < 1 || chunk < 1) throw new IllegalArgumentException();
+        _executor = executor;
+        _threshold = threshold;
+        _chunk = chunk;
+    }
+
+    /**
+     * Chunks the executor rejects, e.g. once it is shut down, are delivered inline.
+     *
+     * @return true if the fan-out completed inline, false if it was handed off to the executor,
+     * in which case {@code done} is called once every chunk has been delivered
+     */
+    boolean run(int n, Range r, Runnable done) {
+        if (n < _threshold) {
+            r.deliver(0, n);
+            return true;
+        }
+        int chunks = (n + _chunk - 1) / _chunk;
+        AtomicInteger pending = new AtomicInteger(chunks);
+        for (int i = 0; i < n; i += _chunk) {
+            final int from = i, to = Math.min(n, i + _chunk);
+            try {
+                _executor.execute(() -> {
+                    try {
+                        r.deliver(from, to);
+                    } finally {
+                        if (pending.decrementAndGet() == 0) done.run();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                L.warn("fan-out rejected, delivering inline", e);
+                try {
+                    r.deliver(from, n);
+                } finally {
+                    // account for this chunk and the ones never submitted
+                    int left = chunks - from / _chunk;
+                    if (pending.addAndGet(-left) == 0 && from > 0) done.run();
+                }
+                return from == 0;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs the deliveries of a single publisher in submission order.
+     *
+     * Tasks normally run inline. Once a task goes asynchronous, subsequent tasks are queued until
+     * it calls {@link #resume}.
+     */
+    static class Sequencer {
+        interface Task {
+            /**
+             * @return false if the task completes asynchronously and will call {@link #resume}
+             */
+            boolean run();
+        }
+
+        private final Queue<Task> _q = new ArrayDeque<>();
+        private boolean _busy;
+
+        void submit(Task t) {
+            synchronized (this) {
+                if (_busy) {
+                    _q.add(t);
+                    return;
+                }
+                _busy = true;
+            }
+            if (run(t)) resume();
+        }
+
+        void resume() {
+            while (true) {
+                Task t;
+                synchronized (this) {
+                    t = _q.poll();
+                    if (t == null) {
+                        _busy = false;
+                        return;
+                    }
+                }
+                if (!run(t)) return;
+            }
+        }
+
+        private static boolean run(Task t) {
+            try {
+                return t.run();
+            } catch (RuntimeException e) {
+                L.warn("delivery failed", e);
+                return true;
+            }
+        }
+    }
+}
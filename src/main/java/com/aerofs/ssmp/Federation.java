@@ -0,0 +1,471 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.LengthFieldPrepender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.aerofs.ssmp.SSMPDecoder.MAX_ID_LENGTH;
+import static com.aerofs.ssmp.SSMPDecoder.MAX_PAYLOAD_LENGTH;
+
+/**
+ * Links several {@link SSMPServer} nodes into a single logical server
+ *
+ * Every node tells its peers which clients are connected to it and which topics have local
+ * subscribers. UCAST, MCAST and BCAST requests are then forwarded to the peers that have
+ * recipients, once per peer regardless of the number of recipients it serves, and peers
+ * deliver them to their local recipients only, so messages never travel more than one hop.
+ * Presence events are not federated.
+ *
+ * Nodes must form a full mesh: each node should {@link #connect} to every other node, or at
+ * least one node of each pair to the other. Redundant links are detected and closed. Lost links
+ * are not re-established automatically.
+ *
+ * Membership summaries are eventually consistent: a peer may briefly miss a client or topic
+ * that just appeared, and may keep forwarding to a node that lost its recipients, in which case
+ * the message is dropped by that node. Changes are reported from a single thread, which also
+ * takes the snapshot sent to new peers, so a peer never sees a stale addition after a removal.
+ *
+ * Nodes prove to each other that they know a shared secret before a link is used, by answering
+ * a random challenge with an HMAC. Links are otherwise plain TCP and are meant for a private
+ * network between nodes.
+ */
+public class Federation {
+    private final static Logger L = LoggerFactory.getLogger(Federation.class);
+
+    private final static int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    // message types
+    private final static byte HELLO = 1;
+    private final static byte CLIENT_UP = 2;
+    private final static byte CLIENT_DOWN = 3;
+    private final static byte TOPIC_UP = 4;
+    private final static byte TOPIC_DOWN = 5;
+    private final static byte UCAST = 6;
+    private final static byte MCAST = 7;
+    private final static byte BCAST = 8;
+    private final static byte AUTH = 9;
+
+    private final static int NONCE_LENGTH = 16;
+    private final static String HMAC = "HmacSHA256";
+
+    private final static int FLAG_BINARY = 1;
+
+    /**
+     * Receives the local clients and topics, see {@link SSMPServer#membership}
+     */
+    interface Membership {
+        void client(SSMPIdentifier id);
+        void topic(SSMPIdentifier id);
+    }
+
+    private final InetSocketAddress _addr;
+    private final ServerBootstrap _serverBootstrap;
+    private final ClientBootstrap _clientBootstrap;
+    private final SecureRandom _random = new SecureRandom();
+    private final long _node = _random.nextLong();
+    private final SecretKeySpec _secret;
+
+    // membership changes and snapshots, in order
+    private final ShardExecutor _membership = new ShardExecutor("ssmp-federation");
+
+    private final ChannelGroup _channels = new DefaultChannelGroup();
+    // active links, by remote node
+    private final Map<Long, Link> _links = new ConcurrentHashMap<>();
+
+    private Channel _listenChannel;
+    private volatile SSMPServer _server;
+
+    /**
+     * @param secret shared by all nodes, links to nodes that do not know it are closed
+     */
+    public Federation(InetSocketAddress addr, byte[] secret, ChannelFactory serverChannelFactory,
+                      ChannelFactory clientChannelFactory) {
+        if (secret.length == 0) throw new IllegalArgumentException("empty secret");
+        _addr = addr;
+        _secret = new SecretKeySpec(secret, HMAC);
+        _serverBootstrap = new ServerBootstrap(serverChannelFactory);
+        _serverBootstrap.setPipelineFactory(() -> pipeline(false));
+        _clientBootstrap = new ClientBootstrap(clientChannelFactory);
+        _clientBootstrap.setOption("connectTimeoutMillis", 5000);
+        _clientBootstrap.setPipelineFactory(() -> pipeline(true));
+    }
+
+    private ChannelPipeline pipeline(boolean initiator) {
+        return Channels.pipeline(
+                new LengthFieldBasedFrameDecoder(MAX_FRAME_LENGTH, 0, 4, 0, 4),
+                new LengthFieldPrepender(4),
+                new Link(initiator));
+    }
+
+    void attach(SSMPServer server) {
+        _server = server;
+    }
+
+    public void start() {
+        _membership.start();
+        _listenChannel = _serverBootstrap.bind(_addr);
+        _channels.add(_listenChannel);
+    }
+
+    public void stop() {
+        _channels.close().awaitUninterruptibly();
+        _membership.stop();
+    }
+
+    /**
+     * Link to another node, asynchronously
+     */
+    public void connect(InetSocketAddress peer) {
+        L.info("connecting peer {}", peer);
+        _clientBootstrap.connect(peer).addListener(f -> {
+            if (!f.isSuccess()) L.warn("failed to connect peer {}", peer, f.getCause());
+        });
+    }
+
+    public int getListeningPort() {
+        return ((InetSocketAddress)_listenChannel.getLocalAddress()).getPort();
+    }
+
+    /**
+     * @return number of nodes currently linked to this one
+     */
+    public int getPeerCount() {
+        return _links.size();
+    }
+
+    void clientUp(SSMPIdentifier id) {
+        broadcast(membership(CLIENT_UP, id));
+    }
+
+    void clientDown(SSMPIdentifier id) {
+        broadcast(membership(CLIENT_DOWN, id));
+    }
+
+    void topicUp(SSMPIdentifier id) {
+        broadcast(membership(TOPIC_UP, id));
+    }
+
+    void topicDown(SSMPIdentifier id) {
+        broadcast(membership(TOPIC_DOWN, id));
+    }
+
+    private void broadcast(ChannelBuffer frame) {
+        _membership.execute(() -> {
+            for (Link l : _links.values()) {
+                l.write(SSMPResponseEncoder.share(frame));
+            }
+        });
+    }
+
+    /**
+     * Forward a UCAST to the nodes the recipient is connected to
+     *
+     * @return false if the recipient is not connected to any other node
+     */
+    boolean ucast(SSMPEvent ev) {
+        ChannelBuffer frame = null;
+        for (Link l : _links.values()) {
+            if (!l._clients.contains(ev.to)) continue;
+            if (frame == null) frame = event(UCAST, ev, null);
+            l.write(SSMPResponseEncoder.share(frame));
+        }
+        return frame != null;
+    }
+
+    /**
+     * Forward a MCAST to the nodes that have subscribers
+     */
+    void mcast(SSMPEvent ev) {
+        ChannelBuffer frame = null;
+        for (Link l : _links.values()) {
+            if (!l._topics.contains(ev.to)) continue;
+            if (frame == null) frame = event(MCAST, ev, null);
+            l.write(SSMPResponseEncoder.share(frame));
+        }
+    }
+
+    /**
+     * Forward a BCAST to the nodes that have subscribers to any of the publisher's topics
+     *
+     * Each node is told which of these topics to deliver to.
+     */
+    void bcast(SSMPEvent ev, Collection<SSMPIdentifier> topics) {
+        for (Link l : _links.values()) {
+            List<SSMPIdentifier> remote = new ArrayList<>();
+            for (SSMPIdentifier t : topics) {
+                if (l._topics.contains(t)) remote.add(t);
+            }
+            if (!remote.isEmpty()) l.write(event(BCAST, ev, remote));
+        }
+    }
+
+    private static ChannelBuffer membership(byte type, SSMPIdentifier id) {
+        byte[] b = id.getBytes();
+        ChannelBuffer frame = ChannelBuffers.buffer(2 + b.length);
+        frame.writeByte(type);
+        writeIdentifier(frame, id);
+        return frame;
+    }
+
+    private static ChannelBuffer event(byte type, SSMPEvent ev,
+                                       @Nullable List<SSMPIdentifier> topics) {
+        ChannelBuffer h = ChannelBuffers.dynamicBuffer(256);
+        h.writeByte(type);
+        h.writeByte(ev.binary ? FLAG_BINARY : 0);
+        writeIdentifier(h, ev.from);
+        if (topics != null) {
+            h.writeInt(topics.size());
+            for (SSMPIdentifier t : topics) writeIdentifier(h, t);
+        } else {
+            writeIdentifier(h, ev.to);
+        }
+        if (ev._slice != null) {
+            h.writeShort(ev._slice.readableBytes());
+            return ChannelBuffers.wrappedBuffer(h, ev._slice);
+        }
+        h.writeShort(ev.payload != null ? ev.payload.length : 0);
+        if (ev.payload != null) h.writeBytes(ev.payload);
+        return h;
+    }
+
+    private static void writeIdentifier(ChannelBuffer b, SSMPIdentifier id) {
+        b.writeByte(id.getBytes().length);
+        b.writeBytes(id.getBytes());
+    }
+
+    // validated as strictly as identifiers read from clients
+    private static SSMPIdentifier readIdentifier(ChannelBuffer b) {
+        int n = b.readUnsignedByte();
+        if (n == 0 || n > MAX_ID_LENGTH || n > b.readableBytes()) {
+            throw new IllegalArgumentException();
+        }
+        int i = b.readerIndex();
+        if (Swar.span(b, i, i + n, SSMPIdentifier.ALLOWED) != i + n) {
+            throw new IllegalArgumentException();
+        }
+        byte[] id = new byte[n];
+        b.readBytes(id);
+        return new SSMPIdentifier(id);
+    }
+
+    // proof of knowledge of the secret, bound to the challenge and to the node answering it
+    private byte[] mac(byte[] nonce, long node) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(_secret);
+            mac.update(nonce);
+            ChannelBuffer b = ChannelBuffers.buffer(8);
+            b.writeLong(node);
+            return mac.doFinal(b.array());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Connection to a peer node, in either direction
+     */
+    private class Link extends SimpleChannelUpstreamHandler implements Membership {
+        private final boolean _initiator;
+        private volatile Channel _c;
+        private final byte[] _nonce = new byte[NONCE_LENGTH];
+        // only accessed from the I/O thread
+        private long _peer;
+        private boolean _hello;
+        private boolean _authenticated;
+
+        // membership of the peer
+        private final Set<SSMPIdentifier> _clients = ConcurrentHashMap.newKeySet();
+        private final Set<SSMPIdentifier> _topics = ConcurrentHashMap.newKeySet();
+
+        // inbound events are delivered in order
+        private final FanOut.Sequencer _seq = new FanOut.Sequencer();
+
+        Link(boolean initiator) {
+            _initiator = initiator;
+        }
+
+        void write(ChannelBuffer frame) {
+            _c.write(frame);
+        }
+
+        // whether both ends agree to keep this link, should there be a redundant one
+        private boolean preferred() {
+            return _initiator == (_node < _peer);
+        }
+
+        @Override
+        public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            _c = ctx.getChannel();
+            _channels.add(_c);
+        }
+
+        @Override
+        public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            _random.nextBytes(_nonce);
+            ChannelBuffer hello = ChannelBuffers.buffer(9 + NONCE_LENGTH);
+            hello.writeByte(HELLO);
+            hello.writeLong(_node);
+            hello.writeBytes(_nonce);
+            write(hello);
+        }
+
+        @Override
+        public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            if (_links.remove(_peer, this)) L.info("lost peer {}", _c.getRemoteAddress());
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+            L.warn("peer link failure {}", e.getCause().toString());
+            ctx.getChannel().close();
+        }
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent me) {
+            ChannelBuffer b = (ChannelBuffer)me.getMessage();
+            byte type = b.readByte();
+            if (!_authenticated && type != HELLO && type != AUTH) {
+                throw new IllegalArgumentException("unauthenticated message " + type);
+            }
+            switch (type) {
+            case HELLO:
+                hello(b);
+                break;
+            case AUTH:
+                auth(b);
+                break;
+            case CLIENT_UP:
+                _clients.add(readIdentifier(b));
+                break;
+            case CLIENT_DOWN:
+                _clients.remove(readIdentifier(b));
+                break;
+            case TOPIC_UP:
+                _topics.add(readIdentifier(b));
+                break;
+            case TOPIC_DOWN:
+                _topics.remove(readIdentifier(b));
+                break;
+            case UCAST:
+            case MCAST:
+            case BCAST:
+                event(type, b);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown message " + type);
+            }
+        }
+
+        private void hello(ChannelBuffer b) {
+            if (_hello) throw new IllegalArgumentException("duplicate hello");
+            _hello = true;
+            _peer = b.readLong();
+            if (_peer == _node) {
+                _c.close();
+                return;
+            }
+            byte[] nonce = new byte[NONCE_LENGTH];
+            b.readBytes(nonce);
+            byte[] mac = mac(nonce, _node);
+            ChannelBuffer auth = ChannelBuffers.buffer(1 + mac.length);
+            auth.writeByte(AUTH);
+            auth.writeBytes(mac);
+            write(auth);
+        }
+
+        private void auth(ChannelBuffer b) {
+            if (!_hello || _authenticated) throw new IllegalArgumentException("unexpected auth");
+            byte[] mac = new byte[b.readableBytes()];
+            b.readBytes(mac);
+            if (!MessageDigest.isEqual(mac, mac(_nonce, _peer))) {
+                L.warn("peer {} failed authentication", _c.getRemoteAddress());
+                _c.close();
+                return;
+            }
+            _authenticated = true;
+            Link prev;
+            synchronized (_links) {
+                prev = _links.get(_peer);
+                if (prev != null && (prev.preferred() || !preferred())) {
+                    L.info("redundant link to {}", _c.getRemoteAddress());
+                    _c.close();
+                    return;
+                }
+                _links.put(_peer, this);
+            }
+            if (prev != null) prev._c.close();
+            L.info("linked peer {}", _c.getRemoteAddress());
+            // behind any change already reported to other peers, and ahead of any later one
+            _membership.execute(() -> _server.membership(this));
+        }
+
+        @Override
+        public void client(SSMPIdentifier id) {
+            write(membership(CLIENT_UP, id));
+        }
+
+        @Override
+        public void topic(SSMPIdentifier id) {
+            write(membership(TOPIC_UP, id));
+        }
+
+        private void event(byte type, ChannelBuffer b) {
+            boolean binary = (b.readUnsignedByte() & FLAG_BINARY) != 0;
+            SSMPIdentifier from = readIdentifier(b);
+            SSMPIdentifier to = null;
+            List<SSMPIdentifier> topics = null;
+            if (type == BCAST) {
+                int n = b.readInt();
+                if (n < 0 || n > b.readableBytes()) throw new IllegalArgumentException();
+                topics = new ArrayList<>(n);
+                for (int i = 0; i < n; ++i) topics.add(readIdentifier(b));
+            } else {
+                to = readIdentifier(b);
+            }
+            int n = b.readUnsignedShort();
+            if (n > MAX_PAYLOAD_LENGTH || n > b.readableBytes()) throw new IllegalArgumentException();
+            // frames are copied out of the inbound stream, see FrameDecoder#extractFrame
+            ChannelBuffer payload = null;
+            if (n > 0) {
+                payload = BinaryFraming.payload(b, b.readerIndex(), n, binary);
+                b.skipBytes(n);
+            }
+            SSMPEvent.Type t = type == UCAST ? SSMPEvent.Type.UCAST
+                    : type == MCAST ? SSMPEvent.Type.MCAST : SSMPEvent.Type.BCAST;
+            SSMPEvent ev = new SSMPEvent(from, t, to, null, payload, binary);
+            List<SSMPIdentifier> ts = topics;
+            _seq.submit(() -> {
+                _server.relay(ev, ts, _seq::resume);
+                return false;
+            });
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Dense integer handles for identifiers in use
+ *
+ * Handles index the client and topic tables of {@link SSMPServer} and key the subscriber maps
+ * of its topics, so routing resolves the identifier of a request once and everything past that
+ * point is array indexing and primitive comparisons.
+ *
+ * Handles are reference counted: an identifier keeps its handle for as long as anything refers
+ * to it, after which the handle is recycled, which keeps the tables dense.
+ *
+ * The index is open addressing over parallel arrays. Lookups are lock-free, optimistic reads
+ * validated against concurrent changes, which are rare (LOGIN, first SUBSCRIBE to a topic, ...)
+ * and serialized by a lock.
+ */
+final class HandleRegistry {
+    static final int NONE = -1;
+
+    private final StampedLock _l = new StampedLock();
+
+    // index: identifier -> handle, linear probing, at most half full
+    private SSMPIdentifier[] _keys = new SSMPIdentifier[16];
+    private int[] _handles = new int[16];
+    private int _size;
+
+    // by handle
+    private SSMPIdentifier[] _ids = new SSMPIdentifier[8];
+    private int[] _refs = new int[8];
+    private int _next;
+
+    // recycled handles
+    private int[] _free = new int[8];
+    private int _freeCount;
+
+    /**
+     * @return the handle of the given identifier, or {@link #NONE} if not in use
+     */
+    int get(SSMPIdentifier id) {
+        long stamp = _l.tryOptimisticRead();
+        if (stamp != 0) {
+            int h = find(id);
+            if (_l.validate(stamp)) return h;
+        }
+        stamp = _l.readLock();
+        try {
+            return find(id);
+        } finally {
+            _l.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return the handle of the given identifier, assigned one if needed, with one more reference
+     */
+    int acquire(SSMPIdentifier id) {
+        long stamp = _l.writeLock();
+        try {
+            int h = find(id);
+            if (h == NONE) {
+                h = _freeCount > 0 ? _free[--_freeCount] : _next++;
+                if (h == _ids.length) {
+                    _ids = Arrays.copyOf(_ids, 2 * h);
+                    _refs = Arrays.copyOf(_refs, 2 * h);
+                }
+                _ids[h] = id;
+                insert(id, h);
+            }
+            ++_refs[h];
+            return h;
+        } finally {
+            _l.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Add a reference to a handle already in use
+     */
+    void retain(int h) {
+        long stamp = _l.writeLock();
+        try {
+            if (_refs[h] == 0) throw new IllegalStateException();
+            ++_refs[h];
+        } finally {
+            _l.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Drop a reference, recycling the handle once unused
+     */
+    void release(int h) {
+        long stamp = _l.writeLock();
+        try {
+            if (_refs[h] == 0) throw new IllegalStateException();
+            if (--_refs[h] > 0) return;
+            delete(_ids[h]);
+            _ids[h] = null;
+            if (_freeCount == _free.length) _free = Arrays.copyOf(_free, 2 * _freeCount);
+            _free[_freeCount++] = h;
+        } finally {
+            _l.unlockWrite(stamp);
+        }
+    }
+
+    private static int slot(SSMPIdentifier id, int mask) {
+        int h = id.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    // may run concurrently with writers, the result is only trusted once validated
+    private int find(SSMPIdentifier id) {
+        SSMPIdentifier[] keys = _keys;
+        int[] handles = _handles;
+        int mask = keys.length - 1;
+        if (handles.length != keys.length) return NONE;
+        int i = slot(id, mask);
+        for (int n = 0; n < keys.length; ++n) {
+            SSMPIdentifier k = keys[i];
+            if (k == null) return NONE;
+            if (k.equals(id)) return handles[i];
+            i = (i + 1) & mask;
+        }
+        return NONE;
+    }
+
+    // must hold write lock
+    private void insert(SSMPIdentifier id, int h) {
+        if (2 * (_size + 1) > _keys.length) {
+            SSMPIdentifier[] keys = _keys;
+            int[] handles = _handles;
+            SSMPIdentifier[] nkeys = new SSMPIdentifier[2 * keys.length];
+            int[] nhandles = new int[2 * keys.length];
+            int mask = nkeys.length - 1;
+            for (int i = 0; i < keys.length; ++i) {
+                if (keys[i] == null) continue;
+                int j = slot(keys[i], mask);
+                while (nkeys[j] != null) j = (j + 1) & mask;
+                nkeys[j] = keys[i];
+                nhandles[j] = handles[i];
+            }
+            _keys = nkeys;
+            _handles = nhandles;
+        }
+        int mask = _keys.length - 1;
+        int i = slot(id, mask);
+        while (_keys[i] != null) i = (i + 1) & mask;
+        _handles[i] = h;
+        _keys[i] = id;
+        ++_size;
+    }
+
+    // must hold write lock
+    private void delete(SSMPIdentifier id) {
+        int mask = _keys.length - 1;
+        int i = slot(id, mask);
+        while (!_keys[i].equals(id)) i = (i + 1) & mask;
+        // backward shift: move up the entries whose probe sequence went through the hole
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            SSMPIdentifier k = _keys[j];
+            if (k == null) break;
+            int home = slot(k, mask);
+            if (((j - home) & mask) < ((j - i) & mask)) continue;
+            _keys[i] = k;
+            _handles[i] = _handles[j];
+            i = j;
+        }
+        _keys[i] = null;
+        --_size;
+    }
+}
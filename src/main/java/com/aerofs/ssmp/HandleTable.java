@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Concurrent array indexed by {@link HandleRegistry} handles
+ *
+ * Storage is split in fixed-size pages that never move once allocated, so growing the table
+ * does not race with, or lose, concurrent updates of existing slots.
+ */
+final class HandleTable<V> {
+    private static final int PAGE_SHIFT = 10;
+    private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private volatile AtomicReferenceArray<V>[] _pages = new AtomicReferenceArray[0];
+
+    @Nullable V get(int h) {
+        AtomicReferenceArray<V>[] pages = _pages;
+        int p = h >>> PAGE_SHIFT;
+        return p < pages.length ? pages[p].get(h & PAGE_MASK) : null;
+    }
+
+    /**
+     * @return the previous value
+     */
+    @Nullable V set(int h, @Nullable V v) {
+        return page(h).getAndSet(h & PAGE_MASK, v);
+    }
+
+    boolean compareAndSet(int h, @Nullable V expect, @Nullable V update) {
+        return page(h).compareAndSet(h & PAGE_MASK, expect, update);
+    }
+
+    void forEach(Consumer<V> c) {
+        for (AtomicReferenceArray<V> page : _pages) {
+            for (int i = 0; i < page.length(); ++i) {
+                V v = page.get(i);
+                if (v != null) c.accept(v);
+            }
+        }
+    }
+
+    private AtomicReferenceArray<V> page(int h) {
+        AtomicReferenceArray<V>[] pages = _pages;
+        int p = h >>> PAGE_SHIFT;
+        return p < pages.length ? pages[p] : grow(p);
+    }
+
+    private synchronized AtomicReferenceArray<V> grow(int p) {
+        AtomicReferenceArray<V>[] pages = _pages;
+        if (p >= pages.length) {
+            pages = Arrays.copyOf(pages, Math.max(p + 1, 2 * pages.length));
+            for (int i = _pages.length; i < pages.length; ++i) {
+                pages[i] = new AtomicReferenceArray<>(1 << PAGE_SHIFT);
+            }
+            _pages = pages;
+        }
+        return pages[p];
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Direct-mapped cache of identifiers, probed straight from inbound bytes
+ *
+ * Hot identifiers (topics, recipients) are decoded into a shared canonical instance instead of
+ * a fresh array and identifier per frame. A collision simply evicts the previous entry.
+ *
+ * Safe for use by multiple threads without locking: entries are immutable and a lost update
+ * only costs an extra allocation.
+ */
+class IdentifierTable {
+    private final SSMPIdentifier[] _ids;
+    private final int _mask;
+
+    IdentifierTable(int size) {
+        if (Integer.bitCount(size) != 1) throw new IllegalArgumentException();
+        _ids = new SSMPIdentifier[size];
+        _mask = size - 1;
+    }
+
+    SSMPIdentifier get(ChannelBuffer b, int offset, int n) {
+        // same as Arrays.hashCode
+        int h = 1;
+        for (int i = 0; i < n; ++i) h = 31 * h + b.getByte(offset + i);
+        int idx = (h ^ (h >>> 16)) & _mask;
+        SSMPIdentifier id = _ids[idx];
+        if (id == null || !id.matches(h, b, offset, n)) {
+            byte[] d = new byte[n];
+            b.getBytes(offset, d);
+            id = new SSMPIdentifier(d, h);
+            _ids[idx] = id;
+        }
+        return id;
+    }
+}
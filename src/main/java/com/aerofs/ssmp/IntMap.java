@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Open addressing map keyed by non-negative ints, see {@link HandleRegistry}
+ *
+ * Keys and values live in two flat arrays: no boxing, no entry objects, a lookup touches one
+ * slot of each in the common case.
+ *
+ * Not thread-safe.
+ */
+final class IntMap<V> {
+    private static final int FREE = -1;
+
+    private int[] _keys;
+    private Object[] _values;
+    private int _size;
+
+    IntMap() {
+        alloc(4);
+    }
+
+    int size() {
+        return _size;
+    }
+
+    boolean isEmpty() {
+        return _size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable V get(int k) {
+        int i = find(k);
+        return i < 0 ? null : (V)_values[i];
+    }
+
+    boolean containsKey(int k) {
+        return find(k) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable V put(int k, V v) {
+        if (k < 0) throw new IllegalArgumentException();
+        int i = find(k);
+        if (i >= 0) {
+            V prev = (V)_values[i];
+            _values[i] = v;
+            return prev;
+        }
+        if (2 * (_size + 1) > _keys.length) {
+            int[] keys = _keys;
+            Object[] values = _values;
+            alloc(2 * keys.length);
+            for (int j = 0; j < keys.length; ++j) {
+                if (keys[j] != FREE) insert(keys[j], values[j]);
+            }
+        }
+        insert(k, v);
+        ++_size;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable V remove(int k) {
+        int i = find(k);
+        if (i < 0) return null;
+        V prev = (V)_values[i];
+        int mask = _keys.length - 1;
+        // backward shift: move up the entries whose probe sequence went through the hole
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            int kj = _keys[j];
+            if (kj == FREE) break;
+            int home = slot(kj, mask);
+            if (((j - home) & mask) < ((j - i) & mask)) continue;
+            _keys[i] = kj;
+            _values[i] = _values[j];
+            i = j;
+        }
+        _keys[i] = FREE;
+        _values[i] = null;
+        --_size;
+        return prev;
+    }
+
+    @SuppressWarnings("unchecked")
+    List<V> values() {
+        List<V> l = new ArrayList<>(_size);
+        for (int i = 0; i < _keys.length; ++i) {
+            if (_keys[i] != FREE) l.add((V)_values[i]);
+        }
+        return l;
+    }
+
+    private void alloc(int n) {
+        _keys = new int[n];
+        _values = new Object[n];
+        Arrays.fill(_keys, FREE);
+    }
+
+    private static int slot(int k, int mask) {
+        // spread dense handles, which would otherwise fill runs of consecutive slots
+        int h = k * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private int find(int k) {
+        // FREE would match any empty slot
+        if (k < 0) return -1;
+        int mask = _keys.length - 1;
+        int i = slot(k, mask);
+        while (true) {
+            int ki = _keys[i];
+            if (ki == k) return i;
+            if (ki == FREE) return -1;
+            i = (i + 1) & mask;
+        }
+    }
+
+    private void insert(int k, Object v) {
+        int mask = _keys.length - 1;
+        int i = slot(k, mask);
+        while (_keys[i] != FREE) i = (i + 1) & mask;
+        _keys[i] = k;
+        _values[i] = v;
+    }
+}
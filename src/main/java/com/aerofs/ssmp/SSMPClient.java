@@ -11,16 +11,34 @@ import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.timeout.IdleStateHandler;
+import org.jboss.netty.util.Timeout;
 import org.jboss.netty.util.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.channels.ClosedChannelException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class SSMPClient {
@@ -28,14 +46,81 @@ public class SSMPClient {
 
     private final InetSocketAddress _addr;
     private final ClientBootstrap _bootstrap;
+    private final Timer _timer;
 
     private final AtomicReference<Channel> _channel = new AtomicReference<>();
 
+    private volatile int _maxBatchBytes = WriteCoalescer.DEFAULT_MAX_BATCH_BYTES;
+    private volatile long _maxBatchDelay = 0;
+    private volatile boolean _binaryFraming;
+    private volatile @Nullable NackListener _nackListener;
+    private final WriteCoalescer.Stats _writeStats = new WriteCoalescer.Stats();
+
+    // see setRequestTimeout and setMaxInFlight
+    static final int MAX_TIMED_OUT = 1024;
+    private volatile long _requestTimeout = 0;
+    private volatile int _maxInFlight = 0;
+    private volatile int _maxQueued = 0;
+    private final RequestStats _requestStats = new RequestStats();
+
+    // see setAutoBatching
+    private volatile boolean _autoBatching;
+    private final Queue<Message> _pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean _flushing = new AtomicBoolean();
+
+    // see setAutoReconnect
+    private volatile long _reconnectMin = 0;
+    private volatile long _reconnectMax = 0;
+    private volatile @Nullable RecoveryListener _recoveryListener;
+    // SUBSCRIBE requests of active subscriptions, by topic
+    private final Map<SSMPIdentifier, SSMPRequest> _subscriptions = new ConcurrentHashMap<>();
+    // Incremented by connect and disconnect, so that connection attempts and responses of
+    // previous sessions are ignored. Written under this.
+    private volatile int _session;
+    // guarded by this
+    // from connect to disconnect, or until no more connection attempts are to be made
+    private boolean _active;
+    private int _attempts;
+    // first disconnection since the last successful LOGIN, 0 if none
+    private long _down;
+    private @Nullable Timeout _retry;
+
     public interface ConnectionListener {
         void connected();
         void disconnected();
     }
 
+    /**
+     * Recoveries from a disconnection, see {@link #setAutoReconnect}
+     */
+    public interface RecoveryListener {
+        /**
+         * @param millis time from the disconnection to the restoration of subscriptions
+         * @param attempts connection attempts made
+         * @param restored subscriptions restored
+         */
+        void recovered(long millis, int attempts, int restored);
+    }
+
+    public static class RequestStats {
+        private final AtomicLong _timeouts = new AtomicLong();
+        private final AtomicLong _rejected = new AtomicLong();
+        private final AtomicInteger _inFlight = new AtomicInteger();
+        private final AtomicInteger _queued = new AtomicInteger();
+
+        public long timeouts() { return _timeouts.get(); }
+        public long rejected() { return _rejected.get(); }
+        public int inFlight() { return _inFlight.get(); }
+        public int queued() { return _queued.get(); }
+    }
+
+    /**
+     * Failures of requests sent with {@link #send}, called from the I/O thread
+     */
+    public interface NackListener {
+        void failed(long seq, int code);
+    }
+
     public SSMPClient(String host, int port, Timer timer,
                       ChannelFactory channelFactory,
                       SslHandlerFactory sslHandlerFactory,
@@ -49,40 +134,170 @@ public class SSMPClient {
                       EventHandler handler)
     {
         _addr = addr;
+        _timer = timer;
         _bootstrap = new ClientBootstrap(channelFactory);
         _bootstrap.setOption("connectTimeoutMillis", 5000);
         _bootstrap.setPipelineFactory(() -> Channels.pipeline(
                 sslHandlerFactory.newSslHandler(),
                 new IdleStateHandler(timer, 30, 0, 0, TimeUnit.SECONDS),
-                new SSMPResponseDecoder(),
-                new Dispatcher(handler)
+                new WriteCoalescer(_maxBatchBytes, _maxBatchDelay, timer, _writeStats),
+                new SSMPResponseDecoder(_binaryFraming),
+                new Dispatcher(handler, _binaryFraming, _nackListener, timer,
+                        _requestTimeout, _maxInFlight, _maxQueued, _requestStats)
         ));
     }
 
+    /**
+     * Configure outbound aggregation, see {@link WriteCoalescer}
+     *
+     * Takes effect on the next connection.
+     */
+    public void setWriteCoalescing(int maxBatchBytes, long maxDelayMillis) {
+        _maxBatchBytes = maxBatchBytes;
+        _maxBatchDelay = maxDelayMillis;
+    }
+
+    /**
+     * Negotiate the length-prefixed framing at LOGIN, see {@link BinaryFraming}
+     *
+     * Requires a server that supports it. Takes effect on the next connection.
+     */
+    public void setBinaryFraming(boolean binary) {
+        _binaryFraming = binary;
+    }
+
+    /**
+     * Negotiate no-ack mode right after LOGIN, see {@link SSMPRequest.Type#NOACK}
+     *
+     * UCAST, MCAST and BCAST requests are then to be sent with {@link #send}: successes are not
+     * acknowledged and failures are reported to the given listener, by sequence number. Servers
+     * that do not support it keep responding to every request, which {@link #send} handles
+     * transparently. Takes effect on the next connection.
+     */
+    public void setNoAck(@Nullable NackListener l) {
+        _nackListener = l;
+    }
+
+    /**
+     * Coalesce concurrent calls to {@link #request(SSMPRequest)} into batches
+     *
+     * Whichever caller finds no batch in progress writes every request queued so far, including
+     * those queued by other callers in the meantime, see {@link #batch}. Requests are never
+     * held back waiting for company: an uncontended caller still writes right away.
+     */
+    public void setAutoBatching(boolean autoBatching) {
+        _autoBatching = autoBatching;
+    }
+
+    /**
+     * Fail requests that get no response within the given delay, 0 to wait forever
+     *
+     * Futures fail, and callbacks are called, with a {@link TimeoutException}.
+     * A late response is dropped. Requests sent with {@link #send} have no deadline. A server that
+     * leaves more than {@link #MAX_TIMED_OUT} timed out requests unanswered is deemed stuck, and the connection is
+     * closed. Takes effect on the next connection.
+     */
+    public void setRequestTimeout(long millis) {
+        _requestTimeout = millis;
+    }
+
+    /**
+     * Bound the number of requests awaiting a response, 0 for no bound
+     *
+     * Requests past the bound are held back until responses come in, up to maxQueued of them.
+     * Past that, requests fail right away with a
+     * {@link RejectedExecutionException} and {@link #send} returns -1, which
+     * gives callers backpressure instead of an ever growing backlog on a slow server. In no-ack
+     * mode, {@link #send} instead fails when the socket is not writable. Takes effect on the next
+     * connection.
+     */
+    public void setMaxInFlight(int maxInFlight, int maxQueued) {
+        _maxInFlight = maxInFlight;
+        _maxQueued = maxQueued;
+    }
+
+    /**
+     * Reconnect automatically, with exponential backoff, after a disconnection or a failed
+     * connection attempt, 0 to disable
+     *
+     * Each delay is drawn uniformly at random up to a cap that starts at minDelayMillis and
+     * doubles with every failed attempt, up to maxDelayMillis, so that clients dropped at the
+     * same time spread their reconnections instead of stampeding the server.
+     *
+     * Successful subscriptions are remembered and restored in a single batch pipelined right
+     * behind LOGIN, see {@link #batch}. Applications that also resubscribe from
+     * {@link ConnectionListener#connected} get 409 CONFLICT for topics already restored, which
+     * is to be treated as success. Subscriptions are only remembered while auto-reconnect is
+     * enabled, and forgotten on {@link #disconnect}.
+     *
+     * Reconnection stops on {@link #disconnect}, and when the server rejects LOGIN, since
+     * retrying with the same credentials would be rejected again.
+     */
+    public void setAutoReconnect(long minDelayMillis, long maxDelayMillis) {
+        _reconnectMin = minDelayMillis;
+        _reconnectMax = Math.max(minDelayMillis, maxDelayMillis);
+    }
+
+    public void setRecoveryListener(@Nullable RecoveryListener l) {
+        _recoveryListener = l;
+    }
+
+    public WriteCoalescer.Stats getWriteStats() {
+        return _writeStats;
+    }
+
+    public RequestStats getRequestStats() {
+        return _requestStats;
+    }
+
     public void connect(SSMPIdentifier id, SSMPIdentifier scheme, String cred, ConnectionListener l) {
-        if (_channel.get() != null) throw new IllegalStateException();
+        int session;
+        synchronized (this) {
+            if (_active) throw new IllegalStateException();
+            _active = true;
+            session = ++_session;
+            _attempts = 0;
+            _down = 0;
+            _subscriptions.clear();
+        }
+        connect(session, SSMPRequest.login(id, scheme, cred), l);
+    }
+
+    private void connect(int session, SSMPRequest login, ConnectionListener l) {
         L.info("connecting {}", _addr);
         ChannelFuture cf = _bootstrap.connect(new InetSocketAddress(_addr.getHostName(), _addr.getPort()));
         cf.addListener(f -> {
             if (f.isSuccess()) {
                 L.info("connected");
-                _channel.set(f.getChannel());
-                Futures.addCallback(request(SSMPRequest.login(id, scheme, cred)),
-                        new FutureCallback<SSMPResponse>() {
+                Channel c = f.getChannel();
+                synchronized (this) {
+                    if (session != _session) {
+                        c.close();
+                        return;
+                    }
+                    _channel.set(c);
+                }
+                // bypass auto-batching: nothing can slip in between
+                SettableFuture<SSMPResponse> lf = SettableFuture.create();
+                c.write(new Message(login, lf));
+                ListenableFuture<List<SSMPResponse>> restored = restore(c);
+                Futures.addCallback(lf, new FutureCallback<SSMPResponse>() {
                     @Override
                     public void onSuccess(SSMPResponse r) {
                         if (r.code != SSMPResponse.OK) {
                             L.warn("login failure {}", r.code);
-                            f.getChannel().close();
+                            rejected(session);
+                            c.close();
                             return;
                         }
                         L.info("logged in");
+                        loggedIn(restored);
                         l.connected();
                     }
 
                     @Override
                     public void onFailure(Throwable t) {
-                        f.getChannel().close();
+                        c.close();
                     }
                 }, MoreExecutors.sameThreadExecutor());
             } else {
@@ -91,12 +306,105 @@ public class SSMPClient {
         });
         cf.getChannel().getCloseFuture().addListener(f -> {
             L.info("disconnected");
-            _channel.set(null);
+            _channel.compareAndSet(f.getChannel(), null);
+            // decided first, so that the listener may connect anew when not retrying
+            boolean retry = retrying(session);
             l.disconnected();
+            if (retry) reconnect(session, login, l);
         });
     }
 
+    /**
+     * Resubscribe to every remembered topic, in a single batch
+     */
+    private ListenableFuture<List<SSMPResponse>> restore(Channel c) {
+        Collection<SSMPRequest> subscriptions = _subscriptions.values();
+        if (_reconnectMin <= 0 || subscriptions.isEmpty()) return Futures.immediateFuture(Collections.emptyList());
+        List<Message> m = new ArrayList<>();
+        List<ListenableFuture<SSMPResponse>> l = new ArrayList<>();
+        for (SSMPRequest r : subscriptions) {
+            SettableFuture<SSMPResponse> f = SettableFuture.create();
+            m.add(new Message(r, f));
+            l.add(f);
+        }
+        L.info("restoring {} subscriptions", m.size());
+        c.write(new Batch(m.toArray(new Message[m.size()])));
+        return Futures.successfulAsList(l);
+    }
+
+    private void loggedIn(ListenableFuture<List<SSMPResponse>> restored) {
+        long down;
+        int attempts;
+        synchronized (this) {
+            down = _down;
+            attempts = _attempts;
+            _down = 0;
+            _attempts = 0;
+        }
+        RecoveryListener rl = _recoveryListener;
+        if (down == 0 || rl == null) return;
+        Futures.addCallback(restored, new FutureCallback<List<SSMPResponse>>() {
+            @Override
+            public void onSuccess(List<SSMPResponse> l) {
+                int n = 0;
+                for (SSMPResponse r : l) {
+                    // failed requests are left null by successfulAsList
+                    if (r != null && (r.code == SSMPResponse.OK || r.code == SSMPResponse.CONFLICT)) ++n;
+                }
+                if (n < l.size()) L.warn("failed to restore {} subscriptions", l.size() - n);
+                rl.recovered(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - down), attempts, n);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {}
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    // the server rejected the credentials: do not retry
+    private synchronized void rejected(int session) {
+        if (session == _session) _active = false;
+    }
+
+    private synchronized boolean retrying(int session) {
+        if (session != _session || !_active) return false;
+        if (_reconnectMin <= 0) _active = false;
+        return _active;
+    }
+
+    private void reconnect(int session, SSMPRequest login, ConnectionListener l) {
+        long min = _reconnectMin;
+        synchronized (this) {
+            // the listener may have called disconnect() or setAutoReconnect() meanwhile
+            if (session != _session || !_active) return;
+            if (min <= 0) {
+                _active = false;
+                return;
+            }
+            if (_down == 0) _down = System.nanoTime();
+            long cap = Math.min(_reconnectMax, min << Math.min(_attempts, 30));
+            long delay = 1 + ThreadLocalRandom.current().nextLong(cap);
+            ++_attempts;
+            L.info("reconnecting in {}ms", delay);
+            _retry = _timer.newTimeout(t -> {
+                synchronized (this) {
+                    if (session != _session || !_active) return;
+                    _retry = null;
+                }
+                connect(session, login, l);
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
     public void disconnect() {
+        Timeout t;
+        synchronized (this) {
+            ++_session;
+            _active = false;
+            _subscriptions.clear();
+            t = _retry;
+            _retry = null;
+        }
+        if (t != null) t.cancel();
         Channel c = _channel.get();
         if (c != null) c.close().awaitUninterruptibly();
     }
@@ -110,8 +418,21 @@ public class SSMPClient {
         }
     }
 
+    static class Batch {
+        final Message[] m;
+        Batch(Message[] m) {
+            this.m = m;
+        }
+    }
+
     public ListenableFuture<SSMPResponse> request(SSMPRequest r) {
         SettableFuture<SSMPResponse> f = SettableFuture.create();
+        remember(r, f);
+        if (_autoBatching) {
+            _pending.add(new Message(r, f));
+            flushPending();
+            return f;
+        }
         Channel c = _channel.get();
         if (c == null) {
             f.setException(new ClosedChannelException());
@@ -121,24 +442,271 @@ public class SSMPClient {
         return f;
     }
 
+    /**
+     * Send a request, with a callback instead of a future
+     *
+     * Lighter than {@link #request(SSMPRequest)}: no future, no intermediate message and no
+     * per-request buffer growth. The callback is invoked from the I/O thread, or from the
+     * calling thread if the request fails right away.
+     */
+    public void request(SSMPRequest r, FutureCallback<SSMPResponse> cb) {
+        if (remembering(r)) cb = new Remember(r, cb);
+        Channel c = _channel.get();
+        ChannelHandlerContext ctx = c != null ? c.getPipeline().getContext(Dispatcher.class) : null;
+        if (ctx == null) {
+            cb.onFailure(new ClosedChannelException());
+            return;
+        }
+        ((Dispatcher)ctx.getHandler()).send(ctx, Channels.succeededFuture(c), r, cb);
+    }
+
+    /**
+     * Send a UCAST, MCAST or BCAST without waiting for its response, see {@link #setNoAck}
+     *
+     * Sent requests are numbered from 1 on each connection. Failures are reported to the
+     * {@link NackListener} with that number. Requests lost to a disconnection are not reported.
+     *
+     * @return sequence number of the request, -1 if not connected or past the in-flight bound,
+     * see {@link #setMaxInFlight}
+     */
+    public long send(SSMPRequest r) {
+        if (!Dispatcher.isPublish(r.type)) throw new IllegalArgumentException();
+        Channel c = _channel.get();
+        ChannelHandlerContext ctx = c != null ? c.getPipeline().getContext(Dispatcher.class) : null;
+        if (ctx == null) return -1;
+        return ((Dispatcher)ctx.getHandler()).publish(ctx, r);
+    }
+
+    /**
+     * Send several requests at once
+     *
+     * The requests are encoded into a single buffer, written with a single write and answered
+     * in order.
+     *
+     * @return one future per request, in request order
+     */
+    public List<ListenableFuture<SSMPResponse>> batch(Collection<SSMPRequest> requests) {
+        Message[] m = new Message[requests.size()];
+        List<ListenableFuture<SSMPResponse>> l = new ArrayList<>(m.length);
+        int i = 0;
+        for (SSMPRequest r : requests) {
+            SettableFuture<SSMPResponse> f = SettableFuture.create();
+            remember(r, f);
+            m[i++] = new Message(r, f);
+            l.add(f);
+        }
+        write(m);
+        return l;
+    }
+
+    private static boolean isSubscription(SSMPRequest.Type t) {
+        return t == SSMPRequest.Type.SUBSCRIBE || t == SSMPRequest.Type.UNSUBSCRIBE;
+    }
+
+    private boolean remembering(SSMPRequest r) {
+        return _reconnectMin > 0 && isSubscription(r.type);
+    }
+
+    private void remember(SSMPRequest r, ListenableFuture<SSMPResponse> f) {
+        if (remembering(r)) {
+            Futures.addCallback(f, new Remember(r, null), MoreExecutors.sameThreadExecutor());
+        }
+    }
+
+    /**
+     * Keep track of subscriptions, to restore them on reconnection
+     *
+     * Completions come in request order, so the last of several SUBSCRIBE and UNSUBSCRIBE to a
+     * topic wins. An UNSUBSCRIBE is honored even if it fails: it must not be undone by the next
+     * reconnection. Completions of a previous session are ignored.
+     */
+    private class Remember implements FutureCallback<SSMPResponse> {
+        private final SSMPRequest _r;
+        private final @Nullable FutureCallback<SSMPResponse> _cb;
+        private final int _s = _session;
+
+        Remember(SSMPRequest r, @Nullable FutureCallback<SSMPResponse> cb) {
+            _r = r;
+            _cb = cb;
+        }
+
+        @Override
+        public void onSuccess(SSMPResponse res) {
+            if (_s == _session) {
+                if (_r.type == SSMPRequest.Type.UNSUBSCRIBE) {
+                    _subscriptions.remove(_r.to);
+                } else if (res.code == SSMPResponse.OK) {
+                    _subscriptions.put(_r.to, _r);
+                }
+            }
+            if (_cb != null) _cb.onSuccess(res);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            if (_s == _session && _r.type == SSMPRequest.Type.UNSUBSCRIBE) {
+                _subscriptions.remove(_r.to);
+            }
+            if (_cb != null) _cb.onFailure(t);
+        }
+    }
+
+    private void write(Message[] m) {
+        Channel c = _channel.get();
+        if (c == null) {
+            for (Message msg : m) msg.f.setException(new ClosedChannelException());
+        } else {
+            c.write(new Batch(m));
+        }
+    }
+
+    private void flushPending() {
+        // re-checked on the way out: requests queued during a flush may have been left behind by
+        // callers that saw it in progress
+        while (!_pending.isEmpty() && _flushing.compareAndSet(false, true)) {
+            try {
+                List<Message> l = new ArrayList<>();
+                Message m;
+                while ((m = _pending.poll()) != null) l.add(m);
+                if (!l.isEmpty()) write(l.toArray(new Message[l.size()]));
+            } finally {
+                _flushing.set(false);
+            }
+        }
+    }
+
     private static class Dispatcher extends SimpleChannelHandler {
+        private final static int SLAB_SIZE = 16 * 1024;
+        // left in the ring in place of a request that timed out, see sweep
+        private final static Object TIMED_OUT = new Object();
+
         private final EventHandler _handler;
-        private final Queue<SettableFuture<SSMPResponse>> _responses = new ConcurrentLinkedQueue<>();
+        private final boolean _binary;
+        private final @Nullable NackListener _nack;
+        private final Timer _timer;
+        private final long _timeoutNanos;
+        private final int _maxInFlight;
+        private final int _maxQueued;
+        private final RequestStats _stats;
+
+        // Pending completions, in request order: SettableFuture, FutureCallback, Sent,
+        // Negotiation or TIMED_OUT, with their deadlines alongside. Growable array rings instead
+        // of a linked queue, so a warm ring allocates nothing per request. Guarded by this, as
+        // is the rest of the mutable state.
+        private Object[] _ring = new Object[64];
+        private long[] _deadlines = new long[64];
+        private int _head;
+        private int _count;
+        // TIMED_OUT entries in the ring
+        private int _timedOut;
+        private boolean _closed;
+        private @Nullable Channel _channel;
+
+        // Requests are encoded back to back into a shared slab and written as slices of it:
+        // written bytes are never touched again, and the slab is reclaimed with its last slice.
+        private ChannelBuffer _slab = ChannelBuffers.EMPTY_BUFFER;
 
-        Dispatcher(EventHandler handler) { _handler = handler; }
+        // no-ack mode, see SSMPRequest.Type#NOACK
+        private boolean _noAck;
+        // from a NOACK to its response: whether publishes will be acknowledged is unknown
+        private boolean _negotiating;
+        // last sequence number handed out by publish
+        private long _seq;
+
+        // Requests encoded but held back, in order, during a negotiation or while the in-flight
+        // window is full.
+        private final ArrayDeque<Held> _held = new ArrayDeque<>();
+
+        // leading ring entries already past their deadline or without one, see sweep
+        private int _swept;
+        private @Nullable Timeout _sweep;
+
+        // completion of a request sent with publish, when acknowledged
+        private static class Sent {
+            final long seq;
+            Sent(long seq) {
+                this.seq = seq;
+            }
+        }
+
+        // completion of a NOACK request
+        private static class Negotiation {
+            final @Nullable Object completion;
+            Negotiation(@Nullable Object completion) {
+                this.completion = completion;
+            }
+        }
+
+        private static class Held {
+            final ChannelBuffer frame;
+            final ChannelFuture future;
+            final @Nullable Object completion;
+            final long deadline;
+            // UCAST, MCAST or BCAST not sent with publish
+            final boolean publish;
+            Held(ChannelBuffer frame, ChannelFuture future, @Nullable Object completion,
+                 long deadline, boolean publish) {
+                this.frame = frame;
+                this.future = future;
+                this.completion = completion;
+                this.deadline = deadline;
+                this.publish = publish;
+            }
+        }
+
+        Dispatcher(EventHandler handler, boolean binary, @Nullable NackListener nack, Timer timer,
+                   long timeoutMillis, int maxInFlight, int maxQueued, RequestStats stats) {
+            _handler = handler;
+            _binary = binary;
+            _nack = nack;
+            _timer = timer;
+            _timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            _maxInFlight = maxInFlight;
+            _maxQueued = maxQueued;
+            _stats = stats;
+        }
+
+        static boolean isPublish(SSMPRequest.Type t) {
+            return t == SSMPRequest.Type.UCAST || t == SSMPRequest.Type.MCAST
+                    || t == SSMPRequest.Type.BCAST;
+        }
+
+        @Override
+        public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            synchronized (this) {
+                _channel = e.getChannel();
+            }
+            super.channelOpen(ctx, e);
+        }
 
         @Override
         public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) {
-            SettableFuture<SSMPResponse> f;
-            while ((f = _responses.poll()) != null) {
-                f.setException(new ClosedChannelException());
+            List<Object> pending = new ArrayList<>();
+            synchronized (this) {
+                _closed = true;
+                if (_sweep != null) _sweep.cancel();
+                _sweep = null;
+                for (int i = 0; i < _count; ++i) {
+                    pending.add(_ring[(_head + i) & (_ring.length - 1)]);
+                }
+                Arrays.fill(_ring, null);
+                _stats._inFlight.addAndGet(-_count);
+                _count = 0;
+                _timedOut = 0;
+                _swept = 0;
+                for (Held h : _held) pending.add(h.completion);
+                _stats._queued.addAndGet(-_held.size());
+                _held.clear();
             }
+            for (Object o : pending) fail(o, new ClosedChannelException());
         }
 
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
-            if (!(e instanceof ClosedChannelException)) {
-                L.warn("uncaught exception {}", e.getCause());
+            Throwable t = e.getCause();
+            // failed connection attempts are reported by SSMPClient#connect
+            if (!(t instanceof ClosedChannelException || t instanceof ConnectException)) {
+                L.warn("uncaught exception {}", t);
             }
             ctx.getChannel().close();
         }
@@ -153,51 +721,420 @@ public class SSMPClient {
                             ? ev.payload : (ev.payload != null
                                     ? new String(ev.payload, StandardCharsets.UTF_8) : null));
                 }
-                _handler.eventReceived(ev);
+                if (ev.type == SSMPEvent.Type.NACK) {
+                    nack(ev);
+                } else {
+                    _handler.eventReceived(ev);
+                }
             } else if (o instanceof SSMPResponse) {
                 SSMPResponse r = (SSMPResponse) o;
                 L.debug("recv response {}", r.code);
-                SettableFuture<SSMPResponse> f = _responses.remove();
-                f.set(r);
+                Object c;
+                List<Object> rejected;
+                synchronized (this) {
+                    if (_count == 0) throw new IllegalStateException("unexpected response");
+                    c = _ring[_head];
+                    _ring[_head] = null;
+                    _head = (_head + 1) & (_ring.length - 1);
+                    --_count;
+                    if (_swept > 0) --_swept;
+                    if (c == TIMED_OUT) --_timedOut;
+                    _stats._inFlight.decrementAndGet();
+                    if (c instanceof Negotiation) {
+                        if (r.code != SSMPResponse.OK) L.info("no-ack mode not supported {}", r.code);
+                        _noAck = r.code == SSMPResponse.OK;
+                        _negotiating = false;
+                    }
+                    // room in the window, or the end of a negotiation
+                    rejected = release(ctx);
+                }
+                if (c instanceof Negotiation) c = ((Negotiation)c).completion;
+                complete(c, r);
+                for (Object x : rejected) {
+                    fail(x, new IllegalStateException("no-ack connection, see SSMPClient#send"));
+                }
             } else {
                 super.messageReceived(ctx, me);
             }
         }
 
+        private void nack(SSMPEvent ev) {
+            String s = ev.payload != null ? new String(ev.payload, StandardCharsets.US_ASCII) : "";
+            int sp = s.indexOf(' ');
+            if (sp == -1) throw new IllegalArgumentException("invalid nack " + s);
+            long seq = Long.parseLong(s.substring(0, sp));
+            int code = Integer.parseInt(s.substring(sp + 1));
+            L.debug("recv nack {} {}", seq, code);
+            failed(seq, code);
+        }
+
+        private void failed(long seq, int code) {
+            if (_nack == null) return;
+            try {
+                _nack.failed(seq, code);
+            } catch (RuntimeException e) {
+                L.warn("nack listener failed", e);
+            }
+        }
+
         @Override
         public void writeRequested(ChannelHandlerContext ctx, MessageEvent me) {
             Object o = me.getMessage();
             if (o instanceof SSMPClient.Message) {
                 SSMPClient.Message m = (SSMPClient.Message) o;
-                if (!ctx.getChannel().isConnected()) {
-                    m.f.setException(new ClosedChannelException());
+                send(ctx, me.getFuture(), m.r, m.f);
+            } else if (o instanceof SSMPClient.Batch) {
+                writeBatch(ctx, me, ((SSMPClient.Batch)o).m);
+            } else {
+                ctx.sendDownstream(me);
+            }
+        }
+
+        /**
+         * Encode, queue the completion and write, see {@link SSMPClient#request(SSMPRequest,
+         * FutureCallback)}
+         *
+         * @param completion SettableFuture or FutureCallback
+         */
+        void send(ChannelHandlerContext ctx, ChannelFuture future, SSMPRequest r,
+                  Object completion) {
+            Throwable failure;
+            synchronized (this) {
+                if (!isOpen(ctx)) {
+                    failure = new ClosedChannelException();
+                } else if (_noAck && isPublish(r.type)) {
+                    failure = new IllegalStateException("no-ack connection, see SSMPClient#send");
+                } else if (r.type != SSMPRequest.Type.LOGIN && mustHold(true)
+                        && _maxInFlight > 0 && _held.size() >= _maxQueued) {
+                    _stats._rejected.incrementAndGet();
+                    failure = new RejectedExecutionException("too many requests in flight");
+                } else {
+                    failure = encodeAndWrite(ctx, future, r, completion, deadline());
+                    if (failure == null && r.type == SSMPRequest.Type.LOGIN && _nack != null) {
+                        // pipelined: nothing can slip in between
+                        encodeAndWrite(ctx, Channels.succeededFuture(ctx.getChannel()),
+                                SSMPRequest.noAck(), null, 0);
+                    }
+                }
+            }
+            if (failure != null) fail(completion, failure);
+        }
+
+        /**
+         * @return sequence number of the request, -1 if the channel is closed or the request is
+         * rejected by the in-flight limit
+         */
+        long publish(ChannelHandlerContext ctx, SSMPRequest r) {
+            synchronized (this) {
+                if (!isOpen(ctx)) return -1;
+                // unacknowledged requests only count against the socket buffer
+                if (_maxInFlight > 0 && (mustHold(!_noAck) && _held.size() >= _maxQueued
+                        || _noAck && !ctx.getChannel().isWritable())) {
+                    _stats._rejected.incrementAndGet();
+                    return -1;
+                }
+                long seq = ++_seq;
+                // the completion is only needed if the request is acknowledged, or may be
+                IllegalArgumentException e = encodeAndWrite(ctx,
+                        Channels.succeededFuture(ctx.getChannel()), r,
+                        _noAck ? null : new Sent(seq), 0);
+                if (e != null) {
+                    // never sent, the server must not count it either
+                    --_seq;
+                    throw e;
+                }
+                return seq;
+            }
+        }
+
+        // must hold this
+        private boolean isOpen(ChannelHandlerContext ctx) {
+            // Netty completes the close future before the channel state reflects the closing,
+            // so a caller returning from Channel#close may still see a connected channel
+            Channel c = ctx.getChannel();
+            return !_closed && c.isConnected() && !c.getCloseFuture().isDone();
+        }
+
+        // must hold this
+        private long deadline() {
+            return _timeoutNanos > 0 ? System.nanoTime() + _timeoutNanos : 0;
+        }
+
+        // must hold this: whether a request must wait behind the negotiation or the window
+        private boolean mustHold(boolean tracked) {
+            return _negotiating || !_held.isEmpty()
+                    || tracked && _maxInFlight > 0 && _count >= _maxInFlight;
+        }
+
+        // must hold this
+        private @Nullable IllegalArgumentException encodeAndWrite(ChannelHandlerContext ctx,
+                ChannelFuture future, SSMPRequest r, @Nullable Object completion, long deadline) {
+            int start = reserve(_binary ? BinaryFraming.maxLength(r) : maxTextLength(r));
+            try {
+                if (_binary) {
+                    BinaryFraming.request(r, _slab);
+                } else {
+                    text(r, _slab);
+                }
+            } catch (IllegalArgumentException e) {
+                // drop whatever part of the request was encoded
+                _slab.writerIndex(start);
+                return e;
+            }
+            ChannelBuffer frame = _slab.slice(start, _slab.writerIndex() - start);
+            if (r.type == SSMPRequest.Type.NOACK) {
+                write(ctx, future, frame, new Negotiation(completion), 0);
+                _negotiating = true;
+            } else if (r.type != SSMPRequest.Type.LOGIN && mustHold(completion != null)) {
+                _held.add(new Held(frame, future, completion, deadline,
+                        isPublish(r.type) && !(completion instanceof Sent)));
+                _stats._queued.incrementAndGet();
+                if (deadline != 0) schedule(deadline);
+            } else {
+                write(ctx, future, frame, completion, deadline);
+            }
+            return null;
+        }
+
+        // must hold this: responses are matched in order, queue and write atomically
+        private void write(ChannelHandlerContext ctx, ChannelFuture future, ChannelBuffer frame,
+                           @Nullable Object completion, long deadline) {
+            if (completion != null) push(completion, deadline);
+            ctx.sendDownstream(new DownstreamMessageEvent(ctx.getChannel(), future, frame, null));
+        }
+
+        /**
+         * Write held requests, as far as the negotiation and the window allow
+         *
+         * Must hold this.
+         *
+         * @return completions of requests that turned out not to be allowed in no-ack mode
+         */
+        private List<Object> release(ChannelHandlerContext ctx) {
+            List<Object> rejected = Collections.emptyList();
+            while (!_negotiating && !_held.isEmpty()) {
+                Held h = _held.peekFirst();
+                if (_noAck && h.publish) {
+                    if (rejected.isEmpty()) rejected = new ArrayList<>();
+                    rejected.add(h.completion);
+                } else {
+                    Object c = _noAck && h.completion instanceof Sent ? null : h.completion;
+                    if (c != null && _maxInFlight > 0 && _count >= _maxInFlight) break;
+                    write(ctx, h.future, h.frame, c, h.deadline);
+                }
+                _held.pollFirst();
+                _stats._queued.decrementAndGet();
+            }
+            return rejected;
+        }
+
+        private void writeBatch(ChannelHandlerContext ctx, MessageEvent me, Message[] batch) {
+            boolean plain;
+            synchronized (this) {
+                plain = !_noAck && !mustHold(true)
+                        && (_maxInFlight == 0 || _count + batch.length <= _maxInFlight);
+            }
+            for (Message m : batch) {
+                plain &= m.r.type != SSMPRequest.Type.LOGIN && m.r.type != SSMPRequest.Type.NOACK;
+            }
+            if (!plain) {
+                writeEach(ctx, me, batch);
+                return;
+            }
+            int n = 0;
+            for (Message m : batch) n += _binary ? BinaryFraming.maxLength(m.r) : maxTextLength(m.r);
+            ChannelBuffer b = ChannelBuffers.buffer(n);
+            List<SettableFuture<SSMPResponse>> sent = new ArrayList<>(batch.length);
+            for (Message m : batch) {
+                int mark = b.writerIndex();
+                try {
+                    if (_binary) {
+                        BinaryFraming.request(m.r, b);
+                    } else {
+                        text(m.r, b);
+                    }
+                    sent.add(m.f);
+                } catch (IllegalArgumentException e) {
+                    // only fail the offending request, drop whatever part of it was encoded
+                    b.writerIndex(mark);
+                    m.f.setException(e);
+                }
+            }
+            if (sent.isEmpty()) return;
+            synchronized (this) {
+                if (!isOpen(ctx)) {
+                    plain = false;
+                } else if (!_noAck && !mustHold(true)
+                        && (_maxInFlight == 0 || _count + sent.size() <= _maxInFlight)) {
+                    long deadline = deadline();
+                    for (SettableFuture<SSMPResponse> f : sent) push(f, deadline);
+                    ctx.sendDownstream(new DownstreamMessageEvent(me.getChannel(), me.getFuture(), b, null));
                     return;
                 }
-                _responses.add(m.f);
+            }
+            if (plain) {
+                // the window filled up or a NOACK slipped in: start over, one at a time
+                writeEach(ctx, me, batch);
+                return;
+            }
+            for (SettableFuture<SSMPResponse> f : sent) f.setException(new ClosedChannelException());
+        }
+
+        // no-ack mode is rare enough to not warrant single-buffer batches
+        private void writeEach(ChannelHandlerContext ctx, MessageEvent me, Message[] batch) {
+            for (Message m : batch) {
+                if (!m.f.isDone()) send(ctx, Channels.succeededFuture(ctx.getChannel()), m.r, m.f);
+            }
+            me.getFuture().setSuccess();
+        }
+
+        // must hold this
+        private int reserve(int n) {
+            if (_slab.writableBytes() < n) _slab = ChannelBuffers.buffer(Math.max(SLAB_SIZE, n));
+            return _slab.writerIndex();
+        }
 
-                ChannelBuffer b = ChannelBuffers.dynamicBuffer();
-                b.writeBytes(m.r.type._s);
-                if (m.r.to != null) {
-                    b.writeByte(' ');
-                    b.writeBytes(m.r.to.getBytes());
+        // must hold this
+        private void push(Object completion, long deadline) {
+            if (_count == _ring.length) {
+                Object[] ring = new Object[2 * _ring.length];
+                long[] deadlines = new long[2 * _ring.length];
+                for (int i = 0; i < _count; ++i) {
+                    ring[i] = _ring[(_head + i) & (_ring.length - 1)];
+                    deadlines[i] = _deadlines[(_head + i) & (_ring.length - 1)];
                 }
-                if (m.r.payload != null && m.r.payload.length > 0) {
-                    if (m.r.payload.length > SSMPDecoder.MAX_PAYLOAD_LENGTH) {
-                        throw new IllegalArgumentException("text payload too large");
+                _ring = ring;
+                _deadlines = deadlines;
+                _head = 0;
+            }
+            int i = (_head + _count) & (_ring.length - 1);
+            _ring[i] = completion;
+            _deadlines[i] = deadline;
+            ++_count;
+            _stats._inFlight.incrementAndGet();
+            if (deadline != 0) schedule(deadline);
+        }
+
+        // must hold this
+        private void schedule(long deadline) {
+            if (_sweep != null || _closed) return;
+            _sweep = _timer.newTimeout(t -> sweep(), Math.max(0, deadline - System.nanoTime()),
+                    TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Fail the requests past their deadline
+         *
+         * Responses are matched in order, so a request already written stays in the ring as a
+         * tombstone that swallows its eventual response, and keeps counting against the window.
+         * Requests still held back are dropped. Deadlines grow with the ring, so each sweep
+         * picks up where the previous one stopped.
+         *
+         * Without a window, tombstones would pile up for as long as the server stays silent, so
+         * the channel is closed once there are more than {@link #MAX_TIMED_OUT} of them, which
+         * fails every pending request.
+         */
+        private void sweep() {
+            List<Object> expired = new ArrayList<>();
+            @Nullable Channel stuck = null;
+            synchronized (this) {
+                _sweep = null;
+                if (_closed) return;
+                long now = System.nanoTime();
+                long next = 0;
+                int mask = _ring.length - 1;
+                for (; _swept < _count; ++_swept) {
+                    int i = (_head + _swept) & mask;
+                    Object c = _ring[i];
+                    // NOACK is exempt: the mode of the connection depends on its response
+                    if (_deadlines[i] == 0 || c == TIMED_OUT || c instanceof Negotiation) continue;
+                    if (_deadlines[i] - now > 0) {
+                        next = _deadlines[i];
+                        break;
                     }
-                    b.writeByte(' ');
-                    if (m.r.binary) {
-                        int sz = m.r.payload.length - 1;
-                        b.writeByte(sz >> 8);
-                        b.writeByte(sz & 0xff);
+                    _ring[i] = TIMED_OUT;
+                    ++_timedOut;
+                    expired.add(c);
+                }
+                if (_timedOut > MAX_TIMED_OUT) stuck = _channel;
+                Iterator<Held> it = _held.iterator();
+                while (it.hasNext()) {
+                    Held h = it.next();
+                    if (h.deadline == 0) continue;
+                    if (h.deadline - now > 0) {
+                        if (next == 0 || h.deadline - next < 0) next = h.deadline;
+                        break;
                     }
-                    b.writeBytes(m.r.payload);
+                    it.remove();
+                    _stats._queued.decrementAndGet();
+                    expired.add(h.completion);
                 }
-                b.writeByte('\n');
-                ctx.sendDownstream(new DownstreamMessageEvent(me.getChannel(), me.getFuture(), b, null));
-            } else {
-                ctx.sendDownstream(me);
+                if (next != 0) schedule(next);
+            }
+            _stats._timeouts.addAndGet(expired.size());
+            for (Object c : expired) fail(c, new TimeoutException());
+            if (stuck != null) {
+                L.info("close unresponsive connection");
+                stuck.close();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void complete(@Nullable Object completion, SSMPResponse r) {
+            if (completion instanceof SettableFuture) {
+                ((SettableFuture<SSMPResponse>)completion).set(r);
+            } else if (completion instanceof Sent) {
+                if (r.code != SSMPResponse.OK) failed(((Sent)completion).seq, r.code);
+            } else if (completion instanceof FutureCallback) {
+                try {
+                    ((FutureCallback<SSMPResponse>)completion).onSuccess(r);
+                } catch (RuntimeException e) {
+                    L.warn("response callback failed", e);
+                }
+            }
+            // nothing left to complete for requests that timed out
+        }
+
+        @SuppressWarnings("unchecked")
+        private static void fail(@Nullable Object completion, Throwable t) {
+            if (completion instanceof Negotiation) completion = ((Negotiation)completion).completion;
+            if (completion instanceof SettableFuture) {
+                ((SettableFuture<SSMPResponse>)completion).setException(t);
+            } else if (completion instanceof FutureCallback) {
+                try {
+                    ((FutureCallback<SSMPResponse>)completion).onFailure(t);
+                } catch (RuntimeException e) {
+                    L.warn("response callback failed", e);
+                }
+            }
+            // requests sent with publish are fire-and-forget
+        }
+
+        private static int maxTextLength(SSMPRequest r) {
+            // verb, destination, payload with its length prefix, separators
+            return r.type._s.length + (r.to != null ? r.to.getBytes().length : 0)
+                    + (r.payload != null ? r.payload.length + 2 : 0) + 3;
+        }
+
+        private static void text(SSMPRequest r, ChannelBuffer b) {
+            b.writeBytes(r.type._s);
+            if (r.to != null) {
+                b.writeByte(' ');
+                b.writeBytes(r.to.getBytes());
+            }
+            if (r.payload != null && r.payload.length > 0) {
+                if (r.payload.length > SSMPDecoder.MAX_PAYLOAD_LENGTH) {
+                    throw new IllegalArgumentException("text payload too large");
+                }
+                b.writeByte(' ');
+                if (r.binary) {
+                    int sz = r.payload.length - 1;
+                    b.writeByte(sz >> 8);
+                    b.writeByte(sz & 0xff);
+                }
+                b.writeBytes(r.payload);
             }
+            b.writeByte('\n');
         }
     }
 }
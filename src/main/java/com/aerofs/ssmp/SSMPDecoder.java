@@ -7,18 +7,179 @@ package com.aerofs.ssmp;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 
+import javax.annotation.Nullable;
 import java.io.EOFException;
 
+/**
+ * Resumable field scanner shared by the request and response decoders
+ *
+ * Fields are consumed as soon as they are complete, and the progress made on a partial field is
+ * remembered across calls, so a frame split over many reads is scanned exactly once. Lack of
+ * input is reported by return value, only malformed input throws.
+ *
+ * Every field is followed by a separator: a space if more fields follow, a newline at the end
+ * of the frame.
+ */
 public class SSMPDecoder {
     public static final int CODE_LENGTH = 3;
     public static final int MAX_VERB_LENGTH = 16;
     public static final int MAX_ID_LENGTH = 64;
     public static final int MAX_PAYLOAD_LENGTH = 1024;
 
+    public static final ByteSet VERB = new ByteSet(ByteSet.Range('A', 'Z'));
+
+    /**
+     * Returned by {@link #token} and {@link #code} when the field is not complete yet
+     */
+    static final int MORE = -1;
+
+    // bytes of the current field already scanned
+    private int _scanned;
+    private boolean _binary;
+
+    /**
+     * Scan a token made of bytes from {@code s}
+     *
+     * The token is not consumed, but its separator is guaranteed to be readable, see
+     * {@link #skip}.
+     *
+     * @return length of the token, or {@link #MORE}
+     */
+    int token(ChannelBuffer b, ByteSet s, int max) {
+        int start = b.readerIndex();
+        int end = Math.min(b.writerIndex(), start + max + 1);
+        int i = Swar.span(b, start + _scanned, end, s);
+        if (i == end) {
+            if (end == start + max + 1) throw new IllegalArgumentException();
+            _scanned = i - start;
+            return MORE;
+        }
+        byte c = b.getByte(i);
+        if (c != ' ' && c != '\n') throw new IllegalArgumentException();
+        int n = i - start;
+        if (n == 0) throw new IllegalArgumentException();
+        _scanned = 0;
+        return n;
+    }
+
+    /**
+     * Scan a three-digit response code
+     *
+     * The code is not consumed, but its separator is guaranteed to be readable, see
+     * {@link #skip}.
+     *
+     * @return the code, or {@link #MORE}
+     */
+    int code(ChannelBuffer b) {
+        if (b.readableBytes() < CODE_LENGTH + 1) return MORE;
+        int n = 0;
+        for (int i = 0; i < CODE_LENGTH; ++i) {
+            byte c = b.getByte(b.readerIndex() + i);
+            if (c < '0' || c > '9') throw new IllegalArgumentException();
+            n = 10 * n + (c - '0');
+        }
+        byte c = b.getByte(b.readerIndex() + CODE_LENGTH);
+        if (c != ' ' && c != '\n') throw new IllegalArgumentException();
+        return n;
+    }
+
+    /**
+     * Consume a field of {@code n} bytes and its separator
+     *
+     * @return true if more fields follow, false at the end of the frame
+     */
+    static boolean skip(ChannelBuffer b, int n) {
+        b.skipBytes(n);
+        return b.readByte() == ' ';
+    }
+
+    static SSMPIdentifier identifier(ChannelBuffer b, int n, @Nullable IdentifierTable t) {
+        if (t != null) return t.get(b, b.readerIndex(), n);
+        byte[] id = new byte[n];
+        b.getBytes(b.readerIndex(), id);
+        return new SSMPIdentifier(id);
+    }
+
+    /**
+     * Scan a payload, which is always the last field of a frame
+     *
+     * On success the payload and the trailing newline are consumed, and the returned buffer
+     * shares its content with {@code b}, which must therefore never be overwritten.
+     *
+     * @return the payload, or null if not complete yet
+     */
+    @Nullable ChannelBuffer payload(ChannelBuffer b) {
+        int start = b.readerIndex();
+        int n = b.readableBytes();
+        if (_scanned == 0) {
+            if (n < 1) return null;
+            byte c = b.getByte(start);
+            _binary = c >= 0 && c <= 3;
+        }
+        if (_binary) {
+            // stays non-zero until the payload is complete
+            _scanned = 1;
+            if (n < 2) return null;
+            int sz = 1 + ((int)b.getByte(start) << 8) + ((int)b.getByte(start + 1) & 0xff);
+            if (sz > MAX_PAYLOAD_LENGTH) throw new IllegalArgumentException();
+            if (n < 2 + sz + 1) return null;
+            if (b.getByte(start + 2 + sz) != '\n') throw new IllegalArgumentException();
+            _scanned = 0;
+            ChannelBuffer v = b.slice(start + 2, sz);
+            b.skipBytes(2 + sz + 1);
+            return v;
+        }
+        int end = start + Math.min(n, MAX_PAYLOAD_LENGTH + 1);
+        int i = Swar.indexOf(b, start + _scanned, end, (byte)'\n');
+        if (i == -1) {
+            if (n > MAX_PAYLOAD_LENGTH) throw new IllegalArgumentException();
+            _scanned = end - start;
+            return null;
+        }
+        int sz = i - start;
+        if (sz == 0 || sz > MAX_PAYLOAD_LENGTH) throw new IllegalArgumentException();
+        _scanned = 0;
+        ChannelBuffer v = b.slice(start, sz);
+        b.skipBytes(sz + 1);
+        return v;
+    }
+
+    /**
+     * @return whether the last payload returned by {@link #payload} was binary
+     */
+    boolean isBinary() {
+        return _binary;
+    }
+
+    /**
+     * Forget any partial field, e.g. after a parse error
+     */
+    void reset() {
+        _scanned = 0;
+    }
+
+    static byte[] bytes(ChannelBuffer b) {
+        byte[] v = new byte[b.readableBytes()];
+        b.getBytes(b.readerIndex(), v);
+        return v;
+    }
+
+    // Exception-driven helpers of the original decoders, kept for source compatibility. They
+    // throw EOFException on incomplete input, so a frame split over many reads is rescanned
+    // from the start on every read.
+
+    /**
+     * @deprecated use {@link SSMPRequestDecoder} or {@link SSMPResponseDecoder}
+     */
+    @Deprecated
     public static boolean atEnd(ChannelBuffer b) {
         return b.readable() && b.getByte(b.readerIndex()) == '\n';
     }
 
+    /**
+     * @deprecated use {@link SSMPRequestDecoder} or {@link SSMPResponseDecoder}
+     */
+    @Deprecated
     public static boolean next(ChannelBuffer b) throws EOFException {
         if (!b.readable()) throw new EOFException();
         byte c = b.readByte();
@@ -27,6 +188,10 @@ public class SSMPDecoder {
         return true;
     }
 
+    /**
+     * @deprecated use {@link SSMPResponseDecoder}
+     */
+    @Deprecated
     public static int readCode(ChannelBuffer b) throws EOFException {
         if (b.readableBytes() < 4) throw new EOFException();
         int n = 0;
@@ -41,6 +206,10 @@ public class SSMPDecoder {
         return n;
     }
 
+    /**
+     * @deprecated use {@link SSMPRequestDecoder} or {@link SSMPResponseDecoder}
+     */
+    @Deprecated
     public static byte[] read(ChannelBuffer b, ByteSet s, int max) throws EOFException {
         int n = 0;
         while (true) {
@@ -58,22 +227,36 @@ public class SSMPDecoder {
         }
     }
 
+    /**
+     * @deprecated use {@link SSMPRequestDecoder} or {@link SSMPResponseDecoder}
+     */
+    @Deprecated
     public static SSMPIdentifier readIdentifier(ChannelBuffer b) throws EOFException {
         return new SSMPIdentifier(read(b, SSMPIdentifier.ALLOWED, MAX_ID_LENGTH));
     }
 
-    public static final ByteSet VERB = new ByteSet(ByteSet.Range('A', 'Z'));
-
+    /**
+     * @deprecated use {@link SSMPRequestDecoder} or {@link SSMPResponseDecoder}
+     */
+    @Deprecated
     public static byte[] readVerb(ChannelBuffer b) throws EOFException {
         return read(b, VERB, MAX_VERB_LENGTH);
     }
 
+    /**
+     * @deprecated use {@link SSMPRequestDecoder} or {@link SSMPResponseDecoder}
+     */
+    @Deprecated
     public static boolean isBinaryPayload(ChannelBuffer b) throws EOFException {
         if (!b.readable()) return false;
         byte c = b.getByte(b.readerIndex());
         return c >= 0 && c <= 3;
     }
 
+    /**
+     * @deprecated use {@link SSMPRequestDecoder} or {@link SSMPResponseDecoder}
+     */
+    @Deprecated
     public static byte[] readPayload(ChannelBuffer b) throws EOFException {
         int n = b.readableBytes();
         if (n < 1) throw new EOFException();
@@ -82,7 +265,7 @@ public class SSMPDecoder {
             if (n < 2) throw new EOFException();
             int sz = 1 + ((int)c << 8) + ((int)b.getByte(b.readerIndex() + 1) & 0xff);
             if (sz > MAX_PAYLOAD_LENGTH) throw new IllegalArgumentException();
-            if (n < sz + 1) throw new EOFException();
+            if (n < 2 + sz + 1) throw new EOFException();
             if (b.getByte(b.readerIndex() + 2 + sz) != '\n') throw new IllegalArgumentException();
             byte[] v = new byte[sz];
             b.skipBytes(2);
@@ -101,6 +284,10 @@ public class SSMPDecoder {
         return v;
     }
 
+    /**
+     * @deprecated use {@link SSMPResponseDecoder}
+     */
+    @Deprecated
     public static void skipCompat(ChannelBuffer b) throws EOFException {
         try {
             readIdentifier(b);
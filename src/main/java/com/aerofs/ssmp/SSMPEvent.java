@@ -6,7 +6,7 @@
 package com.aerofs.ssmp;
 
 import com.google.common.base.Joiner;
-import com.google.common.collect.ImmutableMap;
+import org.jboss.netty.buffer.ChannelBuffer;
 
 import javax.annotation.Nullable;
 import java.nio.charset.StandardCharsets;
@@ -17,6 +17,7 @@ public class SSMPEvent {
     final static int FIELD_PAYLOAD = 2;
     final static int FIELD_OPTION = 6;
 
+    // the order is part of BinaryFraming: append only
     public enum Type {
         SUBSCRIBE("SUBSCRIBE", FIELD_TO | FIELD_OPTION),
         UNSUBSCRIBE("UNSUBSCRIBE", FIELD_TO),
@@ -25,22 +26,43 @@ public class SSMPEvent {
         BCAST("BCAST", FIELD_PAYLOAD),
         PING("PING", NO_FIELD),
         PONG("PONG", NO_FIELD),
+        /**
+         * Membership of a topic, sent to BATCHED_PRESENCE subscribers only
+         *
+         * The payload is a space-separated list of entries, each made of a one-character prefix
+         * followed by a member identifier: '+' for a member, '*' for a member subscribed with
+         * presence, '-' for a member that left. Entries are to be applied in order, and may
+         * include the recipient itself.
+         */
+        PRESENCE("PRESENCE", FIELD_TO | FIELD_PAYLOAD),
+        /**
+         * Failure of a request sent in no-ack mode, see {@link SSMPRequest.Type#NOACK}
+         *
+         * The payload is the sequence number of the request, counting from 1 the UCAST, MCAST
+         * and BCAST requests sent since NOACK, and the response code, separated by a space.
+         */
+        NACK("NACK", FIELD_PAYLOAD),
         ;
 
         final byte[] _s;
         final int _fields;
 
-        private final static ImmutableMap<String, Type> _m;
+        private final static Type[] VALUES = values();
+        private final static VerbTable VERBS;
         static {
-            ImmutableMap.Builder<String, Type> b = ImmutableMap.builder();
-            for (Type t : values()) {
-                b.put(t.name(), t);
+            byte[][] verbs = new byte[VALUES.length][];
+            for (Type t : VALUES) {
+                verbs[t.ordinal()] = t._s;
             }
-            _m = b.build();
+            VERBS = new VerbTable(verbs);
         }
 
-        static Type byName(byte[] n) {
-            return _m.get(new String(n, StandardCharsets.US_ASCII));
+        /**
+         * @return the type spelled by the n bytes of b starting at offset, null if unknown
+         */
+        static @Nullable Type byName(ChannelBuffer b, int offset, int n) {
+            int i = VERBS.find(b, offset, n);
+            return i < 0 ? null : VALUES[i];
         }
 
         Type(String s, int fields) {
@@ -54,6 +76,8 @@ public class SSMPEvent {
     public final @Nullable SSMPIdentifier to;
     public final @Nullable byte[] payload;
     public final boolean binary;
+    // zero-copy payload, only used by the server to relay requests
+    final @Nullable ChannelBuffer _slice;
 
     public SSMPEvent(SSMPIdentifier from, Type type, @Nullable SSMPIdentifier to, @Nullable byte[] payload) {
         this(from, type, to, payload, false);
@@ -61,11 +85,17 @@ public class SSMPEvent {
 
     public SSMPEvent(SSMPIdentifier from, Type type, @Nullable SSMPIdentifier to,
                      @Nullable byte[] payload, boolean binary) {
+        this(from, type, to, payload, null, binary);
+    }
+
+    SSMPEvent(SSMPIdentifier from, Type type, @Nullable SSMPIdentifier to,
+              @Nullable byte[] payload, @Nullable ChannelBuffer slice, boolean binary) {
         this.from = from;
         this.type = type;
         this.to = to;
         this.payload = payload;
         this.binary = binary;
+        _slice = slice;
     }
 
     @Override
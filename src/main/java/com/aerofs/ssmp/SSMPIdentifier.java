@@ -5,6 +5,8 @@
 
 package com.aerofs.ssmp;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
@@ -15,6 +17,7 @@ public class SSMPIdentifier {
     public static final SSMPIdentifier ANONYMOUS = new SSMPIdentifier(".");
 
     private final byte[] _id;
+    private final int _hash;
 
     public static final ByteSet ALLOWED = new ByteSet(
             Range('a', 'z'),
@@ -32,8 +35,9 @@ public class SSMPIdentifier {
         InvalidIdentifier() {}
     }
 
-    private SSMPIdentifier(String id) { _id = id.getBytes(StandardCharsets.US_ASCII); }
-    SSMPIdentifier(byte[] id) { _id = id; }
+    private SSMPIdentifier(String id) { this(id.getBytes(StandardCharsets.US_ASCII)); }
+    SSMPIdentifier(byte[] id) { this(id, Arrays.hashCode(id)); }
+    SSMPIdentifier(byte[] id, int hash) { _id = id; _hash = hash; }
 
     public static boolean isValid(String id) {
         if (id.length() > SSMPDecoder.MAX_ID_LENGTH) return false;
@@ -55,12 +59,24 @@ public class SSMPIdentifier {
 
     @Override
     public boolean equals(Object o) {
-        return o instanceof SSMPIdentifier && Arrays.equals(((SSMPIdentifier) o)._id, _id);
+        if (o == this) return true;
+        if (!(o instanceof SSMPIdentifier)) return false;
+        SSMPIdentifier id = (SSMPIdentifier)o;
+        return id._hash == _hash && Arrays.equals(id._id, _id);
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(_id);
+        return _hash;
+    }
+
+    // @return whether this identifier is spelled by the n bytes of b starting at offset
+    boolean matches(int hash, ChannelBuffer b, int offset, int n) {
+        if (hash != _hash || n != _id.length) return false;
+        for (int i = 0; i < n; ++i) {
+            if (b.getByte(offset + i) != _id[i]) return false;
+        }
+        return true;
     }
 
     public byte[] getBytes() { return _id; }
@@ -5,7 +5,7 @@
 
 package com.aerofs.ssmp;
 
-import com.google.common.collect.ImmutableMap;
+import org.jboss.netty.buffer.ChannelBuffer;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -19,6 +19,7 @@ public class SSMPRequest {
     final static int FIELD_PAYLOAD = 2;
     final static int FIELD_OPTION = 6;
 
+    // the order is part of BinaryFraming: append only
     public enum Type {
         LOGIN("LOGIN", -1),
         SUBSCRIBE("SUBSCRIBE", FIELD_ID | FIELD_OPTION),
@@ -29,25 +30,34 @@ public class SSMPRequest {
         PING("PING", NO_FIELD),
         PONG("PONG", NO_FIELD),
         CLOSE("CLOSE", NO_FIELD),
+        /**
+         * Switch the connection to no-ack mode: UCAST, MCAST and BCAST requests get no response
+         * on success, and {@link SSMPEvent.Type#NACK} events on failure
+         */
+        NOACK("NOACK", NO_FIELD),
         ;
 
         final byte[] _s;
         final int _fields;
 
-        private final static ImmutableMap<String, Type> _m;
+        private final static Type[] VALUES = values();
+        private final static VerbTable VERBS;
         static {
-            ImmutableMap.Builder<String, Type> b = ImmutableMap.builder();
-            for (Type t : values()) {
-                b.put(t.name(), t);
+            byte[][] verbs = new byte[VALUES.length][];
+            for (Type t : VALUES) {
+                verbs[t.ordinal()] = t._s;
             }
-            _m = b.build();
+            VERBS = new VerbTable(verbs);
         }
 
-        static Type byName(byte[] n) {
-            return _m.get(new String(n, StandardCharsets.US_ASCII));
+        /**
+         * @return the type spelled by the n bytes of b starting at offset, null if unknown
+         */
+        static @Nullable Type byName(ChannelBuffer b, int offset, int n) {
+            int i = VERBS.find(b, offset, n);
+            return i < 0 ? null : VALUES[i];
         }
 
-
         Type(String s, int fields) {
             _s = s.getBytes(StandardCharsets.US_ASCII);
             _fields = fields;
@@ -56,7 +66,16 @@ public class SSMPRequest {
 
     public enum SubscriptionFlag {
         NONE(""),
+        /**
+         * Membership is reported through SUBSCRIBE and UNSUBSCRIBE events, one per member
+         */
         PRESENCE("PRESENCE"),
+        /**
+         * Like PRESENCE, but membership is reported through PRESENCE events, each listing many
+         * members: a snapshot of the current members upon subscription, then changes coalesced
+         * over a short window, see {@link SSMPEvent.Type#PRESENCE}
+         */
+        BATCHED_PRESENCE("BATCHED_PRESENCE"),
         ;
 
         byte[] _s;
@@ -69,12 +88,20 @@ public class SSMPRequest {
     public final @Nullable SSMPIdentifier to;
     public final @Nullable byte[] payload;
     public final boolean binary;
+    // zero-copy payload, set instead of payload, see SSMPRequestDecoder
+    final @Nullable ChannelBuffer _slice;
 
     SSMPRequest(Type type, @Nullable SSMPIdentifier to, @Nullable byte[] payload, boolean binary) {
+        this(type, to, payload, null, binary);
+    }
+
+    SSMPRequest(Type type, @Nullable SSMPIdentifier to, @Nullable byte[] payload,
+                @Nullable ChannelBuffer slice, boolean binary) {
         this.type = type;
         this.to = to;
         this.payload = payload;
         this.binary = binary;
+        _slice = slice;
     }
 
     private static void checkTextPayload(String payload) {
@@ -93,7 +120,8 @@ public class SSMPRequest {
     @Override
     public String toString() {
         return type + " " + to + " "
-                + (payload != null ? new String(payload, StandardCharsets.UTF_8) : null);
+                + (payload != null ? new String(payload, StandardCharsets.UTF_8)
+                        : _slice != null ? _slice.toString(StandardCharsets.UTF_8) : null);
     }
 
     public static SSMPRequest login(@Nonnull SSMPIdentifier id, @Nonnull SSMPIdentifier scheme,
@@ -140,6 +168,10 @@ public class SSMPRequest {
         return new SSMPRequest(Type.BCAST, null, payload, true);
     }
 
+    public static SSMPRequest noAck() {
+        return new SSMPRequest(Type.NOACK, null, null, false);
+    }
+
     public static SSMPRequest close() {
         return new SSMPRequest(Type.CLOSE, null, null, false);
     }
@@ -10,7 +10,7 @@ import org.jboss.netty.handler.timeout.IdleStateEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.EOFException;
+import javax.annotation.Nullable;
 import java.net.SocketAddress;
 import java.nio.channels.ClosedChannelException;
 import java.nio.charset.StandardCharsets;
@@ -23,6 +23,21 @@ public class SSMPRequestDecoder extends FrameDecoder {
     private final static Logger L = LoggerFactory.getLogger(SSMPRequestDecoder.class);
 
     private final Authenticator _auth;
+    private final boolean _zeroCopy;
+    private final @Nullable IdentifierTable _ids;
+
+    private enum State {
+        VERB, LOGIN_ID, LOGIN_SCHEME, LOGIN_CRED, COMPAT_ID, COMPAT_PAYLOAD, TO, PAYLOAD
+    }
+
+    // progress within the current frame
+    private final SSMPDecoder _in = new SSMPDecoder();
+    private State _state = State.VERB;
+    private @Nullable Type _type;
+    private @Nullable SSMPIdentifier _id;
+    private @Nullable SSMPIdentifier _scheme;
+    // framing selected by the LOGIN request, see BinaryFraming
+    private boolean _binary;
 
     public static class IdAddress extends SocketAddress {
         static final long serialVersionUID = -1;
@@ -34,14 +49,35 @@ public class SSMPRequestDecoder extends FrameDecoder {
 
     static class ChannelData extends IdAddress {
         static final long serialVersionUID = -1;
-        private final ElapsedTimer timer = new ElapsedTimer();
-        ChannelData(SSMPIdentifier id) {
+        // login time, a bare timestamp to keep idle connections small
+        private final long since = System.nanoTime();
+        final boolean binary;
+        ChannelData(SSMPIdentifier id, boolean binary) {
             super(id);
+            this.binary = binary;
         }
     }
 
     public SSMPRequestDecoder(Authenticator auth) {
+        this(auth, false);
+    }
+
+    /**
+     * @param zeroCopy if true, UCAST/MCAST/BCAST payloads are not copied out of the inbound
+     * buffer but passed along as slices of it
+     */
+    public SSMPRequestDecoder(Authenticator auth, boolean zeroCopy) {
+        this(auth, zeroCopy, null);
+    }
+
+    /**
+     * @param ids table used to resolve the destination of requests, typically shared by all
+     * the connections of a server
+     */
+    SSMPRequestDecoder(Authenticator auth, boolean zeroCopy, @Nullable IdentifierTable ids) {
         _auth = auth;
+        _zeroCopy = zeroCopy;
+        _ids = ids;
     }
 
     @Override
@@ -67,6 +103,11 @@ public class SSMPRequestDecoder extends FrameDecoder {
     private static final ChannelBuffer PONG = ChannelBuffers.wrappedBuffer(
             "000 . PONG\n".getBytes(StandardCharsets.US_ASCII));
 
+    private static final ChannelBuffer BINARY_PING = BinaryFraming.event(
+            new SSMPEvent(SSMPIdentifier.ANONYMOUS, SSMPEvent.Type.PING, null, null));
+    private static final ChannelBuffer BINARY_PONG = BinaryFraming.event(
+            new SSMPEvent(SSMPIdentifier.ANONYMOUS, SSMPEvent.Type.PONG, null, null));
+
     private void channelIdle(ChannelHandlerContext ctx, IdleStateEvent e) {
         if (e.getState() == IdleState.READER_IDLE) {
             Object a = ctx.getChannel().getAttachment();
@@ -76,11 +117,12 @@ public class SSMPRequestDecoder extends FrameDecoder {
                 return;
             }
             ChannelData d = (ChannelData)a;
-            if (d.timer.elapsed() > TimeUnit.MILLISECONDS.convert(60, TimeUnit.SECONDS)) {
+            if (System.nanoTime() - d.since > TimeUnit.SECONDS.toNanos(60)) {
                 ctx.getChannel().close();
             } else {
                 ctx.sendDownstream(new DownstreamMessageEvent(ctx.getChannel(),
-                        new DefaultChannelFuture(ctx.getChannel(), false), PING, null));
+                        new DefaultChannelFuture(ctx.getChannel(), false),
+                        d.binary ? BINARY_PING : PING, null));
             }
         }
     }
@@ -113,88 +155,244 @@ public class SSMPRequestDecoder extends FrameDecoder {
                 new DefaultChannelFuture(ctx.getChannel(), false), r, null));
     }
 
+    // send a canned response in the framing of the channel
+    private void respond(ChannelHandlerContext ctx, ChannelBuffer text) {
+        sendDownstream(ctx, _binary ? BinaryFraming.response(text) : text);
+    }
+
     @Override
-    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer b)
-            throws Exception {
-        final int readerIndex = b.readerIndex();
-        Object o = ctx.getChannel().getAttachment();
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer b) {
         try {
-            byte[] verb = readVerb(b);
-            SSMPRequest.Type type = Type.byName(verb);
+            if (_state == State.VERB && b.readable() && BinaryFraming.isBinary(b)) {
+                return parseBinary(ctx, b);
+            }
+            if (_binary) throw new IllegalArgumentException();
+            return parse(ctx, b);
+        } catch (IllegalArgumentException e) {
+            // the channel is going away, drop any further input
+            _in.reset();
+            done();
+            b.skipBytes(b.readableBytes());
+            respond(ctx, BAD_REQUEST);
+            ctx.getChannel().close();
+            return null;
+        }
+    }
 
-            if (o instanceof ChannelFuture) {
-                if (type != SSMPRequest.Type.LOGIN || !next(b)) {
+    /**
+     * Binary counterpart of {@link #parse}, see {@link BinaryFraming}
+     */
+    private @Nullable Object parseBinary(ChannelHandlerContext ctx, ChannelBuffer b) {
+        boolean login = ctx.getChannel().getAttachment() instanceof ChannelFuture;
+        if (login) {
+            _binary = true;
+        } else if (!_binary) {
+            throw new IllegalArgumentException();
+        }
+        int n = BinaryFraming.length(b);
+        if (n == MORE) return null;
+        BinaryFraming.Frame f = new BinaryFraming.Frame(b, login ? null : _ids);
+        b.skipBytes(n);
+        Type type = f.request();
+        if (login) {
+            if (type != Type.LOGIN || f.id1 == null || f.id2 == null) {
+                throw new IllegalArgumentException();
+            }
+            login(ctx, f.id1, f.id2,
+                    f.payload != null ? f.payload.toString(StandardCharsets.UTF_8) : "");
+            return null;
+        } else if (type == null) {
+            respond(ctx, NOT_IMPLEMENTED);
+            return null;
+        } else if (type == Type.LOGIN) {
+            respond(ctx, NOT_ALLOWED);
+            ctx.getChannel().close();
+            return null;
+        }
+        if (f.id2 != null || ((type._fields & FIELD_ID) != 0) != (f.id1 != null)) {
+            throw new IllegalArgumentException();
+        }
+        if (f.payload != null ? (type._fields & FIELD_PAYLOAD) == 0
+                : (type._fields & FIELD_OPTION) == FIELD_PAYLOAD) {
+            throw new IllegalArgumentException();
+        }
+        if (type == Type.PING) {
+            L.debug("recv ping");
+            sendDownstream(ctx, BINARY_PONG);
+            return null;
+        } else if (type == Type.PONG) {
+            L.debug("recv pong");
+            return null;
+        }
+        return request(type, f.id1, f.payload, f.isBinary());
+    }
+
+    /**
+     * @return the next request, or null if more input is needed or if a frame was handled in
+     * place (in which case input was consumed and FrameDecoder calls again)
+     */
+    private @Nullable Object parse(ChannelHandlerContext ctx, ChannelBuffer b) {
+        while (true) {
+            switch (_state) {
+            case VERB: {
+                int n = _in.token(b, VERB, MAX_VERB_LENGTH);
+                if (n == MORE) return null;
+                _type = Type.byName(b, b.readerIndex(), n);
+                boolean more = skip(b, n);
+                if (ctx.getChannel().getAttachment() instanceof ChannelFuture) {
+                    if (_type != Type.LOGIN || !more) throw new IllegalArgumentException();
+                    _state = State.LOGIN_ID;
+                } else if (_type == null) {
+                    if (!more) return notImplemented(ctx);
+                    _state = State.COMPAT_ID;
+                } else if (_type == Type.LOGIN) {
+                    done();
+                    respond(ctx, NOT_ALLOWED);
+                    ctx.getChannel().close();
+                    return null;
+                } else if (!more) {
+                    return end(ctx, ~0);
+                } else if ((_type._fields & FIELD_ID) != 0) {
+                    _state = State.TO;
+                } else if ((_type._fields & FIELD_PAYLOAD) != 0) {
+                    _state = State.PAYLOAD;
+                } else {
                     throw new IllegalArgumentException();
                 }
-                SSMPIdentifier id = readIdentifier(b);
-                if (!next(b)) throw new IllegalArgumentException();
-                SSMPIdentifier scheme = readIdentifier(b);
-                String cred = "";
-                if (next(b)) {
-                    cred = new String(readPayload(b), StandardCharsets.UTF_8);
-                    if (next(b)) throw new IllegalArgumentException();
-                }
-                if (_auth.authenticate(id, scheme, cred)) {
-                    ChannelData d = new ChannelData(id);
-                    ctx.getChannel().setAttachment(d);
-                    ctx.sendUpstream(new UpstreamChannelStateEvent(ctx.getChannel(),
-                            ChannelState.CONNECTED, true));
-                    ((ChannelFuture)o).setSuccess();
-                    sendDownstream(ctx, OK);
-                } else {
-                    sendDownstream(ctx, _auth.unauthorized());
-                    ctx.getChannel().close();
+                break;
+            }
+            case LOGIN_ID: {
+                int n = _in.token(b, SSMPIdentifier.ALLOWED, MAX_ID_LENGTH);
+                if (n == MORE) return null;
+                _id = identifier(b, n, null);
+                if (!skip(b, n)) throw new IllegalArgumentException();
+                _state = State.LOGIN_SCHEME;
+                break;
+            }
+            case LOGIN_SCHEME: {
+                int n = _in.token(b, SSMPIdentifier.ALLOWED, MAX_ID_LENGTH);
+                if (n == MORE) return null;
+                _scheme = identifier(b, n, null);
+                if (!skip(b, n)) {
+                    login(ctx, "");
+                    return null;
                 }
-                return null;
+                _state = State.LOGIN_CRED;
+                break;
             }
-
-            if (type == null) {
-                skipCompat(b);
-                sendDownstream(ctx, NOT_IMPLEMENTED);
-                return null;
-            } else if (type == SSMPRequest.Type.LOGIN) {
-                sendDownstream(ctx, NOT_ALLOWED);
-                ctx.getChannel().close();
-                return null;
-            } else if (type == SSMPRequest.Type.PING) {
-                if (next(b)) throw new IllegalArgumentException();
-                L.debug("recv ping");
-                sendDownstream(ctx, PONG);
-                return null;
-            } else if (type == SSMPRequest.Type.PONG) {
-                if (next(b)) throw new IllegalArgumentException();
-                L.debug("recv pong");
+            case LOGIN_CRED: {
+                ChannelBuffer p = _in.payload(b);
+                if (p == null) return null;
+                login(ctx, p.toString(StandardCharsets.UTF_8));
                 return null;
             }
-
-            SSMPIdentifier to = null;
-            if ((type._fields & SSMPRequest.FIELD_ID) != 0) {
-                if (!next(b)) throw new IllegalArgumentException();
-                to = readIdentifier(b);
-            }
-            byte[] payload = null;
-            boolean binary = false;
-            if ((type._fields & FIELD_PAYLOAD) != 0) {
-                boolean atEnd = atEnd(b);
-                if (atEnd) {
-                    if ((type._fields & FIELD_OPTION) != FIELD_OPTION) {
-                        throw new IllegalArgumentException();
-                    }
-                } else {
-                    next(b);
-                    binary = isBinaryPayload(b);
-                    payload = readPayload(b);
+            case COMPAT_ID: {
+                // unknown verb: skip an optional identifier, followed by an optional payload
+                int n;
+                try {
+                    n = _in.token(b, SSMPIdentifier.ALLOWED, MAX_ID_LENGTH);
+                } catch (IllegalArgumentException e) {
+                    _in.reset();
+                    _state = State.COMPAT_PAYLOAD;
+                    break;
                 }
+                if (n == MORE) return null;
+                if (!skip(b, n)) return notImplemented(ctx);
+                _state = State.COMPAT_PAYLOAD;
+                break;
             }
-            if (next(b)) throw new IllegalArgumentException();
-            return new SSMPRequest(type, to, payload, binary);
-        } catch (EOFException e) {
-            // reset reader index if we failed to read a full message
-            b.readerIndex(readerIndex);
-        } catch (IllegalArgumentException e) {
-            sendDownstream(ctx, BAD_REQUEST);
-            ctx.getChannel().close();
+            case COMPAT_PAYLOAD: {
+                if (_in.payload(b) == null) return null;
+                return notImplemented(ctx);
+            }
+            case TO: {
+                int n = _in.token(b, SSMPIdentifier.ALLOWED, MAX_ID_LENGTH);
+                if (n == MORE) return null;
+                _id = identifier(b, n, _ids);
+                boolean more = skip(b, n);
+                if (!more) return end(ctx, FIELD_OPTION);
+                if ((_type._fields & FIELD_PAYLOAD) == 0) throw new IllegalArgumentException();
+                _state = State.PAYLOAD;
+                break;
+            }
+            case PAYLOAD: {
+                ChannelBuffer p = _in.payload(b);
+                if (p == null) return null;
+                return request(p);
+            }
+            }
+        }
+    }
+
+    /**
+     * Handle a frame that ended before the given fields
+     */
+    private @Nullable Object end(ChannelHandlerContext ctx, int missing) {
+        int fields = _type._fields & missing;
+        if ((fields & FIELD_ID) != 0 || (fields & FIELD_OPTION) == FIELD_PAYLOAD) {
+            throw new IllegalArgumentException();
+        }
+        if (_type == Type.PING) {
+            done();
+            L.debug("recv ping");
+            sendDownstream(ctx, PONG);
+            return null;
+        } else if (_type == Type.PONG) {
+            done();
+            L.debug("recv pong");
+            return null;
         }
+        return request(null);
+    }
+
+    private SSMPRequest request(@Nullable ChannelBuffer p) {
+        Type type = _type;
+        SSMPIdentifier to = _id;
+        done();
+        return request(type, to, p, _in.isBinary());
+    }
+
+    private SSMPRequest request(Type type, @Nullable SSMPIdentifier to, @Nullable ChannelBuffer p,
+                                boolean binary) {
+        if (p == null) return new SSMPRequest(type, to, null, false);
+        if (_zeroCopy && (type._fields & FIELD_OPTION) != FIELD_OPTION) {
+            return new SSMPRequest(type, to, null, p, binary);
+        }
+        return new SSMPRequest(type, to, bytes(p), binary);
+    }
+
+    private @Nullable Object notImplemented(ChannelHandlerContext ctx) {
+        done();
+        respond(ctx, NOT_IMPLEMENTED);
         return null;
     }
+
+    private void login(ChannelHandlerContext ctx, String cred) {
+        SSMPIdentifier id = _id, scheme = _scheme;
+        done();
+        login(ctx, id, scheme, cred);
+    }
+
+    private void login(ChannelHandlerContext ctx, SSMPIdentifier id, SSMPIdentifier scheme,
+                       String cred) {
+        ChannelFuture f = (ChannelFuture)ctx.getChannel().getAttachment();
+        if (_auth.authenticate(id, scheme, cred)) {
+            ChannelData d = new ChannelData(id, _binary);
+            ctx.getChannel().setAttachment(d);
+            ctx.sendUpstream(new UpstreamChannelStateEvent(ctx.getChannel(),
+                    ChannelState.CONNECTED, true));
+            f.setSuccess();
+            respond(ctx, OK);
+        } else {
+            respond(ctx, _auth.unauthorized());
+            ctx.getChannel().close();
+        }
+    }
+
+    private void done() {
+        _state = State.VERB;
+        _type = null;
+        _id = null;
+        _scheme = null;
+    }
 }
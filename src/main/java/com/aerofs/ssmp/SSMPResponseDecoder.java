@@ -15,7 +15,7 @@ import org.jboss.netty.handler.timeout.IdleStateEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.EOFException;
+import javax.annotation.Nullable;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.TimeUnit;
 
@@ -26,6 +26,28 @@ public class SSMPResponseDecoder extends FrameDecoder {
     private final static Logger L = LoggerFactory.getLogger(SSMPResponseDecoder.class);
 
     private final ElapsedTimer _timer = new ElapsedTimer();
+    // framing of outbound keepalives, see BinaryFraming
+    private final boolean _binary;
+
+    private enum State {
+        CODE, MESSAGE, FROM, VERB, TO, PAYLOAD
+    }
+
+    // progress within the current frame
+    private final SSMPDecoder _in = new SSMPDecoder();
+    private State _state = State.CODE;
+    private int _code;
+    private @Nullable SSMPIdentifier _from;
+    private @Nullable Type _type;
+    private @Nullable SSMPIdentifier _to;
+
+    public SSMPResponseDecoder() {
+        this(false);
+    }
+
+    public SSMPResponseDecoder(boolean binary) {
+        _binary = binary;
+    }
 
     @Override
     public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
@@ -41,6 +63,11 @@ public class SSMPResponseDecoder extends FrameDecoder {
     private static final ChannelBuffer PONG = ChannelBuffers.wrappedBuffer(
             "PONG\n".getBytes(StandardCharsets.US_ASCII));
 
+    private static final ChannelBuffer BINARY_PING = BinaryFraming.request(
+            new SSMPRequest(SSMPRequest.Type.PING, null, null, false));
+    private static final ChannelBuffer BINARY_PONG = BinaryFraming.request(
+            new SSMPRequest(SSMPRequest.Type.PONG, null, null, false));
+
     public void channelIdle(ChannelHandlerContext ctx, IdleStateEvent e) {
         if (e.getState() == IdleState.READER_IDLE) {
             if (_timer.elapsed() > TimeUnit.MILLISECONDS.convert(60, TimeUnit.SECONDS)) {
@@ -48,7 +75,8 @@ public class SSMPResponseDecoder extends FrameDecoder {
             } else {
                 L.debug("send ping");
                 ctx.sendDownstream(new DownstreamMessageEvent(ctx.getChannel(),
-                        new DefaultChannelFuture(ctx.getChannel(), false), PING, null));
+                        new DefaultChannelFuture(ctx.getChannel(), false),
+                        _binary ? BINARY_PING : PING, null));
             }
         }
     }
@@ -64,68 +92,151 @@ public class SSMPResponseDecoder extends FrameDecoder {
     }
 
     @Override
-    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer b)
-            throws Exception {
-        final int readerIndex = b.readerIndex();
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer b) {
         try {
-            int code = readCode(b);
-            if (code == 0) {
-                if (!next(b)) throw new IllegalArgumentException();
-                SSMPIdentifier from = readIdentifier(b);
-                if (!next(b)) throw new IllegalArgumentException();
-                byte[] verb = readVerb(b);
-                SSMPEvent.Type type = Type.byName(verb);
-
-                if (type == Type.PING) {
-                    if (next(b)) throw new IllegalArgumentException();
-                    L.debug("recv ping");
-                    ctx.sendDownstream(new DownstreamMessageEvent(ctx.getChannel(),
-                            new DefaultChannelFuture(ctx.getChannel(), false), PONG, null));
-                    return null;
-                } else if (type == Type.PONG) {
-                    if (next(b)) throw new IllegalArgumentException();
-                    L.debug("recv pong");
-                    return null;
-                }
+            return parse(ctx, b);
+        } catch (IllegalArgumentException e) {
+            L.info("invalid message: {}", b.copy().array());
+            // the channel is going away, drop any further input
+            _in.reset();
+            done();
+            b.skipBytes(b.readableBytes());
+            ctx.getChannel().close();
+            return null;
+        }
+    }
 
-                SSMPIdentifier to = null;
-                if ((type._fields & FIELD_TO) != 0) {
-                    if (!next(b)) throw new IllegalArgumentException();
-                    to = readIdentifier(b);
+    /**
+     * @return the next response or event, or null if more input is needed or if a frame was
+     * handled in place (in which case input was consumed and FrameDecoder calls again)
+     */
+    private @Nullable Object parse(ChannelHandlerContext ctx, ChannelBuffer b) {
+        while (true) {
+            switch (_state) {
+            case CODE: {
+                if (b.readable() && BinaryFraming.isBinary(b)) return parseBinary(ctx, b);
+                int code = _in.code(b);
+                if (code == MORE) return null;
+                boolean more = skip(b, CODE_LENGTH);
+                if (code != 0) {
+                    if (!more) return new SSMPResponse(code, null);
+                    _code = code;
+                    _state = State.MESSAGE;
+                } else if (more) {
+                    _state = State.FROM;
+                } else {
+                    throw new IllegalArgumentException();
                 }
-                byte[] payload = null;
-                boolean binary = false;
-                if ((type._fields & FIELD_PAYLOAD) != 0) {
-                    boolean atEnd = atEnd(b);
-                    if (atEnd) {
-                        if ((type._fields & FIELD_OPTION) != FIELD_OPTION) {
-                            throw new IllegalArgumentException();
-                        }
-                    } else {
-                        next(b);
-                        binary = isBinaryPayload(b);
-                        payload = readPayload(b);
-                    }
+                break;
+            }
+            case MESSAGE: {
+                ChannelBuffer p = _in.payload(b);
+                if (p == null) return null;
+                int code = _code;
+                done();
+                return new SSMPResponse(code, p.toString(StandardCharsets.UTF_8));
+            }
+            case FROM: {
+                int n = _in.token(b, SSMPIdentifier.ALLOWED, MAX_ID_LENGTH);
+                if (n == MORE) return null;
+                _from = identifier(b, n, null);
+                if (!skip(b, n)) throw new IllegalArgumentException();
+                _state = State.VERB;
+                break;
+            }
+            case VERB: {
+                int n = _in.token(b, VERB, MAX_VERB_LENGTH);
+                if (n == MORE) return null;
+                _type = Type.byName(b, b.readerIndex(), n);
+                if (_type == null) throw new IllegalArgumentException();
+                boolean more = skip(b, n);
+                if (!more) {
+                    return end(ctx, ~0);
+                } else if ((_type._fields & FIELD_TO) != 0) {
+                    _state = State.TO;
+                } else if ((_type._fields & FIELD_PAYLOAD) != 0) {
+                    _state = State.PAYLOAD;
+                } else {
+                    throw new IllegalArgumentException();
                 }
-                if (next(b)) throw new IllegalArgumentException();
-                return new SSMPEvent(from, type, to, payload, binary);
+                break;
             }
-
-            String payload = null;
-            if (next(b)) {
-                payload = new String(readPayload(b), StandardCharsets.UTF_8);
-                if (next(b)) throw new IllegalArgumentException();
+            case TO: {
+                int n = _in.token(b, SSMPIdentifier.ALLOWED, MAX_ID_LENGTH);
+                if (n == MORE) return null;
+                _to = identifier(b, n, null);
+                boolean more = skip(b, n);
+                if (!more) return end(ctx, FIELD_OPTION);
+                if ((_type._fields & FIELD_PAYLOAD) == 0) throw new IllegalArgumentException();
+                _state = State.PAYLOAD;
+                break;
             }
-            return new SSMPResponse(code, payload);
-        } catch (EOFException e) {
-            // reset reader index if we failed to read a full message
-            b.readerIndex(readerIndex);
-        } catch (IllegalArgumentException e) {
-            L.info("invalid message: {}",
-                    b.slice(readerIndex, b.writerIndex() - readerIndex).copy().array());
-            ctx.getChannel().close();
+            case PAYLOAD: {
+                ChannelBuffer p = _in.payload(b);
+                if (p == null) return null;
+                return event(bytes(p), _in.isBinary());
+            }
+            }
+        }
+    }
+
+    /**
+     * Binary counterpart of {@link #parse}, see {@link BinaryFraming}
+     */
+    private @Nullable Object parseBinary(ChannelHandlerContext ctx, ChannelBuffer b) {
+        int n = BinaryFraming.length(b);
+        if (n == MORE) return null;
+        BinaryFraming.Frame f = new BinaryFraming.Frame(b, null);
+        b.skipBytes(n);
+        if (f.isResponse()) {
+            if (f.id1 != null || f.id2 != null || f.arg > 999) throw new IllegalArgumentException();
+            return new SSMPResponse(f.arg,
+                    f.payload != null ? f.payload.toString(StandardCharsets.UTF_8) : null);
         }
-        return null;
+        _type = f.event();
+        if (_type == null || f.id1 == null) throw new IllegalArgumentException();
+        if (f.id2 != null && (_type._fields & FIELD_TO) == 0) throw new IllegalArgumentException();
+        _from = f.id1;
+        _to = f.id2;
+        if (f.payload == null) return end(ctx, _to != null ? FIELD_OPTION : ~0);
+        if ((_type._fields & FIELD_PAYLOAD) == 0) throw new IllegalArgumentException();
+        return event(bytes(f.payload), f.isBinary());
     }
 
+    /**
+     * Handle an event that ended before the given fields
+     */
+    private @Nullable Object end(ChannelHandlerContext ctx, int missing) {
+        int fields = _type._fields & missing;
+        if ((fields & FIELD_TO) != 0 || (fields & FIELD_OPTION) == FIELD_PAYLOAD) {
+            throw new IllegalArgumentException();
+        }
+        if (_type == Type.PING) {
+            done();
+            L.debug("recv ping");
+            ctx.sendDownstream(new DownstreamMessageEvent(ctx.getChannel(),
+                    new DefaultChannelFuture(ctx.getChannel(), false),
+                    _binary ? BINARY_PONG : PONG, null));
+            return null;
+        } else if (_type == Type.PONG) {
+            done();
+            L.debug("recv pong");
+            return null;
+        }
+        return event(null, false);
+    }
+
+    private SSMPEvent event(@Nullable byte[] payload, boolean binary) {
+        SSMPEvent ev = new SSMPEvent(_from, _type, _to, payload, binary);
+        done();
+        return ev;
+    }
+
+    private void done() {
+        _state = State.CODE;
+        _code = 0;
+        _from = null;
+        _type = null;
+        _to = null;
+    }
 }
@@ -13,17 +13,25 @@ import java.nio.charset.StandardCharsets;
 
 public class SSMPResponseEncoder extends SimpleChannelDownstreamHandler {
     private final static byte[] EVENT_CODE = "000 ".getBytes(StandardCharsets.US_ASCII);
+    private final static ChannelBuffer NEWLINE = ChannelBuffers.wrappedBuffer(new byte[] {'\n'});
 
     @Override
     public void writeRequested(ChannelHandlerContext ctx, MessageEvent me) {
         Object o = me.getMessage();
+        boolean binary = isBinary(me.getChannel());
         if (o instanceof SSMPResponse) {
             SSMPResponse r = (SSMPResponse)o;
 
-            ChannelBuffer b = ChannelBuffers.dynamicBuffer();
             if (r.code < 0 || r.code > 999) {
                 throw new IllegalArgumentException("invalid response code: " + r.code);
             }
+            if (binary) {
+                ctx.sendDownstream(new DownstreamMessageEvent(me.getChannel(), me.getFuture(),
+                        BinaryFraming.response(r.code, r.payload), null));
+                return;
+            }
+
+            ChannelBuffer b = ChannelBuffers.dynamicBuffer();
 
             int n = r.code;
             b.writeByte('0' + (byte)(n / 100));
@@ -37,32 +45,71 @@ public class SSMPResponseEncoder extends SimpleChannelDownstreamHandler {
             ctx.sendDownstream(new DownstreamMessageEvent(me.getChannel(), me.getFuture(), b, null));
         } else if (o instanceof SSMPEvent) {
             SSMPEvent ev = (SSMPEvent)o;
-
-            ChannelBuffer b = ChannelBuffers.dynamicBuffer();
-            b.writeBytes(EVENT_CODE);
-            b.writeBytes(ev.from.getBytes());
-            b.writeByte(' ');
-            b.writeBytes(ev.type.toString().getBytes(StandardCharsets.US_ASCII));
-            if (ev.to != null) {
-                b.writeByte(' ');
-                b.writeBytes(ev.to.getBytes());
-            }
-            if (ev.payload != null && ev.payload.length > 0) {
-                if (ev.payload.length > SSMPDecoder.MAX_PAYLOAD_LENGTH) {
-                    throw new IllegalArgumentException("binary payload too large");
-                }
-                b.writeByte(' ');
-                if (ev.binary) {
-                    int sz = ev.payload.length - 1;
-                    b.writeByte(sz >> 8);
-                    b.writeByte(sz & 0xff);
-                }
-                b.writeBytes(ev.payload);
-            }
-            b.writeByte('\n');
+            ChannelBuffer b = binary ? BinaryFraming.event(ev) : encode(ev);
             ctx.sendDownstream(new DownstreamMessageEvent(me.getChannel(), me.getFuture(), b, null));
         } else {
+            // pre-encoded frames (e.g. shared fan-out buffers) are forwarded untouched
             ctx.sendDownstream(me);
         }
     }
+
+    /**
+     * @return whether the channel negotiated {@link BinaryFraming} at LOGIN
+     */
+    static boolean isBinary(Channel c) {
+        Object d = c.getAttachment();
+        return d instanceof SSMPRequestDecoder.ChannelData && ((SSMPRequestDecoder.ChannelData)d).binary;
+    }
+
+    /**
+     * Serialize an event into an exactly-sized frame
+     *
+     * Fan-out paths encode an event once and write a {@link #share}d view to each recipient.
+     *
+     * A zero-copy payload is not copied: the frame is a composite of the header, the payload
+     * slice and the trailing newline.
+     */
+    static ChannelBuffer encode(SSMPEvent ev) {
+        int len = ev._slice != null ? ev._slice.readableBytes()
+                : ev.payload != null ? ev.payload.length : 0;
+        int n = EVENT_CODE.length + ev.from.getBytes().length + 1 + ev.type._s.length;
+        if (ev.to != null) n += 1 + ev.to.getBytes().length;
+        if (len > 0) {
+            if (len > SSMPDecoder.MAX_PAYLOAD_LENGTH) {
+                throw new IllegalArgumentException("binary payload too large");
+            }
+            n += 1 + (ev.binary ? 2 : 0);
+        }
+
+        ChannelBuffer b = ChannelBuffers.buffer(ev._slice != null ? n : n + len + 1);
+        b.writeBytes(EVENT_CODE);
+        b.writeBytes(ev.from.getBytes());
+        b.writeByte(' ');
+        b.writeBytes(ev.type._s);
+        if (ev.to != null) {
+            b.writeByte(' ');
+            b.writeBytes(ev.to.getBytes());
+        }
+        if (len > 0) {
+            b.writeByte(' ');
+            if (ev.binary) {
+                int sz = len - 1;
+                b.writeByte(sz >> 8);
+                b.writeByte(sz & 0xff);
+            }
+        }
+        if (ev._slice != null) {
+            return ChannelBuffers.wrappedBuffer(b, ev._slice, NEWLINE);
+        }
+        if (len > 0) b.writeBytes(ev.payload);
+        b.writeByte('\n');
+        return b;
+    }
+
+    /**
+     * @return read-only view of a shared frame, with independent reader/writer indices
+     */
+    static ChannelBuffer share(ChannelBuffer frame) {
+        return ChannelBuffers.unmodifiableBuffer(frame);
+    }
 }
@@ -10,99 +10,620 @@ import com.aerofs.ssmp.SSMPRequestDecoder.IdAddress;
 import com.aerofs.ssmp.SSMPEvent.Type;
 import com.aerofs.ssmp.SSMPRequest.SubscriptionFlag;
 import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.socket.nio.NioSocketChannel;
+import org.jboss.netty.channel.socket.nio.NioWorker;
 import org.jboss.netty.handler.timeout.IdleStateHandler;
 import org.jboss.netty.util.Timer;
 
+import javax.annotation.Nullable;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.StampedLock;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
 
 public class SSMPServer extends SimpleChannelUpstreamHandler {
+    public static final long DEFAULT_PRESENCE_DELAY = 20;
+
     private final InetSocketAddress _addr;
     private final ServerBootstrap _bootstrap;
+    private final Timer _timer;
 
     private Channel _listenChannel;
+    private volatile @Nullable FanOut _fanOut;
+    private volatile @Nullable Federation _federation;
+
+    private volatile int _maxBatchBytes = WriteCoalescer.DEFAULT_MAX_BATCH_BYTES;
+    private volatile long _maxBatchDelay = 0;
+    private volatile boolean _zeroCopy;
+    private volatile long _presenceDelay = DEFAULT_PRESENCE_DELAY;
+    private final WriteCoalescer.Stats _writeStats = new WriteCoalescer.Stats();
+
+    private volatile @Nullable SlowConsumerPolicy _slowConsumerPolicy;
+    private volatile long _highWatermark;
+    private volatile long _lowWatermark;
+    private final AtomicLong _droppedEvents = new AtomicLong();
+    private final AtomicLong _evictedConsumers = new AtomicLong();
+    private final LongAdder _topicCount = new LongAdder();
+    private final LongAdder _subscriptionCount = new LongAdder();
+
+    // clients and topics, indexed by handle
+    private final HandleRegistry _handles = new HandleRegistry();
+    private final HandleTable<Connection> _clients = new HandleTable<>();
+    private final HandleTable<Topic> _topics = new HandleTable<>();
+    private final IdentifierTable _ids = new IdentifierTable(4096);
 
-    private final Map<SSMPIdentifier, Connection> _clients = new ConcurrentHashMap<>();
-    private final Map<SSMPIdentifier, Topic> _topics = new ConcurrentHashMap<>();
+    // sharded mode, see setShards
+    private int _shardCount;
+    private @Nullable Shard[] _shards;
 
 
+    // dense connection indices, see RecipientMarks
+    private final BitSet _indices = new BitSet();
+    // tells apart connections that successively held the same index, guarded by _indices
+    private int _serials;
+    // dense indices of the I/O workers seen so far, see workerIndex
+    private final Map<NioWorker, Integer> _workers = new IdentityHashMap<>();
+
     private static class Connection {
+        private static final AtomicIntegerFieldUpdater<Connection> CLOSED =
+                AtomicIntegerFieldUpdater.newUpdater(Connection.class, "_closed");
+
         private final Channel c;
         private final SSMPIdentifier id;
-        private final AtomicBoolean _closed = new AtomicBoolean();
-        private final Map<SSMPIdentifier, Topic> sub = new ConcurrentHashMap<>();
+        private final SSMPServer _server;
+        private final int _idx;
+        private final int _serial;
+        // see HandleRegistry, NONE for anonymous connections
+        private final int _handle;
+        // field updaters and SmallMap keep the footprint of idle connections down
+        private volatile int _closed;
+        private final SmallMap<SSMPIdentifier, Topic> sub = new SmallMap<>();
+        private final FanOut.Sequencer _seq = new FanOut.Sequencer();
+        // I/O worker owning the channel, if any, and its index, see SSMPServer#workerIndex
+        private final @Nullable NioWorker _worker;
+        private final int _workerIndex;
+        // framing negotiated at LOGIN, see BinaryFraming
+        private final boolean _binary;
+        // see SSMPRequest.Type#NOACK, only touched by one request at a time, like _seq
+        private boolean _noAck;
+        private long _published;
+
+        // outbound accounting, see SlowConsumerPolicy
+        private long _queued;
+        private boolean _congested;
+        private @Nullable Queue<ChannelBuffer> _backlog;
+        private long _backlogBytes;
 
-        Connection(Channel c) {
+        Connection(Channel c, SSMPServer server) {
             this.c = c;
-            this.id = ((ChannelData)c.getAttachment()).id;
+            ChannelData d = (ChannelData)c.getAttachment();
+            this.id = d.id;
+            _binary = d.binary;
+            _server = server;
+            _worker = c instanceof NioSocketChannel ? ((NioSocketChannel)c).getWorker() : null;
+            _workerIndex = server.workerIndex(_worker);
+            _handle = id.equals(SSMPIdentifier.ANONYMOUS)
+                    ? HandleRegistry.NONE : server._handles.acquire(id);
+            synchronized (server._indices) {
+                _idx = server._indices.nextClearBit(0);
+                server._indices.set(_idx);
+                _serial = ++server._serials;
+            }
             c.getCloseFuture().addListener(future -> close());
         }
 
+        boolean isClosed() {
+            return _closed != 0;
+        }
+
+        /**
+         * Write an event frame from any thread
+         *
+         * The write is always handed to the owning worker, which keeps it in submission order
+         * with respect to the per-worker batches issued by fan-out.
+         */
+        void send(Frame frame) {
+            if (_worker == null) {
+                write(frame);
+            } else {
+                _worker.executeInIoThread(() -> write(frame), true);
+            }
+        }
+
+        void write(Frame frame) {
+            write(frame.get(_binary));
+        }
+
+        /**
+         * Write an event frame, subject to the server's {@link SlowConsumerPolicy}
+         *
+         * Normally called from the owning worker.
+         */
+        void write(ChannelBuffer frame) {
+            SlowConsumerPolicy policy = _server._slowConsumerPolicy;
+            if (policy == null) {
+                c.write(frame);
+                return;
+            }
+            int n = frame.readableBytes();
+            synchronized (this) {
+                if (_congested) {
+                    if (policy == SlowConsumerPolicy.DROP_OLDEST) {
+                        hold(frame, _server._highWatermark - _server._lowWatermark);
+                    } else {
+                        _server._droppedEvents.incrementAndGet();
+                    }
+                    return;
+                }
+                _queued += n;
+                if (_queued > _server._highWatermark) {
+                    _congested = true;
+                    if (policy == SlowConsumerPolicy.DISCONNECT) {
+                        _queued -= n;
+                        _server._droppedEvents.incrementAndGet();
+                        _server._evictedConsumers.incrementAndGet();
+                        c.close();
+                        return;
+                    }
+                }
+            }
+            c.write(frame).addListener(future -> written(n));
+        }
+
+        // must hold this
+        private void hold(ChannelBuffer frame, long max) {
+            if (_backlog == null) _backlog = new ArrayDeque<>();
+            _backlog.add(frame);
+            _backlogBytes += frame.readableBytes();
+            while (_backlogBytes > max && _backlog.size() > 1) {
+                _backlogBytes -= _backlog.poll().readableBytes();
+                _server._droppedEvents.incrementAndGet();
+            }
+        }
+
+        private void written(int n) {
+            List<ChannelBuffer> resumed;
+            synchronized (this) {
+                _queued -= n;
+                if (!_congested || _queued > _server._lowWatermark) return;
+                _congested = false;
+                if (_backlog == null || _backlog.isEmpty()) return;
+                resumed = new ArrayList<>(_backlog);
+                _backlog.clear();
+                _backlogBytes = 0;
+            }
+            // may congest again midway, in which case the tail is held back anew
+            for (ChannelBuffer frame : resumed) write(frame);
+        }
+
         void close() {
-            if (!_closed.compareAndSet(false, true)) return;
+            if (!CLOSED.compareAndSet(this, 0, 1)) return;
             for (Topic t : sub.values()) {
-                t.remove(id, this);
+                t.depart(id, this);
+            }
+            if (!id.equals(SSMPIdentifier.ANONYMOUS)) {
+                _server.onShard(id, () -> {
+                    // unless already replaced by a newer connection
+                    if (_server._clients.compareAndSet(_handle, this, null)) {
+                        Federation fed = _server._federation;
+                        if (fed != null) fed.clientDown(id);
+                    }
+                    _server._handles.release(_handle);
+                });
+            }
+            synchronized (_server._indices) {
+                _server._indices.clear(_idx);
             }
             if (c.isConnected()) c.close();
         }
     }
 
+    /**
+     * Event shared across recipients
+     *
+     * The event is encoded lazily, at most once per framing in use among its recipients. Racing
+     * recipients may both encode it, which is harmless.
+     */
+    private static class Frame {
+        private final SSMPEvent _ev;
+        private volatile @Nullable ChannelBuffer _text;
+        private volatile @Nullable ChannelBuffer _binary;
+
+        Frame(SSMPEvent ev) {
+            _ev = ev;
+        }
+
+        ChannelBuffer get(boolean binary) {
+            ChannelBuffer b = binary ? _binary : _text;
+            if (b == null) {
+                if (binary) {
+                    b = _binary = BinaryFraming.event(_ev);
+                } else {
+                    b = _text = SSMPResponseEncoder.encode(_ev);
+                }
+            }
+            return SSMPResponseEncoder.share(b);
+        }
+    }
+
+    /**
+     * Single thread owning a partition of clients and topics, see {@link SSMPServer#setShards}
+     */
+    private static class Shard {
+        private final ShardExecutor _executor;
+
+        Shard(int i) {
+            _executor = new ShardExecutor("ssmp-shard-" + i);
+        }
+
+        void execute(Runnable r) {
+            _executor.execute(r);
+        }
+    }
+
+    // prefixes of the entries of PRESENCE events
+    private static final byte JOINED = '+';
+    private static final byte JOINED_PRESENCE = '*';
+    private static final byte LEFT = '-';
+
+    /**
+     * Pack membership entries into as few PRESENCE events as the payload limit allows
+     */
+    private static List<SSMPEvent> presenceEvents(SSMPIdentifier topic, List<byte[]> entries) {
+        List<SSMPEvent> events = new ArrayList<>();
+        byte[] b = new byte[SSMPDecoder.MAX_PAYLOAD_LENGTH];
+        int n = 0;
+        for (byte[] e : entries) {
+            if (n > 0 && n + 1 + e.length > b.length) {
+                events.add(new SSMPEvent(SSMPIdentifier.ANONYMOUS, Type.PRESENCE, topic,
+                        Arrays.copyOf(b, n)));
+                n = 0;
+            }
+            if (n > 0) b[n++] = ' ';
+            System.arraycopy(e, 0, b, n, e.length);
+            n += e.length;
+        }
+        if (n > 0) {
+            events.add(new SSMPEvent(SSMPIdentifier.ANONYMOUS, Type.PRESENCE, topic,
+                    Arrays.copyOf(b, n)));
+        }
+        return events;
+    }
+
+    private static List<SSMPEvent> presenceEvents(SSMPIdentifier topic, Subscription[] members) {
+        List<byte[]> entries = new ArrayList<>(members.length);
+        for (Subscription s : members) {
+            byte[] id = s.c.id.getBytes();
+            byte[] entry = new byte[1 + id.length];
+            entry[0] = s.presence ? JOINED_PRESENCE : JOINED;
+            System.arraycopy(id, 0, entry, 1, id.length);
+            entries.add(entry);
+        }
+        return presenceEvents(topic, entries);
+    }
+
+    /**
+     * Per-thread recipient marks used to de-duplicate BCAST recipients, indexed by connection
+     * index. Each BCAST bumps the epoch, which implicitly clears all previous marks, so the
+     * steady state involves neither allocation nor hashing.
+     *
+     * An index may be released and handed to a new connection midway through a BCAST, so each
+     * mark also records the serial of the connection that set it.
+     */
+    private static class RecipientMarks {
+        private static final ThreadLocal<RecipientMarks> LOCAL =
+                ThreadLocal.withInitial(RecipientMarks::new);
+
+        private int _epoch;
+        private int[] _marks = new int[64];
+        private int[] _serials = new int[64];
+        // frame of the current BCAST, see send
+        private @Nullable Frame _frame;
+
+        static RecipientMarks reset(Frame frame) {
+            RecipientMarks m = LOCAL.get();
+            if (++m._epoch == 0) {
+                Arrays.fill(m._marks, 0);
+                m._epoch = 1;
+            }
+            m._frame = frame;
+            return m;
+        }
+
+        // do not hold on to the frame until the next BCAST
+        void done() {
+            _frame = null;
+        }
+
+        /**
+         * Send the current frame to the subscribers not yet marked during the current epoch
+         */
+        void send(Subscription[] subs) {
+            for (Subscription s : subs) {
+                if (s.c.isClosed() || !mark(s.c)) continue;
+                s.c.send(_frame);
+            }
+        }
+
+        /**
+         * @return whether the connection was not yet marked during the current epoch
+         */
+        boolean mark(Connection c) {
+            int i = c._idx;
+            if (i >= _marks.length) {
+                int n = Math.max(i + 1, 2 * _marks.length);
+                _marks = Arrays.copyOf(_marks, n);
+                _serials = Arrays.copyOf(_serials, n);
+            }
+            if (_marks[i] == _epoch && _serials[i] == c._serial) return false;
+            _marks[i] = _epoch;
+            _serials[i] = c._serial;
+            return true;
+        }
+    }
+
     private static class Subscription {
         private final Connection c;
         private final boolean presence;
+        // presence reported through coalesced PRESENCE events, see SubscriptionFlag
+        private final boolean batched;
 
-        Subscription(Connection c, boolean presence) {
+        Subscription(Connection c, boolean presence, boolean batched) {
             this.c = c;
             this.presence = presence;
+            this.batched = batched;
+        }
+    }
+
+    private static class Departure {
+        private final SSMPIdentifier id;
+        private final Connection c;
+
+        Departure(SSMPIdentifier id, Connection c) {
+            this.id = id;
+            this.c = c;
         }
     }
 
     private static class Topic {
+        private final static Subscription[] EMPTY = new Subscription[0];
+        // returned by add once the topic was reclaimed, see remove
+        private final static Subscription[] RECLAIMED = new Subscription[0];
+        private final static AtomicIntegerFieldUpdater<Topic> DRAINING =
+                AtomicIntegerFieldUpdater.newUpdater(Topic.class, "_draining");
+        // cluster subscribers owned by the same I/O worker, see SSMPServer#write
+        private final static Comparator<Subscription> BY_WORKER =
+                Comparator.comparingInt(s -> s.c._workerIndex);
+
         private final SSMPIdentifier _id;
+        private final int _handle;
         private final SSMPServer _server;
-        private final ReadWriteLock _l = new StampedLock().asReadWriteLock();
-        private final Map<SSMPIdentifier, Subscription> sub = new HashMap<>();
+        private final Lock _l = new ReentrantLock();
+        // keyed by subscriber handle, each entry holding a reference to it
+        private final IntMap<Subscription> _sub = new IntMap<>();
+
+        // Immutable snapshots of the subscriber list, copied on write under _l, so that the
+        // fan-out paths only ever do a volatile read. Kept grouped by I/O worker.
+        private volatile Subscription[] _all = EMPTY;
+        // non-batched presence subscribers
+        private volatile Subscription[] _presence = EMPTY;
 
-        Topic(SSMPIdentifier id, SSMPServer server) {
+        // membership changes not yet reported to batched presence subscribers, see flush
+        private int _batched;
+        private final List<byte[]> _pending = new ArrayList<>();
+        private boolean _flushScheduled;
+
+        // removed from the topic map, the topic is discarded once it becomes empty
+        private boolean _reclaimed;
+
+        // disconnected subscribers not removed yet, see depart
+        private final Queue<Departure> _departures = new ConcurrentLinkedQueue<>();
+        private volatile int _draining;
+
+        Topic(SSMPIdentifier id, int handle, SSMPServer server) {
             _id = id;
+            _handle = handle;
             _server = server;
         }
 
-        boolean add(SSMPIdentifier id, Connection c, boolean presence) {
-            _l.writeLock().lock();
+        /**
+         * @return null if already subscribed, {@link #RECLAIMED} if the topic must be looked up
+         * anew, otherwise the previous subscribers that need to hear about the new member
+         * (presence subscribers, or everyone for a presence subscription)
+         */
+        @Nullable Subscription[] add(SSMPIdentifier id, Connection c, boolean presence,
+                                     boolean batched) {
+            _l.lock();
+            try {
+                if (_reclaimed) return RECLAIMED;
+                if (_sub.containsKey(c._handle)) return null;
+                // the snapshot sent to a batched subscriber already covers pending changes
+                if (batched) flush();
+                Subscription[] prev = presence ? _all : _presence;
+                if (_batched > 0) {
+                    record(presence ? JOINED_PRESENCE : JOINED, id);
+                    // a batched subscriber must not hear about its own subscription
+                    if (batched) flush();
+                }
+                if (_sub.isEmpty()) {
+                    Federation fed = _server._federation;
+                    if (fed != null) fed.topicUp(_id);
+                }
+                Subscription s = new Subscription(c, presence, batched);
+                _sub.put(c._handle, s);
+                _server._handles.retain(c._handle);
+                _server._subscriptionCount.increment();
+                _all = with(_all, s);
+                if (batched) {
+                    ++_batched;
+                } else if (presence) {
+                    _presence = with(_presence, s);
+                }
+                return prev;
+            } finally {
+                _l.unlock();
+            }
+        }
+
+        /**
+         * @return null if not subscribed, otherwise the remaining non-batched presence subscribers
+         */
+        @Nullable Subscription[] remove(SSMPIdentifier id, Connection c) {
+            _l.lock();
             try {
-                return sub.putIfAbsent(id, new Subscription(c, presence)) == null;
+                if (!removeLocked(id, c)) return null;
+                return _presence;
             } finally {
-                _l.writeLock().unlock();
+                _l.unlock();
             }
         }
 
-        void remove(SSMPIdentifier id, Connection c) {
-            _l.writeLock().lock();
+        /**
+         * Queue the removal of a disconnected subscriber
+         *
+         * Departures are applied in batches, under a single lock acquisition, by whichever thread
+         * first finds the queue idle (the owning shard in sharded mode). Other threads leave
+         * right away, so a mass disconnect does not pile up on the topic lock.
+         */
+        void depart(SSMPIdentifier id, Connection c) {
+            _departures.add(new Departure(id, c));
+            if (DRAINING.compareAndSet(this, 0, 1)) _server.onShard(_id, this::drain);
+        }
+
+        private void drain() {
+            do {
+                drainOnce();
+                // departures queued while draining saw the flag set and left them to us
+                _draining = 0;
+            } while (!_departures.isEmpty() && DRAINING.compareAndSet(this, 0, 1));
+        }
+
+        private void drainOnce() {
+            List<SSMPIdentifier> left = new ArrayList<>();
+            Subscription[] presence;
+            _l.lock();
             try {
-                sub.remove(id);
-                if (sub.isEmpty()) {
-                    _server._topics.remove(_id, c);
+                Departure d;
+                while ((d = _departures.poll()) != null) {
+                    if (removeLocked(d.id, d.c)) left.add(d.id);
                 }
+                if (left.isEmpty()) return;
+                presence = _presence;
             } finally {
-                _l.writeLock().unlock();
+                _l.unlock();
+            }
+            if (presence.length == 0) return;
+            // one UNSUBSCRIBE per member, which is all plain presence subscribers understand,
+            // batched subscribers hear about departures through the pending PRESENCE event
+            List<Frame> frames = new ArrayList<>(left.size());
+            for (SSMPIdentifier id : left) {
+                frames.add(new Frame(new SSMPEvent(id, Type.UNSUBSCRIBE, _id, null)));
+            }
+            write(presence, frames);
+        }
+
+        // must hold _l
+        private boolean removeLocked(SSMPIdentifier id, Connection c) {
+            Subscription s = _sub.get(c._handle);
+            if (s == null || s.c != c) return false;
+            _sub.remove(c._handle);
+            _server._handles.release(c._handle);
+            _server._subscriptionCount.decrement();
+            _all = without(_all, s);
+            if (s.batched) {
+                --_batched;
+            } else if (s.presence) {
+                _presence = without(_presence, s);
+            }
+            if (_batched > 0) record(LEFT, id);
+            if (_sub.isEmpty()) {
+                // racing subscribers see the flag and create a new topic
+                _reclaimed = true;
+                _server._topics.compareAndSet(_handle, this, null);
+                _server._handles.release(_handle);
+                _server._topicCount.decrement();
+                Federation fed = _server._federation;
+                if (fed != null) fed.topicDown(_id);
+            }
+            return true;
+        }
+
+        // consistent with the federation reports, which are made under _l
+        boolean isSubscribed() {
+            _l.lock();
+            try {
+                return !_sub.isEmpty();
+            } finally {
+                _l.unlock();
+            }
+        }
+
+        Subscription[] subscribers() {
+            return _all;
+        }
+
+        private static Subscription[] with(Subscription[] subs, Subscription s) {
+            int i = subs.length;
+            while (i > 0 && BY_WORKER.compare(subs[i - 1], s) > 0) --i;
+            Subscription[] r = new Subscription[subs.length + 1];
+            System.arraycopy(subs, 0, r, 0, i);
+            r[i] = s;
+            System.arraycopy(subs, i, r, i + 1, subs.length - i);
+            return r;
+        }
+
+        private static Subscription[] without(Subscription[] subs, Subscription s) {
+            for (int i = 0; i < subs.length; ++i) {
+                if (subs[i] != s) continue;
+                Subscription[] r = new Subscription[subs.length - 1];
+                System.arraycopy(subs, 0, r, 0, i);
+                System.arraycopy(subs, i + 1, r, i, r.length - i);
+                return r;
             }
+            return subs;
         }
 
-        void forEach(BiConsumer<SSMPIdentifier, Subscription> c) {
-            _l.readLock().lock();
+        // must hold _l
+        private void record(byte change, SSMPIdentifier id) {
+            byte[] b = id.getBytes();
+            byte[] entry = new byte[1 + b.length];
+            entry[0] = change;
+            System.arraycopy(b, 0, entry, 1, b.length);
+            _pending.add(entry);
+            if (!_flushScheduled) {
+                _flushScheduled = true;
+                _server.schedulePresence(this);
+            }
+        }
+
+        void scheduledFlush() {
+            _l.lock();
             try {
-                sub.forEach(c);
+                _flushScheduled = false;
+                flush();
             } finally {
-                _l.readLock().unlock();
+                _l.unlock();
+            }
+        }
+
+        // must hold _l
+        private void flush() {
+            if (_pending.isEmpty()) return;
+            List<Frame> frames = new ArrayList<>();
+            for (SSMPEvent ev : presenceEvents(_id, _pending)) frames.add(new Frame(ev));
+            _pending.clear();
+            for (Subscription s : _sub.values()) {
+                if (!s.batched) continue;
+                for (Frame f : frames) s.c.send(f);
             }
         }
     }
@@ -111,25 +632,211 @@ public class SSMPServer extends SimpleChannelUpstreamHandler {
     public SSMPServer(InetSocketAddress addr, Timer timer, ChannelFactory channelFactory,
                       SslHandlerFactory sslHandlerFactory, Authenticator auth) {
         _addr = addr;
+        _timer = timer;
         _bootstrap = new ServerBootstrap(channelFactory);
+        // sharable: one instance for all connections
+        IdleStateHandler idle = new IdleStateHandler(timer, 30, 0, 0, TimeUnit.SECONDS);
         _bootstrap.setPipelineFactory(() -> Channels.pipeline(
                 sslHandlerFactory.newSslHandler(),
-                new IdleStateHandler(timer, 30, 0, 0, TimeUnit.SECONDS),
-                new SSMPRequestDecoder(auth),
+                idle,
+                new WriteCoalescer(_maxBatchBytes, _maxBatchDelay, timer, _writeStats),
+                new SSMPRequestDecoder(auth, _zeroCopy, _ids),
                 new SSMPResponseEncoder(),
                 this
         ));
     }
 
     public void start() {
+        if (_shardCount > 0) {
+            Shard[] shards = new Shard[_shardCount];
+            for (int i = 0; i < shards.length; ++i) {
+                shards[i] = new Shard(i);
+                shards[i]._executor.start();
+            }
+            _shards = shards;
+        }
         _listenChannel = _bootstrap.bind(_addr);
     }
 
     public void stop() {
         _listenChannel.close().awaitUninterruptibly();
-        for (Connection c : _clients.values()) {
-            c.c.close();
+        _clients.forEach(c -> c.c.close());
+        Shard[] shards = _shards;
+        if (shards == null) return;
+        for (Shard s : shards) {
+            s._executor.stop();
+        }
+    }
+
+    /**
+     * Partition clients and topics across {@code n} single-threaded shards (experimental)
+     *
+     * Each shard owns the clients and topics whose identifier hashes to it, and is the only
+     * thread to change them. Requests are handed to the shard owning their destination. The
+     * requests of any given connection are still processed one at a time and in order, across
+     * shards. BCAST runs on the publisher's shard and reads the subscribers of topics owned by
+     * other shards, which is why topics keep their locks in this mode.
+     *
+     * This is not a fix for contention: the hand-off to shards costs more than it saves so far,
+     * and ChurnBenchmark shows sharded mode well behind the default. Leave it at 0 unless a
+     * benchmark on the target hardware says otherwise.
+     *
+     * Must be called before {@link #start}.
+     */
+    public void setShards(int n) {
+        if (n < 0) throw new IllegalArgumentException();
+        _shardCount = n;
+    }
+
+    /**
+     * Set how long membership changes are coalesced before being reported to
+     * {@link SubscriptionFlag#BATCHED_PRESENCE} subscribers
+     */
+    public void setPresenceCoalescing(long delayMillis) {
+        _presenceDelay = delayMillis;
+    }
+
+    private void schedulePresence(Topic t) {
+        _timer.newTimeout(timeout -> onShard(t._id, t::scheduledFlush), _presenceDelay,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Forward messages to, and accept messages from, other nodes, see {@link Federation}
+     *
+     * Must be called before {@link #start}.
+     */
+    public void setFederation(@Nullable Federation federation) {
+        _federation = federation;
+        if (federation != null) federation.attach(this);
+    }
+
+    private Shard shard(SSMPIdentifier id) {
+        int h = id.hashCode();
+        h ^= h >>> 16;
+        return _shards[(h & 0x7fffffff) % _shards.length];
+    }
+
+    /**
+     * @return a distinct index for each I/O worker, -1 for none
+     *
+     * Unlike identity hashes, indices never collide, so sorting subscribers by worker index
+     * always yields a single run per worker.
+     */
+    private int workerIndex(@Nullable NioWorker w) {
+        if (w == null) return -1;
+        synchronized (_workers) {
+            return _workers.computeIfAbsent(w, k -> _workers.size());
+        }
+    }
+
+    // run on the shard owning the given identifier, if any, inline otherwise
+    private void onShard(SSMPIdentifier id, Runnable r) {
+        if (_shards == null) {
+            r.run();
+        } else {
+            shard(id).execute(r);
+        }
+    }
+
+    // in sharded mode, must be called from the owning shard
+    private @Nullable Topic topic(SSMPIdentifier id) {
+        int h = _handles.get(id);
+        if (h == HandleRegistry.NONE) return null;
+        Topic t = _topics.get(h);
+        // the handle may have been recycled in the meantime
+        return t != null && t._id.equals(id) ? t : null;
+    }
+
+    // in sharded mode, must be called from the owning shard
+    private @Nullable Connection client(SSMPIdentifier id) {
+        int h = _handles.get(id);
+        if (h == HandleRegistry.NONE) return null;
+        Connection c = _clients.get(h);
+        return c != null && c.id.equals(id) ? c : null;
+    }
+
+    /**
+     * Hand large fan-outs to the given scheduler instead of running them on the I/O workers
+     *
+     * Must be called before {@link #start}.
+     */
+    public void setFanOut(@Nullable FanOut fanOut) {
+        _fanOut = fanOut;
+    }
+
+    /**
+     * Configure the outbound aggregation of each connection, see {@link WriteCoalescer}
+     *
+     * Only affects connections accepted afterwards.
+     */
+    public void setWriteCoalescing(int maxBatchBytes, long maxDelayMillis) {
+        _maxBatchBytes = maxBatchBytes;
+        _maxBatchDelay = maxDelayMillis;
+    }
+
+    /**
+     * Relay UCAST/MCAST/BCAST payloads without copying them
+     *
+     * Payloads are kept as slices of the inbound buffers and written as is into the outbound
+     * frames. The flip side is that each event queued for delivery holds on to the entire
+     * inbound buffer it was read from.
+     *
+     * Only affects connections accepted afterwards.
+     */
+    public void setZeroCopyPayloads(boolean zeroCopy) {
+        _zeroCopy = zeroCopy;
+    }
+
+    public WriteCoalescer.Stats getWriteStats() {
+        return _writeStats;
+    }
+
+    /**
+     * Bound the outbound queue of each subscriber
+     *
+     * Once the amount of event data written to a connection but not yet flushed to the socket
+     * goes above {@code highWatermark} bytes, further events are handled according to
+     * {@code policy} until it drains below {@code lowWatermark} bytes.
+     *
+     * A null policy, the default, leaves outbound queues unbounded.
+     */
+    public void setSlowConsumerPolicy(@Nullable SlowConsumerPolicy policy,
+                                      long highWatermark, long lowWatermark) {
+        if (policy != null && (lowWatermark < 0 || lowWatermark > highWatermark)) {
+            throw new IllegalArgumentException();
         }
+        _highWatermark = highWatermark;
+        _lowWatermark = lowWatermark;
+        _slowConsumerPolicy = policy;
+    }
+
+    /**
+     * @return number of events discarded by the {@link SlowConsumerPolicy}
+     */
+    public long getDroppedEvents() {
+        return _droppedEvents.get();
+    }
+
+    /**
+     * @return number of connections closed by {@link SlowConsumerPolicy#DISCONNECT}
+     */
+    public long getEvictedConsumers() {
+        return _evictedConsumers.get();
+    }
+
+    /**
+     * @return number of live topics, i.e. topics with at least one subscriber
+     */
+    public long getTopicCount() {
+        return _topicCount.sum();
+    }
+
+    /**
+     * @return number of live subscriptions, across all topics
+     */
+    public long getSubscriptionCount() {
+        return _subscriptionCount.sum();
     }
 
     public int getListeningPort()
@@ -139,14 +846,222 @@ public class SSMPServer extends SimpleChannelUpstreamHandler {
 
     @Override
     public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) {
-        SSMPIdentifier id = ((ChannelData) ctx.getChannel().getAttachment()).id;
-        if (id.equals(SSMPIdentifier.ANONYMOUS)) return;
-        Connection prev = _clients.put(id, new Connection(ctx.getChannel()));
+        Connection c = new Connection(ctx.getChannel(), this);
+        ctx.setAttachment(c);
+        if (c.id.equals(SSMPIdentifier.ANONYMOUS)) return;
+        onShard(c.id, () -> register(c));
+    }
+
+    private void register(Connection c) {
+        Connection prev = _clients.set(c._handle, c);
+        Federation fed = _federation;
+        if (fed != null && (prev == null || prev.isClosed())) fed.clientUp(c.id);
         if (prev != null) {
             prev.c.close();
         }
     }
 
+    private Connection connection(Channel channel) {
+        return (Connection)channel.getPipeline().getContext(this).getAttachment();
+    }
+
+    /**
+     * Write a shared frame to a range of subscribers
+     *
+     * Snapshots are grouped by I/O worker, which allows a single task to be handed to each
+     * worker instead of one cross-thread write per subscriber.
+     */
+    private static void write(Subscription[] subs, int from, int to, Frame frame) {
+        int i = from;
+        while (i < to) {
+            NioWorker w = subs[i].c._worker;
+            int j = i + 1;
+            while (j < to && subs[j].c._worker == w) ++j;
+            if (w == null) {
+                writeRun(subs, i, j, frame);
+            } else {
+                final int start = i, end = j;
+                w.executeInIoThread(() -> writeRun(subs, start, end, frame), true);
+            }
+            i = j;
+        }
+    }
+
+    private static void writeRun(Subscription[] subs, int from, int to, Frame frame) {
+        for (int i = from; i < to; ++i) {
+            subs[i].c.write(frame);
+        }
+    }
+
+    /**
+     * Write several shared frames, in order, to each of a list of subscribers, see above
+     */
+    private static void write(Subscription[] subs, List<Frame> frames) {
+        int i = 0;
+        while (i < subs.length) {
+            NioWorker w = subs[i].c._worker;
+            int j = i + 1;
+            while (j < subs.length && subs[j].c._worker == w) ++j;
+            final int start = i, end = j;
+            Runnable r = () -> {
+                for (int k = start; k < end; ++k) {
+                    for (Frame f : frames) subs[k].c.write(f);
+                }
+            };
+            if (w == null) {
+                r.run();
+            } else {
+                w.executeInIoThread(r, true);
+            }
+            i = j;
+        }
+    }
+
+    /**
+     * Deliver a shared frame to a list of subscribers, in publisher order, then run
+     * {@code then}, e.g. to respond to the publisher once every subscriber has the frame
+     *
+     * In unsharded mode with a fan-out executor, later requests are answered without waiting
+     * for the publisher's sequencer, so {@code then} runs right away instead, ahead of the
+     * delivery it would otherwise follow.
+     *
+     * @return false if the delivery went asynchronous in sharded mode, in which case it runs
+     * {@code then} and resumes the publisher's sequencer on completion
+     */
+    private boolean deliver(Connection pub, Subscription[] subs, Frame frame, Runnable then) {
+        FanOut f = _fanOut;
+        if (f == null) {
+            write(subs, 0, subs.length, frame);
+        } else if (_shards != null) {
+            // already running as a task of the publisher's sequencer
+            if (!f.run(subs.length, (from, to) -> write(subs, from, to, frame), () -> {
+                then.run();
+                pub._seq.resume();
+            })) {
+                return false;
+            }
+        } else {
+            then.run();
+            pub._seq.submit(() -> f.run(subs.length,
+                    (from, to) -> write(subs, from, to, frame), pub._seq::resume));
+            return true;
+        }
+        then.run();
+        return true;
+    }
+
+    // run deliveries that do not warrant a fan-out, in publisher order
+    private void sequence(Connection pub, Runnable r) {
+        if (_fanOut == null || _shards != null) {
+            r.run();
+        } else {
+            pub._seq.submit(() -> {
+                r.run();
+                return true;
+            });
+        }
+    }
+
+    // same, without allocating unless the delivery has to wait for the sequencer
+    private void sequence(Connection pub, Frame frame, BiConsumer<Connection, Frame> f) {
+        if (_fanOut == null || _shards != null) {
+            f.accept(pub, frame);
+        } else {
+            pub._seq.submit(() -> {
+                f.accept(pub, frame);
+                return true;
+            });
+        }
+    }
+
+    /**
+     * Send a BCAST frame to the subscribers of every topic of the publisher, at most once each
+     *
+     * In sharded mode this runs on the publisher's shard, yet reads topics owned by other
+     * shards. That is only safe because topics still guard their changes with their own lock
+     * and publish immutable subscriber snapshots: do not drop the topic locks on the grounds
+     * that each topic is owned by a single shard.
+     */
+    private static void bcast(Connection pub, Frame frame) {
+        RecipientMarks m = RecipientMarks.reset(frame);
+        m.mark(pub);
+        // in place, with a non-capturing callback
+        pub.sub.forEachValue((t, marks) -> marks.send(t.subscribers()), m);
+        m.done();
+    }
+
+    /**
+     * Report local clients and topics with local subscribers to a new peer
+     *
+     * Must be called from the thread that reports membership changes, see {@link Federation},
+     * so that a change either shows up here or is reported afterwards, never before.
+     */
+    void membership(Federation.Membership m) {
+        _clients.forEach(c -> {
+            // closing connections are marked before reporting their departure
+            if (!c.isClosed()) m.client(c.id);
+        });
+        _topics.forEach(t -> {
+            if (t.isSubscribed()) m.topic(t._id);
+        });
+    }
+
+    /**
+     * Deliver an event forwarded by another node to local recipients
+     *
+     * @param topics topics of the publisher served by this node, for BCAST
+     * @param done called once the event is delivered
+     */
+    void relay(SSMPEvent ev, @Nullable List<SSMPIdentifier> topics, Runnable done) {
+        switch (ev.type) {
+        case UCAST:
+            onShard(ev.to, () -> {
+                Connection c = client(ev.to);
+                if (c != null && !c.isClosed()) c.send(new Frame(ev));
+                done.run();
+            });
+            break;
+        case MCAST:
+            onShard(ev.to, () -> {
+                Topic t = topic(ev.to);
+                Subscription[] subs = t != null ? t.subscribers() : Topic.EMPTY;
+                Frame frame = new Frame(ev);
+                FanOut f = _fanOut;
+                if (f == null) {
+                    write(subs, 0, subs.length, frame);
+                    done.run();
+                } else if (f.run(subs.length, (from, to) -> write(subs, from, to, frame), done)) {
+                    done.run();
+                }
+            });
+            break;
+        case BCAST:
+            collect(new Frame(ev), topics, 0, new ArrayList<>(), done);
+            break;
+        default:
+            done.run();
+            break;
+        }
+    }
+
+    // gather the subscribers of each topic from its owning shard, then deliver once to each
+    private void collect(Frame frame, List<SSMPIdentifier> topics, int i,
+                         List<Subscription[]> subs, Runnable done) {
+        if (i == topics.size()) {
+            RecipientMarks m = RecipientMarks.reset(frame);
+            for (Subscription[] l : subs) m.send(l);
+            m.done();
+            done.run();
+            return;
+        }
+        SSMPIdentifier id = topics.get(i);
+        onShard(id, () -> {
+            Topic t = topic(id);
+            if (t != null) subs.add(t.subscribers());
+            collect(frame, topics, i + 1, subs, done);
+        });
+    }
+
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent me) {
         requestReceived(ctx.getChannel(), ((IdAddress)ctx.getChannel().getAttachment()).id,
@@ -154,39 +1069,107 @@ public class SSMPServer extends SimpleChannelUpstreamHandler {
     }
 
     private Topic getOrCreate(SSMPIdentifier topic) {
-        Topic n = new Topic(topic, this);
-        Topic t = _topics.putIfAbsent(topic, n);
-        return t != null ? t : n;
+        while (true) {
+            Topic t = topic(topic);
+            if (t != null) return t;
+            int h = _handles.acquire(topic);
+            t = new Topic(topic, h, this);
+            if (_topics.compareAndSet(h, null, t)) {
+                _topicCount.increment();
+                return t;
+            }
+            // lost a race with another subscriber
+            _handles.release(h);
+        }
+    }
+
+    /**
+     * Create-or-join, retried if the topic is concurrently reclaimed, see {@link Topic#add}
+     */
+    private @Nullable Subscription[] subscribe(SSMPIdentifier topic, SSMPIdentifier id,
+                                               Connection c, boolean presence, boolean batched) {
+        while (true) {
+            Topic t = getOrCreate(topic);
+            Subscription[] peers = t.add(id, c, presence, batched);
+            if (peers == Topic.RECLAIMED) continue;
+            if (peers != null) c.sub.put(topic, t);
+            return peers;
+        }
     }
 
     protected void requestReceived(Channel channel, SSMPIdentifier from, SSMPRequest r) {
+        Connection pub = connection(channel);
+        if (_shards == null) {
+            handle(pub, channel, from, r);
+            return;
+        }
+        // hold the sequencer until the owning shard is done, so that requests of a connection,
+        // and the resulting responses and events, keep their order even across shards
+        Shard s = shard(r.to != null ? r.to : from);
+        pub._seq.submit(() -> {
+            s.execute(() -> {
+                boolean done = true;
+                try {
+                    done = handle(pub, channel, from, r);
+                } finally {
+                    if (done) pub._seq.resume();
+                }
+            });
+            return false;
+        });
+    }
+
+    /**
+     * Respond to a UCAST, MCAST or BCAST, in either mode, see {@link SSMPRequest.Type#NOACK}
+     */
+    private static void published(Connection pub, Channel channel, int code) {
+        if (!pub._noAck) {
+            channel.write(new SSMPResponse(code, null));
+            return;
+        }
+        long seq = ++pub._published;
+        if (code == SSMPResponse.OK) return;
+        channel.write(new SSMPEvent(SSMPIdentifier.ANONYMOUS, Type.NACK, null,
+                (seq + " " + code).getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    /**
+     * @return false if the request went asynchronous in sharded mode, see {@link #deliver}
+     */
+    private boolean handle(Connection pub, Channel channel, SSMPIdentifier from, SSMPRequest r) {
+        boolean done = true;
         switch (r.type) {
         case SUBSCRIBE: {
             if (from.equals(SSMPIdentifier.ANONYMOUS)) {
                 channel.write(new SSMPResponse(SSMPResponse.NOT_ALLOWED, null));
-                return;
+                return true;
             }
-            Topic t = getOrCreate(r.to);
-            Connection c = _clients.get(from);
-            boolean presence = Arrays.equals(r.payload, SubscriptionFlag.PRESENCE._s);
-            if (!t.add(from, c, presence)) {
+            boolean batched = Arrays.equals(r.payload, SubscriptionFlag.BATCHED_PRESENCE._s);
+            boolean presence = batched || Arrays.equals(r.payload, SubscriptionFlag.PRESENCE._s);
+            Subscription[] peers = subscribe(r.to, from, pub, presence, batched);
+            if (peers == null) {
                 channel.write(new SSMPResponse(SSMPResponse.CONFLICT, null));
                 break;
             }
-            c.sub.put(r.to, t);
 
             channel.write(new SSMPResponse(SSMPResponse.OK, null));
-            t.forEach((id, s) -> {
-                if (id.equals(from)) return;
-                if (s.presence) {
-                    s.c.c.write(new SSMPEvent(from, Type.SUBSCRIBE, r.to,
-                            presence ? SubscriptionFlag.PRESENCE.name()
-                                    .getBytes(StandardCharsets.US_ASCII) : null));
-                }
-                if (presence) {
-                    channel.write(new SSMPEvent(s.c.id, Type.SUBSCRIBE, r.to,
-                            s.presence ? SubscriptionFlag.PRESENCE.name()
-                                    .getBytes(StandardCharsets.US_ASCII) : null));
+            if (peers.length == 0) break;
+            if (batched) {
+                // written right away, ahead of any coalesced change
+                for (SSMPEvent ev : presenceEvents(r.to, peers)) channel.write(ev);
+            }
+            Frame joined = new Frame(new SSMPEvent(from, Type.SUBSCRIBE,
+                    r.to, presence ? SubscriptionFlag.PRESENCE._s : null));
+            sequence(pub, () -> {
+                for (Subscription s : peers) {
+                    // batched subscribers hear about the new member through Topic#flush
+                    if (s.presence && !s.batched) {
+                        s.c.send(joined);
+                    }
+                    if (presence && !batched) {
+                        channel.write(new SSMPEvent(s.c.id, Type.SUBSCRIBE, r.to,
+                                s.presence ? SubscriptionFlag.PRESENCE._s : null));
+                    }
                 }
             });
             break;
@@ -194,59 +1177,70 @@ public class SSMPServer extends SimpleChannelUpstreamHandler {
         case UNSUBSCRIBE: {
             if (from.equals(SSMPIdentifier.ANONYMOUS)) {
                 channel.write(new SSMPResponse(SSMPResponse.NOT_ALLOWED, null));
-                return;
+                return true;
             }
-            Connection c = _clients.get(from);
-            Topic t = c.sub.remove(r.to);
-            if (t == null) {
+            Topic t = pub.sub.remove(r.to);
+            Subscription[] peers = t != null ? t.remove(from, pub) : null;
+            if (peers == null) {
                 channel.write(new SSMPResponse(SSMPResponse.NOT_FOUND, null));
                 break;
             }
-            t.sub.remove(from, c);
             channel.write(new SSMPResponse(SSMPResponse.OK, null));
-            t.forEach((id, s) -> {
-                if (s.presence) {
-                    s.c.c.write(new SSMPEvent(from, Type.UNSUBSCRIBE, r.to, null));
-                }
-            });
+            if (peers.length == 0) break;
+            Frame left = new Frame(new SSMPEvent(from, Type.UNSUBSCRIBE, r.to, null));
+            done = deliver(pub, peers, left, () -> {});
             break;
         }
         case UCAST: {
-            Connection c = _clients.get(r.to);
+            Connection c = client(r.to);
+            SSMPEvent ev = new SSMPEvent(from, Type.UCAST, r.to, r.payload, r._slice, r.binary);
+            if (c == null || c.isClosed()) {
+                // the recipient may be connected to another node
+                Federation fed = _federation;
+                if (fed != null && fed.ucast(ev)) {
+                    published(pub, channel, SSMPResponse.OK);
+                    break;
+                }
+            }
             if (c == null) {
-                channel.write(new SSMPResponse(SSMPResponse.NOT_FOUND, null));
-                return;
+                published(pub, channel, SSMPResponse.NOT_FOUND);
+                return true;
             }
-            c.c.write(new SSMPEvent(from, Type.UCAST, r.to, r.payload, r.binary));
-            channel.write(new SSMPResponse(SSMPResponse.OK, null));
+            Frame frame = new Frame(ev);
+            sequence(pub, () -> c.send(frame));
+            published(pub, channel, SSMPResponse.OK);
             break;
         }
         case MCAST: {
-            Topic t = _topics.get(r.to);
-            if (t != null) {
-                t.forEach((id, s) -> {
-                    s.c.c.write(new SSMPEvent(from, Type.MCAST, r.to, r.payload, r.binary));
-                });
+            Topic t = topic(r.to);
+            SSMPEvent ev = new SSMPEvent(from, Type.MCAST, r.to, r.payload, r._slice, r.binary);
+            Federation fed = _federation;
+            if (fed != null) fed.mcast(ev);
+            if (t == null) {
+                published(pub, channel, SSMPResponse.OK);
+                break;
             }
-            channel.write(new SSMPResponse(SSMPResponse.OK, null));
+            // encode once per framing, share the frame across all subscribers
+            done = deliver(pub, t.subscribers(), new Frame(ev),
+                    () -> published(pub, channel, SSMPResponse.OK));
             break;
         }
         case BCAST: {
             if (from.equals(SSMPIdentifier.ANONYMOUS)) {
-                channel.write(new SSMPResponse(SSMPResponse.NOT_ALLOWED, null));
-                return;
-            }
-            Connection c = _clients.get(from);
-            Set<SSMPIdentifier> ids = new HashSet<>();
-            for (Topic t : c.sub.values()) {
-                t.forEach((id, s) -> {
-                    if (id.equals(from) || !ids.add(id)) return;
-                    s.c.c.write(new SSMPEvent(from, Type.BCAST, null, r.payload, r.binary));
-                });
+                published(pub, channel, SSMPResponse.NOT_ALLOWED);
+                return true;
             }
-            channel.write(new SSMPResponse(SSMPResponse.OK, null));
+            SSMPEvent ev = new SSMPEvent(from, Type.BCAST, null, r.payload, r._slice, r.binary);
+            Federation fed = _federation;
+            if (fed != null) fed.bcast(ev, pub.sub.keys());
+            sequence(pub, new Frame(ev), SSMPServer::bcast);
+            published(pub, channel, SSMPResponse.OK);
             break;
         }
+        case NOACK:
+            pub._noAck = true;
+            channel.write(new SSMPResponse(SSMPResponse.OK, null));
+            break;
         case CLOSE:
             channel.write(new SSMPResponse(SSMPResponse.OK, null));
             channel.close();
@@ -255,5 +1249,6 @@ public class SSMPServer extends SimpleChannelUpstreamHandler {
             channel.write(new SSMPResponse(SSMPResponse.NOT_IMPLEMENTED, null));
             break;
         }
+        return done;
     }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single thread fed by a lock-free multi-producer queue
+ *
+ * State only ever touched by tasks of a given executor needs no synchronization. Tasks run in
+ * submission order for any given producer.
+ *
+ * The queue is an intrusive linked list: producers swap themselves in at the tail with a single
+ * atomic exchange and the consumer follows the links from the head, so neither side ever blocks
+ * the other. The thread parks when idle and is woken up by the first subsequent producer.
+ */
+final class ShardExecutor implements Executor {
+    private final static Logger L = LoggerFactory.getLogger(ShardExecutor.class);
+
+    private static final class Node {
+        Runnable r;
+        volatile Node next;
+
+        Node(Runnable r) {
+            this.r = r;
+        }
+    }
+
+    private final AtomicReference<Node> _tail;
+    // owned by the consumer, always an already consumed node
+    private Node _head;
+
+    private final Thread _thread;
+    private volatile boolean _waiting;
+    // only accessed by the consumer
+    private boolean _running = true;
+
+    ShardExecutor(String name) {
+        _head = new Node(null);
+        _tail = new AtomicReference<>(_head);
+        _thread = new Thread(this::run, name);
+        _thread.setDaemon(true);
+    }
+
+    void start() {
+        _thread.start();
+    }
+
+    /**
+     * Run the tasks already submitted, then terminate the thread
+     */
+    void stop() {
+        execute(() -> _running = false);
+        try {
+            _thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void execute(Runnable r) {
+        Node n = new Node(r);
+        _tail.getAndSet(n).next = n;
+        if (_waiting) {
+            _waiting = false;
+            LockSupport.unpark(_thread);
+        }
+    }
+
+    private void run() {
+        while (_running) {
+            Node next = _head.next;
+            if (next == null) {
+                _waiting = true;
+                // a producer may have swapped the tail but not linked it yet, spin until it does
+                if (_tail.get() == _head) LockSupport.park(this);
+                _waiting = false;
+                continue;
+            }
+            _head = next;
+            Runnable r = next.r;
+            next.r = null;
+            try {
+                r.run();
+            } catch (RuntimeException e) {
+                L.warn("shard task failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+/**
+ * What the server does with events addressed to a subscriber whose outbound queue went above
+ * the high watermark, until it drains below the low watermark.
+ *
+ * Responses to a client's own requests are never dropped.
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * Discard incoming events
+     */
+    DROP_NEWEST,
+    /**
+     * Hold back the most recent events, up to the difference between the two watermarks, and
+     * discard older ones
+     */
+    DROP_OLDEST,
+    /**
+     * Close the connection
+     */
+    DISCONNECT
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Thread-safe map optimized for the footprint of the common case of a handful of entries
+ *
+ * Empty maps hold no storage at all. Up to {@link #INLINE} entries are kept in a single array
+ * of alternating keys and values and looked up linearly. Larger maps switch to a HashMap for
+ * good.
+ *
+ * Accesses are expected to be mostly uncontended, hence plain synchronization. Iteration goes
+ * through copies, or happens in place with the map locked, see {@link #forEachValue}.
+ */
+final class SmallMap<K, V> {
+    static final int INLINE = 4;
+
+    private @Nullable Object[] _kv;
+    private int _n;
+    private @Nullable Map<K, V> _map;
+
+    synchronized @Nullable V get(K k) {
+        if (_map != null) return _map.get(k);
+        int i = indexOf(k);
+        return i < 0 ? null : value(i);
+    }
+
+    synchronized @Nullable V put(K k, V v) {
+        if (_map != null) return _map.put(k, v);
+        int i = indexOf(k);
+        if (i >= 0) {
+            V prev = value(i);
+            _kv[2 * i + 1] = v;
+            return prev;
+        }
+        if (_n == INLINE) {
+            _map = new HashMap<>();
+            for (int j = 0; j < _n; ++j) _map.put(key(j), value(j));
+            _map.put(k, v);
+            _kv = null;
+            _n = 0;
+            return null;
+        }
+        if (_kv == null) {
+            _kv = new Object[2];
+        } else if (_kv.length == 2 * _n) {
+            _kv = Arrays.copyOf(_kv, Math.min(2 * _kv.length, 2 * INLINE));
+        }
+        _kv[2 * _n] = k;
+        _kv[2 * _n + 1] = v;
+        ++_n;
+        return null;
+    }
+
+    synchronized @Nullable V remove(K k) {
+        if (_map != null) return _map.remove(k);
+        int i = indexOf(k);
+        if (i < 0) return null;
+        V prev = value(i);
+        // move the last entry into the hole
+        --_n;
+        _kv[2 * i] = _kv[2 * _n];
+        _kv[2 * i + 1] = _kv[2 * _n + 1];
+        _kv[2 * _n] = null;
+        _kv[2 * _n + 1] = null;
+        if (_n == 0) _kv = null;
+        return prev;
+    }
+
+    synchronized List<K> keys() {
+        if (_map != null) return new ArrayList<>(_map.keySet());
+        List<K> l = new ArrayList<>(_n);
+        for (int i = 0; i < _n; ++i) l.add(key(i));
+        return l;
+    }
+
+    synchronized List<V> values() {
+        if (_map != null) return new ArrayList<>(_map.values());
+        List<V> l = new ArrayList<>(_n);
+        for (int i = 0; i < _n; ++i) l.add(value(i));
+        return l;
+    }
+
+    /**
+     * Call {@code f} with every value and {@code arg}, in place, with the map locked
+     *
+     * A non-capturing {@code f} that gets its state from {@code arg} keeps the iteration free
+     * of allocations.
+     */
+    synchronized <A> void forEachValue(BiConsumer<? super V, A> f, A arg) {
+        if (_map != null) {
+            for (V v : _map.values()) f.accept(v, arg);
+            return;
+        }
+        for (int i = 0; i < _n; ++i) f.accept(value(i), arg);
+    }
+
+    private int indexOf(K k) {
+        for (int i = 0; i < _n; ++i) {
+            if (k.equals(_kv[2 * i])) return i;
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private K key(int i) {
+        return (K)_kv[2 * i];
+    }
+
+    @SuppressWarnings("unchecked")
+    private V value(int i) {
+        return (V)_kv[2 * i + 1];
+    }
+}
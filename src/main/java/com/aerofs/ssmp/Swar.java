@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Word-at-a-time scanning of inbound buffers
+ *
+ * Eight bytes are loaded at once and matched with carry-free arithmetic, which yields a word
+ * with the high bit of each matching byte set. Heap buffers are read through a cached view of
+ * their backing array, other buffers through {@link ChannelBuffer#getLong}. The last few bytes
+ * of a range are checked one at a time.
+ */
+final class Swar {
+    static final long ONES = 0x0101010101010101L;
+    static final long LOW = 0x7f7f7f7f7f7f7f7fL;
+    static final long HIGH = 0x8080808080808080L;
+
+    private Swar() {}
+
+    /**
+     * @return a word with the high bit of each byte set iff the corresponding byte of v is c
+     */
+    static long eq(long v, byte c) {
+        long x = v ^ (ONES * (c & 0xff));
+        return ~(((x & LOW) + LOW) | x | LOW);
+    }
+
+    /**
+     * @return index of the first occurrence of c in [from, to), or -1
+     */
+    static int indexOf(ChannelBuffer b, int from, int to, byte c) {
+        ByteBuffer v = view(b);
+        boolean bigEndian = v != null || b.order() == ByteOrder.BIG_ENDIAN;
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            long m = eq(word(b, v, i), c);
+            if (m != 0) return i + first(m, bigEndian);
+        }
+        for (; i < to; ++i) {
+            if (b.getByte(i) == c) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return index of the first byte in [from, to) that is not in s, or to
+     */
+    static int span(ChannelBuffer b, int from, int to, ByteSet s) {
+        ByteBuffer v = view(b);
+        boolean bigEndian = v != null || b.order() == ByteOrder.BIG_ENDIAN;
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            long m = ~s.matches(word(b, v, i)) & HIGH;
+            if (m != 0) return i + first(m, bigEndian);
+        }
+        for (; i < to; ++i) {
+            if (!s.contains(b.getByte(i))) return i;
+        }
+        return to;
+    }
+
+    // ChannelBuffer#getLong assembles words a byte at a time, a view of the backing array loads
+    // them at once; decoders keep scanning the same cumulation buffer, so the last view is kept
+    private static final ThreadLocal<ByteBuffer[]> VIEW =
+            ThreadLocal.withInitial(() -> new ByteBuffer[1]);
+
+    private static @Nullable ByteBuffer view(ChannelBuffer b) {
+        if (!b.hasArray()) return null;
+        ByteBuffer[] last = VIEW.get();
+        ByteBuffer v = last[0];
+        if (v == null || v.array() != b.array()) last[0] = v = ByteBuffer.wrap(b.array());
+        return v;
+    }
+
+    private static long word(ChannelBuffer b, @Nullable ByteBuffer v, int i) {
+        return v != null ? v.getLong(b.arrayOffset() + i) : b.getLong(i);
+    }
+
+    // @return offset of the first byte flagged in m, as loaded with the given byte order
+    private static int first(long m, boolean bigEndian) {
+        return (bigEndian ? Long.numberOfLeadingZeros(m) : Long.numberOfTrailingZeros(m)) >>> 3;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import static com.aerofs.ssmp.SSMPDecoder.MAX_VERB_LENGTH;
+
+/**
+ * Recognizes a fixed set of upper-case verbs straight from a buffer
+ *
+ * Verbs are bucketed by length and first letter, which leaves at most a couple of candidates to
+ * compare byte by byte and involves neither copy nor allocation.
+ */
+class VerbTable {
+    private final static int LETTERS = 'Z' - 'A' + 1;
+
+    private final byte[][] _verbs;
+    // first verb of each bucket, plus one, 0 if empty
+    private final int[] _head;
+    // next verb in the same bucket, plus one, 0 if none
+    private final int[] _next;
+
+    VerbTable(byte[][] verbs) {
+        _verbs = verbs;
+        _head = new int[(MAX_VERB_LENGTH + 1) * LETTERS];
+        _next = new int[verbs.length];
+        for (int i = verbs.length - 1; i >= 0; --i) {
+            int k = bucket(verbs[i][0], verbs[i].length);
+            if (k < 0) throw new IllegalArgumentException();
+            _next[i] = _head[k];
+            _head[k] = i + 1;
+        }
+    }
+
+    private static int bucket(byte first, int n) {
+        if (n > MAX_VERB_LENGTH || first < 'A' || first > 'Z') return -1;
+        return n * LETTERS + (first - 'A');
+    }
+
+    /**
+     * @return index of the verb spelled by the n bytes of b starting at offset, -1 if unknown
+     */
+    int find(ChannelBuffer b, int offset, int n) {
+        if (n == 0) return -1;
+        int k = bucket(b.getByte(offset), n);
+        if (k < 0) return -1;
+        for (int i = _head[k] - 1; i >= 0; i = _next[i] - 1) {
+            if (matches(_verbs[i], b, offset)) return i;
+        }
+        return -1;
+    }
+
+    private static boolean matches(byte[] v, ChannelBuffer b, int offset) {
+        for (int j = 1; j < v.length; ++j) {
+            if (b.getByte(offset + j) != v[j]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.socket.nio.NioSocketChannel;
+import org.jboss.netty.util.Timer;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-channel outbound aggregation stage
+ *
+ * Encoded frames written during one turn of the channel's I/O worker are gathered into a single
+ * downstream write, so that a connection receiving many small frames costs one SSL record and
+ * one syscall per batch instead of one per frame.
+ *
+ * A batch is flushed as soon as it reaches {@code maxBatchBytes}. Otherwise it is flushed at the
+ * end of the current worker turn or, if {@code maxDelayMillis} is positive, after lingering for
+ * at most that long. Channels without an I/O worker, e.g. local or embedded channels, have no
+ * turn to wait for: without a delay, frames are written through.
+ */
+public class WriteCoalescer extends SimpleChannelDownstreamHandler {
+    public static final int DEFAULT_MAX_BATCH_BYTES = 16 * 1024;
+
+    /**
+     * Aggregated counters, typically shared by all the channels of a client or server
+     */
+    public static class Stats {
+        private final AtomicLong _writes = new AtomicLong();
+        private final AtomicLong _frames = new AtomicLong();
+        private final AtomicLong _bytes = new AtomicLong();
+
+        void record(int frames, long bytes) {
+            _writes.incrementAndGet();
+            _frames.addAndGet(frames);
+            _bytes.addAndGet(bytes);
+        }
+
+        public long writes() { return _writes.get(); }
+        public long frames() { return _frames.get(); }
+        public long bytes() { return _bytes.get(); }
+
+        public double bytesPerWrite() {
+            long n = _writes.get();
+            return n == 0 ? 0 : (double)_bytes.get() / n;
+        }
+    }
+
+    private final int _maxBatchBytes;
+    private final long _maxDelayMillis;
+    private final Timer _timer;
+    private final Stats _stats;
+
+    // Serializes flushes: batches are taken and sent downstream in the same order, without
+    // holding the monitor, which writers only hold briefly to append.
+    private final Object _flushLock = new Object();
+
+    // guarded by this
+    private final List<MessageEvent> _pending = new ArrayList<>();
+    private int _pendingBytes;
+    private boolean _scheduled;
+
+    public WriteCoalescer(int maxBatchBytes, long maxDelayMillis, Timer timer, Stats stats) {
+        _maxBatchBytes = maxBatchBytes;
+        _maxDelayMillis = maxDelayMillis;
+        _timer = timer;
+        _stats = stats;
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent me) {
+        if (!(me.getMessage() instanceof ChannelBuffer)) {
+            ctx.sendDownstream(me);
+            return;
+        }
+        boolean defer = _maxDelayMillis > 0 || ctx.getChannel() instanceof NioSocketChannel;
+        boolean flush = false;
+        boolean schedule = false;
+        synchronized (this) {
+            _pending.add(me);
+            _pendingBytes += ((ChannelBuffer)me.getMessage()).readableBytes();
+            if (_pendingBytes >= _maxBatchBytes || !defer) {
+                // no worker turn to wait for on other channel types: write through
+                flush = true;
+            } else if (!_scheduled) {
+                _scheduled = schedule = true;
+            }
+        }
+        if (schedule) schedule(ctx);
+        if (flush) flush(ctx);
+    }
+
+    @Override
+    public void closeRequested(ChannelHandlerContext ctx, ChannelStateEvent e) {
+        flush(ctx);
+        ctx.sendDownstream(e);
+    }
+
+    private void schedule(ChannelHandlerContext ctx) {
+        if (_maxDelayMillis > 0) {
+            _timer.newTimeout(timeout -> scheduledFlush(ctx), _maxDelayMillis, TimeUnit.MILLISECONDS);
+        } else {
+            // runs once the worker is done processing the current batch of I/O events
+            ((NioSocketChannel)ctx.getChannel()).getWorker()
+                    .executeInIoThread(() -> scheduledFlush(ctx), true);
+        }
+    }
+
+    private void scheduledFlush(ChannelHandlerContext ctx) {
+        synchronized (this) {
+            _scheduled = false;
+        }
+        flush(ctx);
+    }
+
+    private void flush(ChannelHandlerContext ctx) {
+        synchronized (_flushLock) {
+            MessageEvent me = take(ctx);
+            if (me != null) ctx.sendDownstream(me);
+        }
+    }
+
+    /**
+     * @return pending frames as a single write, null if none
+     */
+    private synchronized @Nullable MessageEvent take(ChannelHandlerContext ctx) {
+        int n = _pending.size();
+        if (n == 0) return null;
+        _stats.record(n, _pendingBytes);
+        MessageEvent batch;
+        if (n == 1) {
+            batch = _pending.get(0);
+        } else {
+            ChannelBuffer[] frames = new ChannelBuffer[n];
+            ChannelFuture[] futures = new ChannelFuture[n];
+            for (int i = 0; i < n; ++i) {
+                MessageEvent me = _pending.get(i);
+                frames[i] = (ChannelBuffer)me.getMessage();
+                futures[i] = me.getFuture();
+            }
+            ChannelFuture f = Channels.future(ctx.getChannel());
+            f.addListener(cf -> {
+                for (ChannelFuture o : futures) {
+                    if (cf.isSuccess()) {
+                        o.setSuccess();
+                    } else {
+                        o.setFailure(cf.getCause());
+                    }
+                }
+            });
+            batch = new DownstreamMessageEvent(ctx.getChannel(), f,
+                    ChannelBuffers.wrappedBuffer(frames), null);
+        }
+        _pending.clear();
+        _pendingBytes = 0;
+        return batch;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import com.aerofs.ssmp.Loopback.Client;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.aerofs.ssmp.Loopback.id;
+import static com.aerofs.ssmp.Loopback.str;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link SSMPClient#batch} and {@link SSMPClient#setAutoBatching}
+ */
+@RunWith(Parameterized.class)
+public class BatchTest {
+    @Parameters(name = "binary={0}")
+    public static Collection<Object[]> framing() {
+        return Arrays.asList(new Object[][] { { false }, { true } });
+    }
+
+    private final boolean _binary;
+    private SSMPServer _server;
+    private Client _alice;
+    private Client _bob;
+    private final ExecutorService _pool = Executors.newFixedThreadPool(8);
+
+    public BatchTest(boolean binary) {
+        _binary = binary;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        _server = Loopback.server();
+        _server.start();
+        _alice = new Client(_server.getListeningPort(), "alice", c -> c.setBinaryFraming(_binary));
+        _bob = new Client(_server.getListeningPort(), "bob");
+    }
+
+    @After
+    public void tearDown() {
+        _pool.shutdownNow();
+        _alice.close();
+        _bob.close();
+        _server.stop();
+    }
+
+    private static int code(ListenableFuture<SSMPResponse> f) throws Exception {
+        return f.get(5, TimeUnit.SECONDS).code;
+    }
+
+    @Test
+    public void shouldWriteBatchAtOnce() throws Exception {
+        List<SSMPRequest> l = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            l.add(SSMPRequest.ucast(id(i % 3 == 0 ? "nobody" : "bob"), "p" + i));
+        }
+        long frames = _alice.c.getWriteStats().frames();
+        List<ListenableFuture<SSMPResponse>> f = _alice.c.batch(l);
+        assertEquals(1000, f.size());
+        for (int i = 0; i < 1000; ++i) assertEquals(i % 3 == 0 ? 404 : 200, code(f.get(i)));
+        assertEquals(1, _alice.c.getWriteStats().frames() - frames);
+        for (int i = 0; i < 1000; ++i) {
+            if (i % 3 != 0) assertEquals("p" + i, str(_bob.next().payload));
+        }
+        _bob.none();
+    }
+
+    @Test
+    public void shouldFailOnlyRequestsThatCannotBeEncoded() throws Exception {
+        // bypasses the validation of the factory methods
+        SSMPRequest tooLarge = new SSMPRequest(SSMPRequest.Type.UCAST, id("bob"),
+                new byte[SSMPDecoder.MAX_PAYLOAD_LENGTH + 1], true);
+        List<ListenableFuture<SSMPResponse>> f = _alice.c.batch(Arrays.asList(
+                SSMPRequest.ucast(id("bob"), "first"), tooLarge,
+                SSMPRequest.ucast(id("bob"), "last")));
+        assertEquals(200, code(f.get(0)));
+        try {
+            code(f.get(1));
+            throw new AssertionError();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        assertEquals(200, code(f.get(2)));
+        assertEquals("first", str(_bob.next().payload));
+        assertEquals("last", str(_bob.next().payload));
+        _bob.none();
+    }
+
+    @Test
+    public void shouldFailBatchWhenDisconnected() throws Exception {
+        _alice.c.disconnect();
+        for (ListenableFuture<SSMPResponse> f : _alice.c.batch(Arrays.asList(
+                SSMPRequest.ucast(id("bob"), "a"), SSMPRequest.ucast(id("bob"), "b")))) {
+            try {
+                code(f);
+                throw new AssertionError();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ClosedChannelException);
+            }
+        }
+    }
+
+    @Test
+    public void shouldAutoBatchConcurrentRequests() throws Exception {
+        _alice.c.setAutoBatching(true);
+        int threads = 8, n = 1000;
+        List<Future<?>> l = new ArrayList<>();
+        for (int t = 0; t < threads; ++t) {
+            int tt = t;
+            l.add(_pool.submit(() -> {
+                List<ListenableFuture<SSMPResponse>> r = new ArrayList<>();
+                for (int i = 0; i < n; ++i) {
+                    r.add(_alice.c.request(SSMPRequest.ucast(
+                            id(i % 2 == 0 ? "bob" : "nobody" + tt), tt + ":" + i)));
+                }
+                for (int i = 0; i < n; ++i) assertEquals(i % 2 == 0 ? 200 : 404, code(r.get(i)));
+                return null;
+            }));
+        }
+        for (Future<?> f : l) f.get(30, TimeUnit.SECONDS);
+
+        // each thread's requests keep their order
+        int[] next = new int[threads];
+        for (int i = 0; i < threads * n / 2; ++i) {
+            String[] p = str(_bob.next().payload).split(":");
+            int t = Integer.parseInt(p[0]);
+            assertEquals(next[t], Integer.parseInt(p[1]));
+            next[t] += 2;
+        }
+        _bob.none();
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import com.aerofs.ssmp.Loopback.Client;
+import com.aerofs.ssmp.SSMPRequest.SubscriptionFlag;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.aerofs.ssmp.Loopback.id;
+import static com.aerofs.ssmp.Loopback.str;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Clients using binary framing, alongside text clients on the same server
+ */
+@RunWith(Parameterized.class)
+public class BinaryFramingTest {
+    @Parameters(name = "zeroCopy={0}")
+    public static Collection<Object[]> zeroCopy() {
+        return Arrays.asList(new Object[][] { { false }, { true } });
+    }
+
+    private final boolean _zeroCopy;
+    private SSMPServer _server;
+    private final List<Client> _clients = new ArrayList<>();
+
+    public BinaryFramingTest(boolean zeroCopy) {
+        _zeroCopy = zeroCopy;
+    }
+
+    @Before
+    public void setUp() {
+        _server = Loopback.server();
+        _server.setZeroCopyPayloads(_zeroCopy);
+        _server.start();
+    }
+
+    @After
+    public void tearDown() {
+        _clients.forEach(Client::close);
+        _server.stop();
+    }
+
+    private Client client(String id, boolean binary) throws Exception {
+        Client c = new Client(_server.getListeningPort(), id, x -> x.setBinaryFraming(binary));
+        _clients.add(c);
+        return c;
+    }
+
+    @Test
+    public void shouldPrefixEventsWithTheirLength() {
+        byte[] b = { 0, '\n', ' ', (byte)0xff }, hi = { 'h', 'i' };
+        for (SSMPEvent e : new SSMPEvent[] {
+                new SSMPEvent(id("alice"), SSMPEvent.Type.MCAST, id("t"), b, true),
+                new SSMPEvent(id("alice"), SSMPEvent.Type.UCAST, id("bob"), hi, false),
+                new SSMPEvent(id("bob"), SSMPEvent.Type.SUBSCRIBE, id("t"), null, false),
+                new SSMPEvent(SSMPIdentifier.ANONYMOUS, SSMPEvent.Type.PONG, null, null) }) {
+            ChannelBuffer f = BinaryFraming.event(e);
+            assertTrue(BinaryFraming.isBinary(f));
+            assertEquals(f.readableBytes(), BinaryFraming.length(f));
+        }
+    }
+
+    @Test
+    public void shouldRelayAcrossFramings() throws Exception {
+        SSMPIdentifier t = id("topic");
+        Client a = client("alice", true), b = client("bob", false), d = client("dave", true);
+        assertEquals(200, a.req(SSMPRequest.subscribe(t, SubscriptionFlag.PRESENCE)));
+        assertEquals(200, b.req(SSMPRequest.subscribe(t, SubscriptionFlag.PRESENCE)));
+        assertEquals(id("bob"), a.next().from);
+        assertEquals(id("alice"), b.next().from);
+        assertEquals(200, d.req(SSMPRequest.subscribe(t, SubscriptionFlag.NONE)));
+        assertEquals(409, d.req(SSMPRequest.subscribe(t, SubscriptionFlag.NONE)));
+        assertEquals(id("dave"), a.next().from);
+        assertEquals(id("dave"), b.next().from);
+
+        byte[] bin = { 0, 1, '\n', ' ', 10, 32 };
+        for (Client from : new Client[] { a, b }) {
+            assertEquals(200, from.req(SSMPRequest.mcast(t, "hello world")));
+            assertEquals(200, from.req(SSMPRequest.mcast(t, bin)));
+            for (Client to : new Client[] { a, b, d }) {
+                SSMPEvent e = to.next();
+                assertEquals(SSMPEvent.Type.MCAST, e.type);
+                assertEquals(from == a ? id("alice") : id("bob"), e.from);
+                assertEquals(t, e.to);
+                assertFalse(e.binary);
+                assertEquals("hello world", str(e.payload));
+                e = to.next();
+                assertTrue(e.binary);
+                assertArrayEquals(bin, e.payload);
+            }
+        }
+
+        assertEquals(200, b.req(SSMPRequest.ucast(id("alice"), "hi alice")));
+        SSMPEvent e = a.next();
+        assertEquals(SSMPEvent.Type.UCAST, e.type);
+        assertEquals(id("alice"), e.to);
+        assertEquals("hi alice", str(e.payload));
+        assertEquals(404, a.req(SSMPRequest.ucast(id("nobody"), "x")));
+        assertEquals(200, d.req(SSMPRequest.bcast(bin)));
+        assertArrayEquals(bin, a.next().payload);
+        assertArrayEquals(bin, b.next().payload);
+
+        assertEquals(200, d.req(SSMPRequest.unsubscribe(t)));
+        assertEquals(404, d.req(SSMPRequest.unsubscribe(t)));
+        e = a.next();
+        assertEquals(SSMPEvent.Type.UNSUBSCRIBE, e.type);
+        assertNull(e.payload);
+        assertEquals(SSMPEvent.Type.UNSUBSCRIBE, b.next().type);
+        a.none();
+        b.none();
+        d.none();
+    }
+
+    @Test
+    public void shouldAnswerPipelinedRequestsInOrder() throws Exception {
+        Client a = client("alice", true), b = client("bob", false);
+        assertEquals(200, b.req(SSMPRequest.subscribe(id("t"), SubscriptionFlag.NONE)));
+        List<Future<SSMPResponse>> l = new ArrayList<>();
+        for (int i = 0; i < 400; ++i) {
+            byte[] p = new byte[i % SSMPDecoder.MAX_PAYLOAD_LENGTH + 1];
+            Arrays.fill(p, (byte)i);
+            l.add(a.c.request(i % 2 == 0 ? SSMPRequest.mcast(id("t"), p)
+                    : SSMPRequest.ucast(id("nobody"), "x")));
+        }
+        for (int i = 0; i < 400; ++i) {
+            assertEquals(i % 2 == 0 ? 200 : 404, l.get(i).get(5, TimeUnit.SECONDS).code);
+        }
+        for (int i = 0; i < 400; i += 2) {
+            byte[] p = b.next().payload;
+            assertEquals(i % SSMPDecoder.MAX_PAYLOAD_LENGTH + 1, p.length);
+            assertEquals((byte)i, p[0]);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import com.aerofs.ssmp.Loopback.Client;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.aerofs.ssmp.Loopback.id;
+import static com.aerofs.ssmp.Loopback.str;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link SSMPClient#request(SSMPRequest, FutureCallback)}
+ */
+public class CallbackTest {
+    private SSMPServer _server;
+    private Client _alice;
+    private Client _bob;
+
+    @Before
+    public void setUp() throws Exception {
+        _server = Loopback.server();
+        _server.start();
+        _alice = new Client(_server.getListeningPort(), "alice");
+        _bob = new Client(_server.getListeningPort(), "bob");
+    }
+
+    @After
+    public void tearDown() {
+        _alice.close();
+        _bob.close();
+        _server.stop();
+    }
+
+    // records completions in the order they are invoked
+    private static class Recorder implements FutureCallback<SSMPResponse> {
+        final List<Object> results;
+        final CountDownLatch done;
+        final Object id;
+
+        Recorder(List<Object> results, CountDownLatch done, Object id) {
+            this.results = results;
+            this.done = done;
+            this.id = id;
+        }
+
+        @Override
+        public void onSuccess(SSMPResponse r) {
+            synchronized (results) {
+                results.add(id + ":" + r.code);
+            }
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            synchronized (results) {
+                results.add(id + ":" + t.getClass().getSimpleName());
+            }
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void shouldCompleteInRequestOrder() throws Exception {
+        // many more requests in flight than the initial capacity of the completion ring
+        int n = 20000;
+        List<Object> results = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(n);
+        List<ListenableFuture<SSMPResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < n; ++i) {
+            SSMPRequest r = SSMPRequest.ucast(id(i % 5 == 0 ? "nobody" : "bob"), "c" + i);
+            if (i % 7 == 0) {
+                // futures and callbacks share the same ring
+                ListenableFuture<SSMPResponse> f = _alice.c.request(r);
+                futures.add(f);
+                f.addListener(done::countDown, Runnable::run);
+            } else {
+                _alice.c.request(r, new Recorder(results, done, i));
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        int k = 0, j = 0;
+        for (int i = 0; i < n; ++i) {
+            int expected = i % 5 == 0 ? 404 : 200;
+            if (i % 7 == 0) {
+                assertEquals(expected, futures.get(k++).get().code);
+            } else {
+                assertEquals(i + ":" + expected, results.get(j++));
+            }
+        }
+        for (int i = 0; i < n; ++i) {
+            if (i % 5 != 0) assertEquals("c" + i, str(_bob.next().payload));
+        }
+    }
+
+    @Test
+    public void shouldFailOnlyRequestsThatCannotBeEncoded() throws Exception {
+        List<Object> results = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        // bypasses the validation of the factory methods
+        SSMPRequest tooLarge = new SSMPRequest(SSMPRequest.Type.UCAST, id("bob"),
+                new byte[SSMPDecoder.MAX_PAYLOAD_LENGTH + 1], true);
+        _alice.c.request(SSMPRequest.ucast(id("bob"), "first"), new Recorder(results, done, 1));
+        _alice.c.request(tooLarge, new Recorder(results, done, 2));
+        _alice.c.request(SSMPRequest.ucast(id("bob"), "last"), new Recorder(results, done, 3));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(results.contains("1:200"));
+        assertTrue(results.contains("2:IllegalArgumentException"));
+        assertTrue(results.contains("3:200"));
+        assertEquals("first", str(_bob.next().payload));
+        assertEquals("last", str(_bob.next().payload));
+    }
+
+    @Test
+    public void shouldFailRightAwayWhenDisconnected() throws Exception {
+        _alice.c.disconnect();
+        CompletableFuture<Throwable> failure = new CompletableFuture<>();
+        _alice.c.request(SSMPRequest.ucast(id("bob"), "x"), new FutureCallback<SSMPResponse>() {
+            @Override public void onSuccess(SSMPResponse r) { failure.complete(null); }
+            @Override public void onFailure(Throwable t) { failure.complete(t); }
+        });
+        assertTrue(failure.get(5, TimeUnit.SECONDS) instanceof ClosedChannelException);
+    }
+
+    @Test
+    public void shouldCompleteRequestsRacingWithClose() throws Exception {
+        int n = 5000;
+        AtomicInteger completed = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(n);
+        FutureCallback<SSMPResponse> cb = new FutureCallback<SSMPResponse>() {
+            @Override public void onSuccess(SSMPResponse r) { complete(); }
+            @Override public void onFailure(Throwable t) { complete(); }
+
+            private void complete() {
+                completed.incrementAndGet();
+                done.countDown();
+            }
+        };
+        Thread sender = new Thread(() -> {
+            for (int i = 0; i < n; ++i) _alice.c.request(SSMPRequest.ucast(id("bob"), "r"), cb);
+        });
+        sender.start();
+        _alice.c.disconnect();
+        sender.join();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // nothing completes twice
+        Thread.sleep(100);
+        assertEquals(n, completed.get());
+    }
+}
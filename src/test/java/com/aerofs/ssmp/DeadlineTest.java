@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import com.aerofs.ssmp.Loopback.Client;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.aerofs.ssmp.Loopback.id;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Request deadlines and the in-flight window of SSMPClient
+ *
+ * The server takes 500ms to handle requests to "slow", and never answers requests to "void".
+ */
+public class DeadlineTest {
+    private SSMPServer _server;
+    private int _port;
+    private final List<Client> _clients = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        _server = new SSMPServer(new InetSocketAddress("localhost", 0), Loopback.TIMER,
+                new NioServerSocketChannelFactory(), () -> Loopback.ssl(false), Loopback.AUTH) {
+            @Override
+            protected void requestReceived(Channel channel, SSMPIdentifier from, SSMPRequest r) {
+                String to = r.to != null ? r.to.toString() : "";
+                if (to.equals("void")) return;
+                if (to.equals("slow")) {
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                super.requestReceived(channel, from, r);
+            }
+        };
+        _server.start();
+        _port = _server.getListeningPort();
+        client("bob", 0, 0, 0);
+    }
+
+    @After
+    public void tearDown() {
+        _clients.forEach(Client::close);
+        _server.stop();
+    }
+
+    private SSMPClient client(String id, long timeout, int maxInFlight, int maxQueued)
+            throws Exception {
+        Client c = new Client(_port, id, x -> {
+            x.setRequestTimeout(timeout);
+            x.setMaxInFlight(maxInFlight, maxQueued);
+        });
+        _clients.add(c);
+        return c.c;
+    }
+
+    private static @Nullable Throwable cause(ListenableFuture<SSMPResponse> f) throws Exception {
+        try {
+            f.get(5, TimeUnit.SECONDS);
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+
+    private static int code(ListenableFuture<SSMPResponse> f) throws Exception {
+        return f.get(5, TimeUnit.SECONDS).code;
+    }
+
+    private static SSMPRequest slow() {
+        return SSMPRequest.ucast(id("slow"), "s");
+    }
+
+    private static SSMPRequest ok() {
+        return SSMPRequest.ucast(id("bob"), "o");
+    }
+
+    private static SSMPRequest notFound() {
+        return SSMPRequest.ucast(id("nobody"), "n");
+    }
+
+    @Test
+    public void shouldDropLateResponses() throws Exception {
+        SSMPClient a = client("a", 200, 0, 0);
+        ListenableFuture<SSMPResponse> f1 = a.request(slow());
+        ListenableFuture<SSMPResponse> f2 = a.request(ok());
+        ListenableFuture<SSMPResponse> f3 = a.request(notFound());
+        assertTrue(cause(f1) instanceof TimeoutException);
+        assertTrue(cause(f2) instanceof TimeoutException);
+        assertTrue(cause(f3) instanceof TimeoutException);
+        assertEquals(3, a.getRequestStats().timeouts());
+
+        // late responses are swallowed by the tombstones, later ones still match
+        Thread.sleep(600);
+        assertEquals(0, a.getRequestStats().inFlight());
+        assertEquals(404, code(a.request(notFound())));
+        assertEquals(200, code(a.request(ok())));
+
+        CompletableFuture<Throwable> cb = new CompletableFuture<>();
+        a.request(slow(), new FutureCallback<SSMPResponse>() {
+            @Override public void onSuccess(SSMPResponse r) { cb.complete(null); }
+            @Override public void onFailure(Throwable t) { cb.complete(t); }
+        });
+        assertTrue(cb.get(5, TimeUnit.SECONDS) instanceof TimeoutException);
+        Thread.sleep(600);
+        assertEquals(404, code(a.request(notFound())));
+    }
+
+    @Test
+    public void shouldBoundRequestsInFlight() throws Exception {
+        SSMPClient w = client("w", 0, 2, 3);
+        List<ListenableFuture<SSMPResponse>> l = new ArrayList<>();
+        l.add(w.request(slow()));
+        for (int i = 0; i < 4; ++i) l.add(w.request(i % 2 == 0 ? notFound() : ok()));
+        assertEquals(2, w.getRequestStats().inFlight());
+        assertEquals(3, w.getRequestStats().queued());
+
+        ListenableFuture<SSMPResponse> r = w.request(ok());
+        assertTrue(r.isDone());
+        assertTrue(cause(r) instanceof RejectedExecutionException);
+        assertEquals(-1L, w.send(ok()));
+        List<ListenableFuture<SSMPResponse>> b = w.batch(Arrays.asList(ok(), notFound()));
+        assertTrue(cause(b.get(0)) instanceof RejectedExecutionException);
+        assertEquals(4, w.getRequestStats().rejected());
+
+        assertEquals(404, code(l.get(0)));
+        for (int i = 0; i < 4; ++i) assertEquals(i % 2 == 0 ? 404 : 200, code(l.get(i + 1)));
+        assertEquals(0, w.getRequestStats().inFlight());
+        assertEquals(0, w.getRequestStats().queued());
+
+        b = w.batch(Arrays.asList(notFound(), ok()));
+        assertEquals(404, code(b.get(0)));
+        assertEquals(200, code(b.get(1)));
+    }
+
+    @Test
+    public void shouldNeverExceedWindow() throws Exception {
+        SSMPClient w = client("w", 0, 4, 100000);
+        List<ListenableFuture<SSMPResponse>> l = new ArrayList<>();
+        for (int i = 0; i < 2000; ++i) {
+            l.add(w.request(i % 3 == 0 ? notFound() : ok()));
+            assertTrue(w.getRequestStats().inFlight() <= 4);
+        }
+        for (int i = 0; i < 2000; ++i) assertEquals(i % 3 == 0 ? 404 : 200, code(l.get(i)));
+    }
+
+    @Test
+    public void shouldExpireQueuedRequests() throws Exception {
+        SSMPClient x = client("x", 200, 1, 10);
+        ListenableFuture<SSMPResponse> f1 = x.request(slow());
+        ListenableFuture<SSMPResponse> f2 = x.request(ok());
+        assertEquals(1, x.getRequestStats().queued());
+        assertTrue(cause(f1) instanceof TimeoutException);
+        assertTrue(cause(f2) instanceof TimeoutException);
+        assertEquals(0, x.getRequestStats().queued());
+        // the tombstone holds the window until the late response
+        assertEquals(404, code(x.request(notFound())));
+        assertEquals(2, x.getRequestStats().timeouts());
+    }
+
+    @Test
+    public void shouldFailPendingRequestsOnDisconnect() throws Exception {
+        SSMPClient x = client("x", 0, 1, 10);
+        ListenableFuture<SSMPResponse> f1 = x.request(slow());
+        ListenableFuture<SSMPResponse> f2 = x.request(ok());
+        x.disconnect();
+        assertTrue(cause(f1) instanceof ClosedChannelException);
+        assertTrue(cause(f2) instanceof ClosedChannelException);
+        assertEquals(0, x.getRequestStats().inFlight());
+        assertEquals(0, x.getRequestStats().queued());
+    }
+
+    @Test
+    public void shouldCloseConnectionLeftWithOnlyTombstones() throws Exception {
+        CountDownLatch disconnected = new CountDownLatch(1);
+        SSMPClient c = new SSMPClient("localhost", _port, Loopback.TIMER, Loopback.CLIENTS,
+                () -> Loopback.ssl(true), e -> {});
+        c.setRequestTimeout(200);
+        CountDownLatch connected = new CountDownLatch(1);
+        c.connect(id("v"), id("secret"), "pw", new SSMPClient.ConnectionListener() {
+            @Override public void connected() { connected.countDown(); }
+            @Override public void disconnected() { disconnected.countDown(); }
+        });
+        try {
+            assertTrue(connected.await(5, TimeUnit.SECONDS));
+            // without a window, nothing else bounds the tombstones of an unresponsive server
+            List<ListenableFuture<SSMPResponse>> l = new ArrayList<>();
+            for (int i = 0; i <= SSMPClient.MAX_TIMED_OUT; ++i) {
+                l.add(c.request(SSMPRequest.ucast(id("void"), "v")));
+            }
+            for (ListenableFuture<SSMPResponse> f : l) {
+                assertTrue(cause(f) instanceof TimeoutException);
+            }
+            assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+            assertEquals(0, c.getRequestStats().inFlight());
+        } finally {
+            c.disconnect();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import com.aerofs.ssmp.SSMPRequest.SubscriptionFlag;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.aerofs.ssmp.Loopback.id;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Request and response decoders fed the same input split at every possible offset
+ *
+ * Each input is decoded whole, split in two at every offset, and one byte at a time, and must
+ * yield the same messages every time.
+ */
+public class DecoderTest {
+    private static final String BAD_REQUEST = describe(BinaryFraming.response(400, null));
+    private static final String X64 = String.join("", Collections.nCopies(64, "x"));
+
+    private static String str(ChannelBuffer b) {
+        return b.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String str(byte[] b) {
+        return new String(b, StandardCharsets.ISO_8859_1);
+    }
+
+    // a comparable rendering of anything the decoders emit, downstream writes included
+    private static String describe(Object o) {
+        if (o instanceof ChannelBuffer) return "BUF " + str((ChannelBuffer)o);
+        if (o instanceof SSMPResponse) {
+            SSMPResponse r = (SSMPResponse)o;
+            return "RES " + r.code + (r.payload != null ? " " + r.payload : "");
+        }
+        if (o instanceof SSMPRequest) {
+            SSMPRequest r = (SSMPRequest)o;
+            String p = r.payload != null ? str(r.payload) : r._slice != null ? str(r._slice) : null;
+            return "REQ " + r.type + (r.to != null ? " " + r.to : "")
+                    + (p != null ? " " + p : "") + (r.binary ? " (binary)" : "");
+        }
+        SSMPEvent e = (SSMPEvent)o;
+        return "EV " + e.from + " " + e.type + (e.to != null ? " " + e.to : "")
+                + (e.payload != null ? " " + str(e.payload) : "") + (e.binary ? " (binary)" : "");
+    }
+
+    private static List<String> decode(boolean requests, boolean zeroCopy, byte[] in,
+                                       int... cuts) {
+        DecoderEmbedder<Object> e = new DecoderEmbedder<>(requests
+                ? new SSMPRequestDecoder(Loopback.AUTH, zeroCopy,
+                        zeroCopy ? new IdentifierTable(16) : null)
+                : new SSMPResponseDecoder());
+        int p = 0;
+        for (int c : cuts) {
+            e.offer(ChannelBuffers.wrappedBuffer(Arrays.copyOfRange(in, p, c)));
+            p = c;
+        }
+        e.offer(ChannelBuffers.wrappedBuffer(Arrays.copyOfRange(in, p, in.length)));
+        List<String> l = new ArrayList<>();
+        Object o;
+        while ((o = e.poll()) != null) {
+            String d = describe(o);
+            l.add(d);
+            // the channel is closed after a bad request, but the embedder keeps feeding input
+            if (d.equals("BUF 400\n") || d.equals(BAD_REQUEST)) break;
+        }
+        return l;
+    }
+
+    /**
+     * @return the messages decoded from {@code in}, after checking that they do not depend on
+     * how the input is split
+     */
+    private static List<String> decodeSplit(boolean requests, boolean zeroCopy, String s) {
+        byte[] in = s.getBytes(StandardCharsets.ISO_8859_1);
+        List<String> whole = decode(requests, zeroCopy, in);
+        for (int i = 1; i < in.length; ++i) {
+            assertEquals("split at " + i, whole, decode(requests, zeroCopy, in, i));
+        }
+        int[] all = new int[in.length - 1];
+        for (int i = 0; i < all.length; ++i) all[i] = i + 1;
+        assertEquals("one byte at a time", whole, decode(requests, zeroCopy, in, all));
+        return whole;
+    }
+
+    private static List<String> requests(String s) {
+        List<String> l = decodeSplit(true, false, s);
+        assertEquals(l, decodeSplit(true, true, s));
+        return l;
+    }
+
+    private static List<String> responses(String s) {
+        return decodeSplit(false, false, s);
+    }
+
+    private static String binary(SSMPRequest... l) {
+        StringBuilder sb = new StringBuilder();
+        for (SSMPRequest r : l) sb.append(str(BinaryFraming.request(r)));
+        return sb.toString();
+    }
+
+    @Test
+    public void shouldDecodeTextRequests() {
+        assertEquals(Arrays.asList(
+                "BUF 200\n",
+                "BUF 000 . PONG\n",
+                "REQ SUBSCRIBE topic PRESENCE",
+                "REQ SUBSCRIBE t",
+                "REQ UNSUBSCRIBE t",
+                "REQ UCAST bob hello world",
+                "REQ MCAST t a\nb c (binary)",
+                "REQ BCAST hi",
+                "REQ BCAST z (binary)",
+                "REQ CLOSE",
+                "REQ MCAST " + X64 + " m"),
+                requests("LOGIN alice secret pw\nPING\nPONG\nSUBSCRIBE topic PRESENCE\n"
+                        + "SUBSCRIBE t\nUNSUBSCRIBE t\nUCAST bob hello world\n"
+                        + "MCAST t \u0000\u0004a\nb c\nBCAST hi\nBCAST \u0000\u0000z\n"
+                        + "CLOSE\nMCAST " + X64 + " m\n"));
+    }
+
+    @Test
+    public void shouldSkipUnknownVerbs() {
+        // unknown verbs are skipped along with an optional identifier and payload
+        assertEquals(Arrays.asList(
+                "BUF 200\n",
+                "BUF 501\n",
+                "BUF 501\n",
+                "BUF 501\n",
+                "BUF 501\n",
+                "BUF 501\n",
+                "REQ CLOSE"),
+                requests("LOGIN alice secret\nFOO\nFOO bar baz\nFOO !x\nFOO x \u0000\u0001\n\n\n"
+                        + "FOO \u0000\u0000\n\nCLOSE\n"));
+    }
+
+    @Test
+    public void shouldRejectInvalidTextRequests() {
+        assertEquals(Arrays.asList("BUF 401 secret\n", "BUF 400\n"),
+                requests("LOGIN alice nope pw\nPING\n"));
+        assertEquals(Arrays.asList("BUF 400\n"), requests("PING\n"));
+        assertEquals(Arrays.asList("BUF 200\n", "BUF 400\n"),
+                requests("LOGIN alice secret pw\nMCAST t\nPING\n"));
+        assertEquals(Arrays.asList("BUF 200\n", "BUF 405\n", "BUF 400\n"),
+                requests("LOGIN alice secret pw\nLOGIN x secret\nPING\n"));
+        assertEquals(Arrays.asList("BUF 200\n", "BUF 400\n"),
+                requests("LOGIN alice secret pw\nMCAST x" + X64 + " m\n"));
+        assertEquals(Arrays.asList("BUF 200\n", "BUF 400\n"), requests("LOGIN alice secret pw\n"
+                + "MCAST t " + String.join("", Collections.nCopies(1025, "x")) + "\n"));
+    }
+
+    @Test
+    public void shouldDecodeBinaryRequests() {
+        String login = binary(SSMPRequest.login(id("alice"), id("secret"), "pw"));
+        String body = binary(new SSMPRequest(SSMPRequest.Type.PING, null, null, false),
+                SSMPRequest.subscribe(id("topic"), SubscriptionFlag.PRESENCE),
+                SSMPRequest.subscribe(id("t"), SubscriptionFlag.NONE),
+                SSMPRequest.mcast(id("t"), new byte[] { 0, '\n', 1 }),
+                SSMPRequest.ucast(id("bob"), "hello world"),
+                SSMPRequest.bcast("hi"),
+                SSMPRequest.unsubscribe(id("t")));
+        assertEquals(Arrays.asList(
+                "BUF " + str(BinaryFraming.response(200, null)),
+                "BUF " + str(BinaryFraming.event(new SSMPEvent(SSMPIdentifier.ANONYMOUS,
+                        SSMPEvent.Type.PONG, null, null))),
+                "REQ SUBSCRIBE topic PRESENCE",
+                "REQ SUBSCRIBE t",
+                "REQ MCAST t \u0000\n\u0001 (binary)",
+                "REQ UCAST bob hello world",
+                "REQ BCAST hi",
+                "REQ UNSUBSCRIBE t"),
+                requests(login + body));
+
+        // binary framing is negotiated at LOGIN, and only there
+        List<String> l = requests(binary(SSMPRequest.login(id("alice"), id("nope"), "pw")) + body);
+        assertEquals(2, l.size());
+        l = requests(login + binary(SSMPRequest.login(id("a"), id("secret"), "pw")) + body);
+        assertEquals("REQ UNSUBSCRIBE t", l.get(l.size() - 1));
+        assertEquals(Arrays.asList("BUF 200\n", "BUF 400\n"),
+                requests("LOGIN alice secret pw\n" + body));
+    }
+
+    @Test
+    public void shouldDecodeTextResponses() {
+        assertEquals(Arrays.asList(
+                "RES 200",
+                "EV alice SUBSCRIBE topic PRESENCE",
+                "EV bob SUBSCRIBE topic",
+                "RES 404 not found",
+                "BUF PONG\n",
+                "EV a MCAST t \n\n\n (binary)",
+                "EV a BCAST hello there",
+                "EV a UNSUBSCRIBE t",
+                "RES 200"),
+                responses("200\n000 alice SUBSCRIBE topic PRESENCE\n000 bob SUBSCRIBE topic\n"
+                        + "404 not found\n000 . PING\n000 . PONG\n000 a MCAST t \u0000\u0002\n\n\n\n"
+                        + "000 a BCAST hello there\n000 a UNSUBSCRIBE t\n200\n"));
+    }
+
+    @Test
+    public void shouldDecodeBinaryResponses() {
+        String in = str(BinaryFraming.response(200, null))
+                + str(BinaryFraming.response(404, "not found"))
+                + str(BinaryFraming.event(new SSMPEvent(id("alice"), SSMPEvent.Type.SUBSCRIBE,
+                        id("topic"), SubscriptionFlag.PRESENCE._s)))
+                + str(BinaryFraming.event(new SSMPEvent(SSMPIdentifier.ANONYMOUS,
+                        SSMPEvent.Type.PING, null, null)))
+                + str(BinaryFraming.event(new SSMPEvent(id("a"), SSMPEvent.Type.MCAST, id("t"),
+                        new byte[] { 0, '\n' }, true)))
+                + str(BinaryFraming.event(new SSMPEvent(id("a"), SSMPEvent.Type.BCAST, null,
+                        "hello".getBytes(StandardCharsets.US_ASCII), false)))
+                + "200\n";
+        assertEquals(Arrays.asList(
+                "RES 200",
+                "RES 404 not found",
+                "EV alice SUBSCRIBE topic PRESENCE",
+                "BUF PONG\n",
+                "EV a MCAST t \u0000\n (binary)",
+                "EV a BCAST hello",
+                "RES 200"),
+                responses(in));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void shouldKeepDeprecatedHelpers() throws Exception {
+        ChannelBuffer b = ChannelBuffers.wrappedBuffer(
+                "200 alice \u0000\u0001\n\n\nrest".getBytes(StandardCharsets.ISO_8859_1));
+        assertEquals(200, SSMPDecoder.readCode(b));
+        assertTrue(SSMPDecoder.next(b));
+        assertEquals(id("alice"), SSMPDecoder.readIdentifier(b));
+        assertTrue(SSMPDecoder.next(b));
+        assertTrue(SSMPDecoder.isBinaryPayload(b));
+        assertArrayEquals(new byte[] { '\n', '\n' }, SSMPDecoder.readPayload(b));
+        assertTrue(SSMPDecoder.atEnd(b));
+        assertFalse(SSMPDecoder.next(b));
+        try {
+            SSMPDecoder.readVerb(b.slice(b.readerIndex(), 2));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // lowercase
+        }
+        try {
+            SSMPDecoder.readPayload(b);
+            fail();
+        } catch (EOFException e) {
+            // incomplete input is reported by exception
+        }
+
+        b = ChannelBuffers.wrappedBuffer("x payload\nNEXT".getBytes(StandardCharsets.US_ASCII));
+        SSMPDecoder.skipCompat(b);
+        // the trailing newline is left to the caller, see next
+        assertEquals("\nNEXT", b.toString(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FanOutTest {
+    private final ExecutorService _pool = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        _pool.shutdownNow();
+    }
+
+    // counts deliveries per recipient
+    private static class Recipients implements FanOut.Range {
+        final AtomicIntegerArray delivered;
+
+        Recipients(int n) {
+            delivered = new AtomicIntegerArray(n);
+        }
+
+        @Override
+        public void deliver(int from, int to) {
+            for (int i = from; i < to; ++i) delivered.incrementAndGet(i);
+        }
+
+        void assertDeliveredOnce() {
+            for (int i = 0; i < delivered.length(); ++i) {
+                assertEquals("recipient " + i, 1, delivered.get(i));
+            }
+        }
+    }
+
+    // accepts the given number of tasks, then rejects every other one
+    private FanOut rejectingAfter(int accepted) {
+        AtomicInteger n = new AtomicInteger();
+        return new FanOut(r -> {
+            if (n.getAndIncrement() >= accepted) throw new RejectedExecutionException();
+            _pool.execute(r);
+        }, 4, 10);
+    }
+
+    @Test
+    public void shouldDeliverSmallFanOutInline() {
+        Recipients r = new Recipients(3);
+        assertTrue(new FanOut(t -> { throw new AssertionError(); }, 4, 10)
+                .run(3, r, () -> { throw new AssertionError(); }));
+        r.assertDeliveredOnce();
+    }
+
+    @Test
+    public void shouldCallDoneOnceAfterEveryChunk() throws Exception {
+        Recipients r = new Recipients(95);
+        AtomicInteger done = new AtomicInteger();
+        CountDownLatch l = new CountDownLatch(1);
+        assertFalse(new FanOut(_pool, 4, 10).run(95, r, () -> {
+            done.incrementAndGet();
+            l.countDown();
+        }));
+        assertTrue(l.await(5, TimeUnit.SECONDS));
+        r.assertDeliveredOnce();
+        Thread.sleep(50);
+        assertEquals(1, done.get());
+    }
+
+    @Test
+    public void shouldDeliverRejectedChunksInline() throws Exception {
+        Recipients r = new Recipients(95);
+        AtomicInteger done = new AtomicInteger();
+        CountDownLatch l = new CountDownLatch(1);
+        assertFalse(rejectingAfter(3).run(95, r, () -> {
+            done.incrementAndGet();
+            l.countDown();
+        }));
+        assertTrue(l.await(5, TimeUnit.SECONDS));
+        r.assertDeliveredOnce();
+        Thread.sleep(50);
+        assertEquals(1, done.get());
+    }
+
+    @Test
+    public void shouldCompleteInlineWhenFirstChunkIsRejected() {
+        Recipients r = new Recipients(95);
+        assertTrue(rejectingAfter(0).run(95, r, () -> { throw new AssertionError(); }));
+        r.assertDeliveredOnce();
+    }
+
+    @Test
+    public void shouldRunSequencerTasksInOrder() throws Exception {
+        FanOut.Sequencer seq = new FanOut.Sequencer();
+        List<Integer> order = new ArrayList<>();
+        CountDownLatch l = new CountDownLatch(1);
+        // goes asynchronous, later tasks wait for it
+        seq.submit(() -> {
+            _pool.execute(() -> {
+                synchronized (order) { order.add(0); }
+                seq.resume();
+            });
+            return false;
+        });
+        for (int i = 1; i < 100; ++i) {
+            int n = i;
+            seq.submit(() -> {
+                synchronized (order) { order.add(n); }
+                if (n == 99) l.countDown();
+                return true;
+            });
+        }
+        assertTrue(l.await(5, TimeUnit.SECONDS));
+        synchronized (order) {
+            for (int i = 0; i < 100; ++i) assertEquals(i, (int)order.get(i));
+        }
+    }
+}
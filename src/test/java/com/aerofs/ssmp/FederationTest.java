@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import com.aerofs.ssmp.Loopback.Client;
+import com.aerofs.ssmp.SSMPRequest.SubscriptionFlag;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+import static com.aerofs.ssmp.Loopback.id;
+import static com.aerofs.ssmp.Loopback.str;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Three federated nodes on the loopback interface
+ */
+@RunWith(Parameterized.class)
+public class FederationTest {
+    @Parameters(name = "shards={0}")
+    public static Collection<Object[]> shards() {
+        return Arrays.asList(new Object[][] { { 0 }, { 4 } });
+    }
+
+    private static final byte[] SECRET = "federation secret".getBytes(StandardCharsets.US_ASCII);
+    private static final int NODES = 3;
+
+    private final int _shards;
+    private final SSMPServer[] _servers = new SSMPServer[NODES];
+    private final Federation[] _feds = new Federation[NODES];
+    private final List<Federation> _extra = new ArrayList<>();
+    private final List<Client> _clients = new ArrayList<>();
+
+    public FederationTest(int shards) {
+        _shards = shards;
+    }
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < NODES; ++i) {
+            _servers[i] = Loopback.server();
+            _servers[i].setShards(_shards);
+            _feds[i] = federation(SECRET);
+            _servers[i].setFederation(_feds[i]);
+            _feds[i].start();
+            _servers[i].start();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        _clients.forEach(Client::close);
+        for (int i = 0; i < NODES; ++i) {
+            _feds[i].stop();
+            _servers[i].stop();
+        }
+        _extra.forEach(Federation::stop);
+    }
+
+    private static Federation federation(byte[] secret) {
+        return new Federation(new InetSocketAddress("localhost", 0), secret,
+                new NioServerSocketChannelFactory(), new NioClientSocketChannelFactory());
+    }
+
+    private static InetSocketAddress addr(Federation f) {
+        return new InetSocketAddress("localhost", f.getListeningPort());
+    }
+
+    // every node connects to every other one, so that each pair has a redundant link
+    private void mesh() throws Exception {
+        for (Federation a : _feds) {
+            for (Federation b : _feds) {
+                if (a != b) a.connect(addr(b));
+            }
+        }
+        for (Federation f : _feds) waitFor(() -> f.getPeerCount() == NODES - 1);
+    }
+
+    private Client client(int node, String id) throws Exception {
+        Client c = new Client(_servers[node].getListeningPort(), id);
+        _clients.add(c);
+        return c;
+    }
+
+    // evaluates the condition until it holds, and not once more
+    private static void waitFor(BooleanSupplier c) throws Exception {
+        for (int i = 0; i < 500; ++i) {
+            if (c.getAsBoolean()) return;
+            Thread.sleep(10);
+        }
+        fail("timeout");
+    }
+
+    // membership is eventually consistent
+    private static void await(Client c, SSMPRequest r, int code) throws Exception {
+        waitFor(() -> {
+            try {
+                return c.req(r) == code;
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+    }
+
+    @Test
+    public void shouldCloseRedundantLinks() throws Exception {
+        mesh();
+        Thread.sleep(200);
+        for (Federation f : _feds) assertEquals(NODES - 1, f.getPeerCount());
+    }
+
+    @Test
+    public void shouldForwardUcastToRemoteNode() throws Exception {
+        mesh();
+        Client a = client(0, "alice"), b = client(1, "bob");
+        await(a, SSMPRequest.ucast(id("bob"), "hi"), 200);
+        assertEquals("hi", str(b.next().payload));
+        assertEquals(200, a.req(SSMPRequest.ucast(id("bob"), "hi bob")));
+        SSMPEvent e = b.next();
+        assertEquals(SSMPEvent.Type.UCAST, e.type);
+        assertEquals(id("alice"), e.from);
+        assertEquals("hi bob", str(e.payload));
+        assertEquals(404, a.req(SSMPRequest.ucast(id("nobody"), "x")));
+
+        b.close();
+        await(a, SSMPRequest.ucast(id("bob"), "x"), 404);
+    }
+
+    @Test
+    public void shouldDeliverMcastAndBcastOncePerSubscriber() throws Exception {
+        mesh();
+        SSMPIdentifier t = id("topic");
+        Client a = client(0, "alice"), b = client(1, "bob");
+        Client c = client(2, "carol"), d = client(2, "dave");
+        for (Client x : Arrays.asList(a, b, c, d)) {
+            assertEquals(200, x.req(SSMPRequest.subscribe(t, SubscriptionFlag.NONE)));
+        }
+        // wait for every node to learn about the topic, using a client that is not subscribed
+        Client probe = client(0, "probe");
+        await(probe, SSMPRequest.ucast(id("dave"), "ready"), 200);
+        assertEquals("ready", str(d.next().payload));
+        // topics are reported separately from clients
+        Thread.sleep(200);
+
+        byte[] binary = { 0, 1, 10 };
+        assertEquals(200, b.req(SSMPRequest.mcast(t, binary)));
+        for (Client x : Arrays.asList(a, b, c, d)) {
+            SSMPEvent e = x.next();
+            assertEquals(SSMPEvent.Type.MCAST, e.type);
+            assertEquals(t, e.to);
+            assertTrue(e.binary);
+            assertTrue(Arrays.equals(binary, e.payload));
+            x.none();
+        }
+
+        assertEquals(200, c.req(SSMPRequest.bcast("all")));
+        for (Client x : Arrays.asList(a, b, d)) {
+            SSMPEvent e = x.next();
+            assertEquals(SSMPEvent.Type.BCAST, e.type);
+            assertEquals(id("carol"), e.from);
+            x.none();
+        }
+        c.none();
+    }
+
+    @Test
+    public void shouldPreserveOrderAcrossNodes() throws Exception {
+        mesh();
+        SSMPIdentifier t = id("topic");
+        Client a = client(0, "alice"), b = client(1, "bob");
+        assertEquals(200, b.req(SSMPRequest.subscribe(t, SubscriptionFlag.NONE)));
+        await(a, SSMPRequest.ucast(id("bob"), "ready"), 200);
+        assertEquals("ready", str(b.next().payload));
+        Thread.sleep(200);
+
+        List<Future<SSMPResponse>> l = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            l.add(a.c.request(i % 2 == 0
+                    ? SSMPRequest.mcast(t, "m" + i)
+                    : SSMPRequest.ucast(id("bob"), "u" + i)));
+        }
+        for (Future<SSMPResponse> f : l) assertEquals(200, f.get().code);
+        for (int i = 0; i < 100; ++i) {
+            assertEquals((i % 2 == 0 ? "m" : "u") + i, str(b.next().payload));
+        }
+    }
+
+    @Test
+    public void shouldRejectPeerWithWrongSecret() throws Exception {
+        mesh();
+        Federation rogue = federation("not the secret".getBytes(StandardCharsets.US_ASCII));
+        _extra.add(rogue);
+        rogue.start();
+        rogue.connect(addr(_feds[0]));
+        _feds[1].connect(addr(rogue));
+        Thread.sleep(500);
+        assertEquals(0, rogue.getPeerCount());
+        for (Federation f : _feds) assertEquals(NODES - 1, f.getPeerCount());
+    }
+
+    /**
+     * Clients come and go on a node while a new peer links to it: the peer must end up with
+     * the final membership, not a snapshot entry that outlived its removal
+     */
+    @Test
+    public void shouldNotResurrectDepartedClients() throws Exception {
+        _feds[0].connect(addr(_feds[1]));
+        waitFor(() -> _feds[1].getPeerCount() == 1);
+
+        int n = 8;
+        ExecutorService churn = Executors.newFixedThreadPool(n);
+        try {
+            List<Future<?>> l = new ArrayList<>();
+            for (int i = 0; i < n; ++i) {
+                String id = "churn" + i;
+                l.add(churn.submit(() -> {
+                    for (int j = 0; j < 5; ++j) {
+                        new Client(_servers[1].getListeningPort(), id).close();
+                    }
+                    return null;
+                }));
+            }
+            Thread.sleep(50);
+            _feds[2].connect(addr(_feds[1]));
+            _feds[2].connect(addr(_feds[0]));
+            for (Future<?> f : l) f.get();
+        } finally {
+            churn.shutdown();
+        }
+        waitFor(() -> _feds[2].getPeerCount() == 2);
+        Thread.sleep(300);
+
+        Client c = client(2, "carol");
+        for (int i = 0; i < n; ++i) {
+            assertEquals(404, c.req(SSMPRequest.ucast(id("churn" + i), "x")));
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.aerofs.ssmp.Loopback.id;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HandleRegistryTest {
+    @Test
+    public void shouldCountReferences() {
+        HandleRegistry r = new HandleRegistry();
+        assertEquals(HandleRegistry.NONE, r.get(id("a")));
+        int h = r.acquire(id("a"));
+        assertEquals(h, r.acquire(id("a")));
+        r.retain(h);
+        assertEquals(h, r.get(id("a")));
+        assertNotEquals(h, r.acquire(id("b")));
+        r.release(h);
+        r.release(h);
+        assertEquals(h, r.get(id("a")));
+        r.release(h);
+        assertEquals(HandleRegistry.NONE, r.get(id("a")));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectReleaseOfUnusedHandle() {
+        HandleRegistry r = new HandleRegistry();
+        int h = r.acquire(id("a"));
+        r.release(h);
+        r.release(h);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectRetainOfUnusedHandle() {
+        HandleRegistry r = new HandleRegistry();
+        r.retain(r.acquire(id("a")) + 1);
+    }
+
+    @Test
+    public void shouldRecycleHandles() {
+        HandleRegistry r = new HandleRegistry();
+        for (int i = 0; i < 100; ++i) assertEquals(i, r.acquire(id("x" + i)));
+        for (int i = 0; i < 100; i += 2) r.release(r.get(id("x" + i)));
+        // handles stay dense
+        Set<Integer> recycled = new HashSet<>();
+        for (int i = 0; i < 50; ++i) recycled.add(r.acquire(id("y" + i)));
+        for (int i = 0; i < 100; i += 2) assertTrue(recycled.contains(i));
+        assertEquals(100, r.acquire(id("z")));
+    }
+
+    @Test
+    public void shouldBehaveLikeHashMap() {
+        Random rnd = new Random(42);
+        HandleRegistry r = new HandleRegistry();
+        Map<SSMPIdentifier, Integer> handles = new HashMap<>();
+        Map<SSMPIdentifier, Integer> refs = new HashMap<>();
+        for (int op = 0; op < 20000; ++op) {
+            SSMPIdentifier id = id("id" + rnd.nextInt(300));
+            if (rnd.nextBoolean()) {
+                int h = r.acquire(id);
+                Integer prev = handles.put(id, h);
+                if (prev != null) assertEquals(prev.intValue(), h);
+                refs.merge(id, 1, Integer::sum);
+            } else if (handles.containsKey(id)) {
+                r.release(handles.get(id));
+                if (refs.merge(id, -1, Integer::sum) == 0) {
+                    refs.remove(id);
+                    handles.remove(id);
+                }
+            }
+            assertEquals(handles.containsKey(id) ? handles.get(id) : HandleRegistry.NONE,
+                    r.get(id));
+        }
+        for (Map.Entry<SSMPIdentifier, Integer> e : handles.entrySet()) {
+            assertEquals(e.getValue().intValue(), r.get(e.getKey()));
+        }
+        assertEquals(handles.size(), new HashSet<>(handles.values()).size());
+    }
+
+    @Test
+    public void shouldReadWhileWriting() throws Exception {
+        HandleRegistry r = new HandleRegistry();
+        int stable = r.acquire(id("stable"));
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger errors = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                if (r.get(id("stable")) != stable) errors.incrementAndGet();
+            }
+        });
+        reader.start();
+        // churn grows and rehashes the index under the reader
+        for (int round = 0; round < 20; ++round) {
+            for (int i = 0; i < 500; ++i) r.acquire(id("c" + i));
+            for (int i = 0; i < 500; ++i) r.release(r.get(id("c" + i)));
+        }
+        done.set(true);
+        reader.join();
+        assertEquals(0, errors.get());
+    }
+
+    @Test
+    public void shouldIndexHandleTables() {
+        HandleRegistry r = new HandleRegistry();
+        HandleTable<String> t = new HandleTable<>();
+        assertNull(t.get(5000));
+        for (int i = 0; i < 3000; ++i) assertNull(t.set(r.acquire(id("x" + i)), "v" + i));
+        assertEquals("v2999", t.get(r.get(id("x2999"))));
+        int h = r.get(id("x0"));
+        // values are compared by identity
+        String v = t.get(h), w = "w0";
+        assertFalse(t.compareAndSet(h, new String(v), w));
+        assertTrue(t.compareAndSet(h, v, w));
+        assertFalse(t.compareAndSet(h, v, "u0"));
+        assertEquals(w, t.set(h, null));
+        AtomicInteger n = new AtomicInteger();
+        t.forEach(x -> n.incrementAndGet());
+        assertEquals(2999, n.get());
+    }
+}
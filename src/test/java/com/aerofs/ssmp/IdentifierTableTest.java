@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static com.aerofs.ssmp.Loopback.id;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class IdentifierTableTest {
+    private static ChannelBuffer buf(String s) {
+        return ChannelBuffers.wrappedBuffer(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static SSMPIdentifier get(IdentifierTable t, String s) {
+        // surrounding bytes must not leak into the identifier
+        return t.get(buf("<" + s + ">"), 1, s.length());
+    }
+
+    @Test
+    public void shouldHashAndCompareLikeFreshIdentifiers() {
+        IdentifierTable t = new IdentifierTable(64);
+        for (String s : new String[] { "t", "topic", "alice@acme.com", "x/y:z" }) {
+            SSMPIdentifier id = get(t, s);
+            assertEquals(id(s), id);
+            assertEquals(id(s).hashCode(), id.hashCode());
+            assertEquals(s, id.toString());
+        }
+        assertNotEquals(id("ab"), get(t, "ba"));
+    }
+
+    @Test
+    public void shouldReturnCanonicalInstance() {
+        IdentifierTable t = new IdentifierTable(64);
+        SSMPIdentifier a = get(t, "topic");
+        assertSame(a, get(t, "topic"));
+        assertSame(a, t.get(buf("topic"), 0, 5));
+        assertNotSame(a, get(t, "topics"));
+    }
+
+    @Test
+    public void shouldEvictOnCollision() {
+        IdentifierTable t = new IdentifierTable(1);
+        SSMPIdentifier a = get(t, "a"), b = get(t, "b");
+        assertEquals(id("b"), b);
+        assertSame(b, get(t, "b"));
+        SSMPIdentifier a2 = get(t, "a");
+        assertNotSame(a, a2);
+        assertEquals(a, a2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRequirePowerOfTwoSize() {
+        new IdentifierTable(48);
+    }
+
+    @Test
+    public void shouldMatchOnlySameBytes() {
+        SSMPIdentifier id = id("topic");
+        ChannelBuffer b = buf("topic");
+        assertTrue(id.matches(id.hashCode(), b, 0, 5));
+        assertFalse(id.matches(id.hashCode() + 1, b, 0, 5));
+        assertFalse(id.matches(id.hashCode(), b, 0, 4));
+        assertFalse(id("topiC").matches(id.hashCode(), b, 0, 5));
+    }
+
+    @Test
+    public void shouldInternDecodedDestinations() {
+        DecoderEmbedder<Object> e = new DecoderEmbedder<>(
+                new SSMPRequestDecoder(Loopback.AUTH, false, new IdentifierTable(16)));
+        e.offer(buf("LOGIN alice secret pw\nSUBSCRIBE topic\nMCAST topic a\n"));
+        e.offer(buf("MCAST topic b\nUCAST bob c\n"));
+        e.poll();
+        SSMPIdentifier topic = ((SSMPRequest)e.poll()).to;
+        assertEquals(id("topic"), topic);
+        assertSame(topic, ((SSMPRequest)e.poll()).to);
+        assertSame(topic, ((SSMPRequest)e.poll()).to);
+        assertEquals(id("bob"), ((SSMPRequest)e.poll()).to);
+    }
+}
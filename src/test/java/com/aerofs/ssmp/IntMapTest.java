@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IntMapTest {
+    private static void assertSameEntries(Map<Integer, String> expected, IntMap<String> m) {
+        assertEquals(expected.size(), m.size());
+        assertEquals(expected.isEmpty(), m.isEmpty());
+        assertEquals(new HashSet<>(expected.values()), new HashSet<>(m.values()));
+        for (Map.Entry<Integer, String> e : expected.entrySet()) {
+            assertTrue(m.containsKey(e.getKey()));
+            assertEquals(e.getValue(), m.get(e.getKey()));
+        }
+    }
+
+    @Test
+    public void shouldNotFindNegativeKeys() {
+        IntMap<String> m = new IntMap<>();
+        assertFalse(m.containsKey(-1));
+        assertNull(m.get(-1));
+        assertNull(m.remove(-1));
+        m.put(0, "a");
+        assertFalse(m.containsKey(-1));
+        assertNull(m.remove(-1));
+        assertEquals(1, m.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectNegativeKeys() {
+        new IntMap<String>().put(-1, "a");
+    }
+
+    @Test
+    public void shouldHoldDenseHandles() {
+        IntMap<String> m = new IntMap<>();
+        Map<Integer, String> expected = new HashMap<>();
+        for (int i = 0; i < 1000; ++i) {
+            assertNull(m.put(i, "v" + i));
+            expected.put(i, "v" + i);
+        }
+        assertSameEntries(expected, m);
+        assertEquals("v7", m.put(7, "w7"));
+        expected.put(7, "w7");
+        // removals shift colliding entries back, every remaining key must stay reachable
+        for (int i = 0; i < 1000; i += 3) {
+            assertEquals(expected.remove(i), m.remove(i));
+            assertNull(m.remove(i));
+        }
+        assertSameEntries(expected, m);
+    }
+
+    @Test
+    public void shouldBehaveLikeHashMap() {
+        Random r = new Random(42);
+        for (int round = 0; round < 50; ++round) {
+            IntMap<String> m = new IntMap<>();
+            Map<Integer, String> expected = new HashMap<>();
+            int keys = 1 + r.nextInt(200);
+            for (int op = 0; op < 2000; ++op) {
+                int k = r.nextInt(keys);
+                if (r.nextInt(3) == 0) {
+                    assertEquals(expected.remove(k), m.remove(k));
+                } else {
+                    String v = Integer.toString(r.nextInt());
+                    assertEquals(expected.put(k, v), m.put(k, v));
+                }
+                assertEquals(expected.get(k), m.get(k));
+            }
+            assertSameEntries(expected, m);
+        }
+    }
+}
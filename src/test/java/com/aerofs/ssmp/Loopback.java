@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.util.HashedWheelTimer;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * In-process servers and clients talking TLS over the loopback interface
+ *
+ * The test key store holds a self-signed certificate for localhost, which clients accept
+ * blindly.
+ */
+final class Loopback {
+    static final HashedWheelTimer TIMER = new HashedWheelTimer();
+    static final NioClientSocketChannelFactory CLIENTS = new NioClientSocketChannelFactory();
+
+    private static final char[] PASSWORD = "secret12".toCharArray();
+    private static final SSLContext SERVER_SSL;
+    private static final SSLContext CLIENT_SSL;
+
+    static {
+        try (InputStream in = Loopback.class.getResourceAsStream("/test.p12")) {
+            KeyStore ks = KeyStore.getInstance("PKCS12");
+            ks.load(in, PASSWORD);
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(
+                    KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(ks, PASSWORD);
+            SERVER_SSL = SSLContext.getInstance("TLSv1.2");
+            SERVER_SSL.init(kmf.getKeyManagers(), null, null);
+            CLIENT_SSL = SSLContext.getInstance("TLSv1.2");
+            CLIENT_SSL.init(null, new TrustManager[] { new X509TrustManager() {
+                @Override public void checkClientTrusted(X509Certificate[] c, String a) {}
+                @Override public void checkServerTrusted(X509Certificate[] c, String a) {}
+                @Override public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[0];
+                }
+            }}, null);
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Accepts any identity logging in with the "secret" scheme
+     */
+    static final Authenticator AUTH = new Authenticator() {
+        @Override
+        public boolean authenticate(SSMPIdentifier id, SSMPIdentifier scheme, String cred) {
+            return scheme.toString().equals("secret");
+        }
+
+        @Override
+        public ChannelBuffer unauthorized() {
+            return ChannelBuffers.wrappedBuffer("401 secret\n".getBytes(StandardCharsets.US_ASCII));
+        }
+    };
+
+    private Loopback() {}
+
+    static SslHandler ssl(boolean client) {
+        SSLEngine e = (client ? CLIENT_SSL : SERVER_SSL).createSSLEngine();
+        e.setUseClientMode(client);
+        return new SslHandler(e);
+    }
+
+    static SSLContext serverContext() {
+        return SERVER_SSL;
+    }
+
+    static SSLContext clientContext() {
+        return CLIENT_SSL;
+    }
+
+    static SSMPIdentifier id(String s) {
+        return SSMPIdentifier.fromInternal(s);
+    }
+
+    static @Nullable String str(@Nullable byte[] b) {
+        return b == null ? null : new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a server on an ephemeral port, not started
+     */
+    static SSMPServer server() {
+        return server(0);
+    }
+
+    static SSMPServer server(int port) {
+        return new SSMPServer(new InetSocketAddress("localhost", port), TIMER,
+                new NioServerSocketChannelFactory(), () -> ssl(false), AUTH);
+    }
+
+    static class Client implements AutoCloseable {
+        final SSMPClient c;
+        final BlockingQueue<SSMPEvent> events = new LinkedBlockingQueue<>();
+
+        Client(int port, String id) throws Exception {
+            this(port, id, c -> {});
+        }
+
+        /**
+         * @param configure called before connecting
+         */
+        Client(int port, String id, Consumer<SSMPClient> configure) throws Exception {
+            c = new SSMPClient("localhost", port, TIMER, CLIENTS, () -> ssl(true), events::add);
+            configure.accept(c);
+            CountDownLatch l = new CountDownLatch(1);
+            c.connect(id(id), id("secret"), "pw", new SSMPClient.ConnectionListener() {
+                @Override public void connected() { l.countDown(); }
+                @Override public void disconnected() {}
+            });
+            assertTrue("connect " + id, l.await(5, TimeUnit.SECONDS));
+        }
+
+        int req(SSMPRequest r) throws Exception {
+            return c.request(r).get(5, TimeUnit.SECONDS).code;
+        }
+
+        SSMPEvent next() throws Exception {
+            SSMPEvent e = events.poll(5, TimeUnit.SECONDS);
+            assertTrue("no event", e != null);
+            return e;
+        }
+
+        void none() throws Exception {
+            assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        public void close() {
+            c.disconnect();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import com.aerofs.ssmp.Loopback.Client;
+import com.aerofs.ssmp.SSMPRequest.SubscriptionFlag;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.aerofs.ssmp.Loopback.id;
+import static com.aerofs.ssmp.Loopback.str;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link SSMPClient#setNoAck}, against servers with and without support for it
+ */
+@RunWith(Parameterized.class)
+public class NoAckTest {
+    @Parameters(name = "legacy={0}, binary={1}")
+    public static Collection<Object[]> modes() {
+        return Arrays.asList(new Object[][] {
+                { false, false }, { false, true }, { true, false }, { true, true } });
+    }
+
+    private final boolean _legacy;
+    private final boolean _binary;
+    private SSMPServer _server;
+    private Client _bob;
+    private SSMPClient _alice;
+    private final Queue<long[]> _nacks = new ConcurrentLinkedQueue<>();
+    // sequence numbers of the requests sent as soon as connected
+    private final List<Long> _early = new ArrayList<>();
+
+    public NoAckTest(boolean legacy, boolean binary) {
+        _legacy = legacy;
+        _binary = binary;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        _server = !_legacy ? Loopback.server()
+                : new SSMPServer(new InetSocketAddress("localhost", 0), Loopback.TIMER,
+                        new NioServerSocketChannelFactory(), () -> Loopback.ssl(false),
+                        Loopback.AUTH) {
+            @Override
+            protected void requestReceived(Channel channel, SSMPIdentifier from, SSMPRequest r) {
+                if (r.type == SSMPRequest.Type.NOACK) {
+                    channel.write(new SSMPResponse(SSMPResponse.NOT_IMPLEMENTED, null));
+                    return;
+                }
+                super.requestReceived(channel, from, r);
+            }
+        };
+        _server.start();
+        int port = _server.getListeningPort();
+        _bob = new Client(port, "bob");
+
+        _alice = new SSMPClient("localhost", port, Loopback.TIMER, Loopback.CLIENTS,
+                () -> Loopback.ssl(true), e -> {});
+        _alice.setBinaryFraming(_binary);
+        _alice.setNoAck((seq, code) -> _nacks.add(new long[] { seq, code }));
+        CountDownLatch connected = new CountDownLatch(1);
+        _alice.connect(id("alice"), id("secret"), "pw", new SSMPClient.ConnectionListener() {
+            @Override
+            public void connected() {
+                // sent before the negotiation completes
+                for (int i = 0; i < 10; ++i) {
+                    _early.add(_alice.send(SSMPRequest.ucast(id(i % 2 == 0 ? "bob" : "nobody"),
+                            "e" + i)));
+                }
+                connected.countDown();
+            }
+
+            @Override
+            public void disconnected() {}
+        });
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        _alice.disconnect();
+        _bob.close();
+        _server.stop();
+    }
+
+    private Set<Long> nacks(int n) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (_nacks.size() < n && System.nanoTime() < deadline) Thread.sleep(10);
+        Set<Long> s = new HashSet<>();
+        for (long[] nack : _nacks) {
+            assertEquals(404, nack[1]);
+            s.add(nack[0]);
+        }
+        assertEquals(n, _nacks.size());
+        return s;
+    }
+
+    @Test
+    public void shouldReportOnlyFailures() throws Exception {
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L), _early);
+        Set<Long> expected = new HashSet<>(Arrays.asList(2L, 4L, 6L, 8L, 10L));
+        for (int i = 0; i < 1000; ++i) {
+            long seq = _alice.send(SSMPRequest.ucast(id(i % 3 == 0 ? "nobody" : "bob"), "p" + i));
+            assertEquals(11L + i, seq);
+            if (i % 3 == 0) expected.add(seq);
+            if (i == 500) {
+                // requests that are always answered can be interleaved
+                assertEquals(200, _alice.request(SSMPRequest.subscribe(id("t"),
+                        SubscriptionFlag.NONE)).get(5, TimeUnit.SECONDS).code);
+            }
+        }
+        assertEquals(200, _alice.request(SSMPRequest.unsubscribe(id("t")))
+                .get(5, TimeUnit.SECONDS).code);
+
+        for (int i = 0; i < 10; i += 2) assertEquals("e" + i, str(_bob.next().payload));
+        for (int i = 0; i < 1000; ++i) {
+            if (i % 3 != 0) assertEquals("p" + i, str(_bob.next().payload));
+        }
+        assertEquals(expected, nacks(expected.size()));
+    }
+
+    @Test
+    public void shouldRejectAcknowledgedPublishing() throws Exception {
+        // wait for the negotiation to complete
+        assertEquals(200, _alice.request(SSMPRequest.subscribe(id("t"), SubscriptionFlag.NONE))
+                .get(5, TimeUnit.SECONDS).code);
+        try {
+            int code = _alice.request(SSMPRequest.ucast(id("bob"), "x"))
+                    .get(5, TimeUnit.SECONDS).code;
+            // servers without no-ack support keep answering every request
+            assertTrue(_legacy);
+            assertEquals(200, code);
+        } catch (ExecutionException e) {
+            assertTrue(!_legacy && e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void shouldNotSendWhenDisconnected() throws Exception {
+        _alice.disconnect();
+        assertEquals(-1L, _alice.send(SSMPRequest.ucast(id("bob"), "x")));
+    }
+}
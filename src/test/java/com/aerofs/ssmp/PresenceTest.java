@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import com.aerofs.ssmp.Loopback.Client;
+import com.aerofs.ssmp.SSMPRequest.SubscriptionFlag;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.aerofs.ssmp.Loopback.id;
+import static com.aerofs.ssmp.Loopback.str;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link SubscriptionFlag#BATCHED_PRESENCE} subscriptions
+ */
+@RunWith(Parameterized.class)
+public class PresenceTest {
+    @Parameters(name = "shards={0}")
+    public static Collection<Object[]> shards() {
+        return Arrays.asList(new Object[][] { { 0 }, { 4 } });
+    }
+
+    private static final SSMPIdentifier TOPIC = id("t");
+    private static final int MEMBERS = 45;
+
+    private final int _shards;
+    private SSMPServer _server;
+    private final List<Client> _clients = new ArrayList<>();
+    private int _frames;
+
+    public PresenceTest(int shards) {
+        _shards = shards;
+    }
+
+    @Before
+    public void setUp() {
+        _server = Loopback.server();
+        _server.setShards(_shards);
+        _server.setPresenceCoalescing(100);
+        _server.start();
+    }
+
+    @After
+    public void tearDown() {
+        _clients.forEach(Client::close);
+        _server.stop();
+    }
+
+    private Client client(String id) throws Exception {
+        Client c = new Client(_server.getListeningPort(), id);
+        _clients.add(c);
+        return c;
+    }
+
+    private static String member(int i) {
+        return "member-with-a-long-name-" + i;
+    }
+
+    /**
+     * @return the next n entries of PRESENCE events received by c
+     */
+    private List<String> entries(Client c, int n) throws Exception {
+        List<String> l = new ArrayList<>();
+        while (l.size() < n) {
+            SSMPEvent e = c.next();
+            assertEquals(SSMPEvent.Type.PRESENCE, e.type);
+            assertEquals(TOPIC, e.to);
+            assertTrue(e.payload.length <= SSMPDecoder.MAX_PAYLOAD_LENGTH);
+            ++_frames;
+            l.addAll(Arrays.asList(str(e.payload).split(" ")));
+        }
+        assertEquals(n, l.size());
+        return l;
+    }
+
+    // members with even indices subscribe without presence, odd ones with presence
+    private List<Client> members() throws Exception {
+        List<Client> l = new ArrayList<>();
+        for (int i = 0; i < MEMBERS; ++i) {
+            Client c = client(member(i));
+            assertEquals(200, c.req(SSMPRequest.subscribe(TOPIC,
+                    i % 2 == 0 ? SubscriptionFlag.NONE : SubscriptionFlag.PRESENCE)));
+            l.add(c);
+        }
+        return l;
+    }
+
+    @Test
+    public void shouldSendSnapshotInFewFrames() throws Exception {
+        List<Client> members = members();
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < MEMBERS; ++i) expected.add((i % 2 == 0 ? "+" : "*") + member(i));
+
+        Client x = client("batched");
+        assertEquals(200, x.req(SSMPRequest.subscribe(TOPIC, SubscriptionFlag.BATCHED_PRESENCE)));
+        assertEquals(expected, new HashSet<>(entries(x, MEMBERS)));
+        assertTrue(_frames > 1);
+        assertTrue(_frames <= 3);
+
+        // per-member presence subscribers still hear about the batched one individually
+        for (int i = 1; i < MEMBERS; i += 2) {
+            Client c = members.get(i);
+            SSMPEvent e;
+            do {
+                e = c.next();
+            } while (!e.from.equals(id("batched")));
+            assertEquals(SSMPEvent.Type.SUBSCRIBE, e.type);
+        }
+        x.none();
+    }
+
+    @Test
+    public void shouldCoalesceChanges() throws Exception {
+        List<Client> members = members();
+        Client x = client("batched");
+        assertEquals(200, x.req(SSMPRequest.subscribe(TOPIC, SubscriptionFlag.BATCHED_PRESENCE)));
+        entries(x, MEMBERS);
+        Client y = client("batched2");
+        assertEquals(200, y.req(SSMPRequest.subscribe(TOPIC, SubscriptionFlag.BATCHED_PRESENCE)));
+        assertTrue(entries(y, MEMBERS + 1).contains("*batched"));
+        // batched subscribers are not told about their own subscription
+        assertEquals(Arrays.asList("*batched2"), entries(x, 1));
+
+        // a join wave is reported in a handful of frames
+        List<Client> wave = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) wave.add(client("w" + i));
+        for (Client c : wave) c.c.request(SSMPRequest.subscribe(TOPIC, SubscriptionFlag.NONE));
+        _frames = 0;
+        List<String> l = entries(x, 20);
+        for (int i = 0; i < 20; ++i) assertTrue(l.contains("+w" + i));
+        assertTrue("frames " + _frames, _frames <= 5);
+        assertEquals(new HashSet<>(l), new HashSet<>(entries(y, 20)));
+
+        assertEquals(200, members.get(0).req(SSMPRequest.unsubscribe(TOPIC)));
+        assertEquals(Arrays.asList("-" + member(0)), entries(x, 1));
+        assertEquals(Arrays.asList("-" + member(0)), entries(y, 1));
+
+        // a departing batched subscriber is reported like any other member
+        y.close();
+        assertEquals(Arrays.asList("-batched2"), entries(x, 1));
+        x.none();
+    }
+}
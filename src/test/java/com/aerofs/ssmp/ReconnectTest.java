@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import com.aerofs.ssmp.Loopback.Client;
+import com.aerofs.ssmp.SSMPRequest.SubscriptionFlag;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.aerofs.ssmp.Loopback.id;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReconnectTest {
+    // raise to measure time to recovery at scale, e.g. -Dssmp.test.clients=5000
+    private static final int CLIENTS = Integer.getInteger("ssmp.test.clients", 300);
+
+    private SSMPServer _server;
+    private int _port;
+
+    @Before
+    public void setUp() {
+        _server = Loopback.server();
+        _server.start();
+        _port = _server.getListeningPort();
+    }
+
+    @After
+    public void tearDown() {
+        _server.stop();
+    }
+
+    private static class Recovery {
+        final long millis;
+        final int attempts;
+        final int restored;
+        Recovery(long millis, int attempts, int restored) {
+            this.millis = millis;
+            this.attempts = attempts;
+            this.restored = restored;
+        }
+    }
+
+    private SSMPClient client(String id, ConnectionListener l) {
+        SSMPClient c = new SSMPClient("localhost", _port, Loopback.TIMER, Loopback.CLIENTS,
+                () -> Loopback.ssl(true), e -> {});
+        c.connect(id(id), id("secret"), "pw", l);
+        return c;
+    }
+
+    private static class ConnectionListener implements SSMPClient.ConnectionListener {
+        final AtomicInteger connected = new AtomicInteger();
+        final AtomicInteger disconnected = new AtomicInteger();
+        volatile CountDownLatch latch = new CountDownLatch(1);
+
+        @Override
+        public void connected() {
+            connected.incrementAndGet();
+            latch.countDown();
+        }
+
+        @Override
+        public void disconnected() {
+            disconnected.incrementAndGet();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void shouldRestoreSubscriptionsAfterServerRestart() throws Exception {
+        Queue<Recovery> recoveries = new ConcurrentLinkedQueue<>();
+        List<SSMPClient> clients = new ArrayList<>();
+        CountDownLatch connected = new CountDownLatch(CLIENTS);
+        for (int i = 0; i < CLIENTS; ++i) {
+            SSMPClient c = new SSMPClient("localhost", _port, Loopback.TIMER, Loopback.CLIENTS,
+                    () -> Loopback.ssl(true), e -> {});
+            c.setAutoReconnect(50, 2000);
+            c.setRecoveryListener((ms, attempts, restored) ->
+                    recoveries.add(new Recovery(ms, attempts, restored)));
+            c.connect(id("c" + i), id("secret"), "pw", new SSMPClient.ConnectionListener() {
+                @Override public void connected() { connected.countDown(); }
+                @Override public void disconnected() {}
+            });
+            clients.add(c);
+        }
+        assertTrue(connected.await(30, TimeUnit.SECONDS));
+        List<com.google.common.util.concurrent.ListenableFuture<SSMPResponse>> l = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; ++i) {
+            SSMPClient c = clients.get(i);
+            l.add(c.request(SSMPRequest.subscribe(id("all"), SubscriptionFlag.NONE)));
+            l.add(c.request(SSMPRequest.subscribe(id("t" + i % 10), SubscriptionFlag.PRESENCE)));
+            l.add(c.request(SSMPRequest.subscribe(id("gone"), SubscriptionFlag.NONE)));
+            l.add(c.request(SSMPRequest.unsubscribe(id("gone"))));
+        }
+        for (com.google.common.util.concurrent.ListenableFuture<SSMPResponse> f : l) {
+            assertEquals(200, f.get(10, TimeUnit.SECONDS).code);
+        }
+        assertEquals(2 * CLIENTS, _server.getSubscriptionCount());
+
+        _server.stop();
+        Thread.sleep(200);
+        _server = Loopback.server(_port);
+        _server.start();
+        long restart = System.nanoTime();
+
+        long deadline = System.currentTimeMillis() + 30000;
+        while (recoveries.size() < CLIENTS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        long total = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - restart);
+        assertEquals(CLIENTS, recoveries.size());
+        long max = 0;
+        long sum = 0;
+        for (Recovery r : recoveries) {
+            assertEquals(2, r.restored);
+            assertTrue(r.attempts >= 1);
+            max = Math.max(max, r.millis);
+            sum += r.millis;
+        }
+        assertTrue(CLIENTS + " clients recovered in " + total + "ms after restart, recovery max "
+                + max + "ms avg " + sum / CLIENTS + "ms, bound 15000ms", max < 15000);
+        assertEquals(2 * CLIENTS, _server.getSubscriptionCount());
+
+        try (Client p = new Client(_port, "pub")) {
+            assertEquals(200, p.req(SSMPRequest.mcast(id("all"), "back")));
+        }
+        for (SSMPClient c : clients) c.disconnect();
+    }
+
+    @Test
+    public void shouldNotRestoreWithoutAutoReconnect() throws Exception {
+        SSMPClient c = new SSMPClient("localhost", _port, Loopback.TIMER, Loopback.CLIENTS,
+                () -> Loopback.ssl(true), e -> {});
+        ConnectionListener l = new ConnectionListener();
+        c.connect(id("a"), id("secret"), "pw", l);
+        l.await();
+        assertEquals(200, c.request(SSMPRequest.subscribe(id("t"), SubscriptionFlag.NONE))
+                .get(5, TimeUnit.SECONDS).code);
+        c.disconnect();
+        l.latch = new CountDownLatch(1);
+        c.connect(id("a"), id("secret"), "pw", l);
+        l.await();
+        // a restored subscription would conflict
+        assertEquals(200, c.request(SSMPRequest.subscribe(id("t"), SubscriptionFlag.NONE))
+                .get(5, TimeUnit.SECONDS).code);
+        c.disconnect();
+    }
+
+    @Test
+    public void shouldAllowConnectFromListenerWithoutAutoReconnect() throws Exception {
+        SSMPClient c = new SSMPClient("localhost", _port, Loopback.TIMER, Loopback.CLIENTS,
+                () -> Loopback.ssl(true), e -> {});
+        Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        ConnectionListener l = new ConnectionListener() {
+            @Override
+            public void disconnected() {
+                // only once, or the test would never end
+                if (disconnected.incrementAndGet() > 1) return;
+                try {
+                    c.connect(id("a"), id("secret"), "pw", this);
+                } catch (Throwable t) {
+                    errors.add(t);
+                }
+            }
+        };
+        c.connect(id("a"), id("secret"), "pw", l);
+        l.await();
+        l.latch = new CountDownLatch(1);
+        assertEquals(200, c.request(SSMPRequest.close()).get(5, TimeUnit.SECONDS).code);
+        l.await();
+        assertTrue("connect failed: " + errors, errors.isEmpty());
+        assertEquals(2, l.connected.get());
+        assertEquals(200, c.request(SSMPRequest.subscribe(id("t"), SubscriptionFlag.NONE))
+                .get(5, TimeUnit.SECONDS).code);
+        c.disconnect();
+    }
+
+    @Test
+    public void shouldForgetSubscriptionsOnDisconnect() throws Exception {
+        SSMPClient c = new SSMPClient("localhost", _port, Loopback.TIMER, Loopback.CLIENTS,
+                () -> Loopback.ssl(true), e -> {});
+        c.setAutoReconnect(50, 1000);
+        ConnectionListener l = new ConnectionListener();
+        c.connect(id("a"), id("secret"), "pw", l);
+        l.await();
+        assertEquals(200, c.request(SSMPRequest.subscribe(id("t"), SubscriptionFlag.NONE))
+                .get(5, TimeUnit.SECONDS).code);
+        c.disconnect();
+        l.latch = new CountDownLatch(1);
+        c.connect(id("b"), id("secret"), "pw", l);
+        l.await();
+        Thread.sleep(100);
+        assertEquals(0, _server.getSubscriptionCount());
+        c.disconnect();
+    }
+
+    @Test
+    public void shouldStopOnRejectedLogin() throws Exception {
+        SSMPClient c = new SSMPClient("localhost", _port, Loopback.TIMER, Loopback.CLIENTS,
+                () -> Loopback.ssl(true), e -> {});
+        c.setAutoReconnect(10, 20);
+        ConnectionListener l = new ConnectionListener();
+        c.connect(id("a"), id("wrong"), "pw", l);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (l.disconnected.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(500);
+        assertEquals(1, l.disconnected.get());
+        assertEquals(0, l.connected.get());
+        // the session is over: connecting again is allowed
+        c.connect(id("a"), id("secret"), "pw", l);
+        l.await();
+        c.disconnect();
+    }
+
+    @Test
+    public void shouldRejectConnectWhileReconnecting() throws Exception {
+        int port;
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+        SSMPClient c = new SSMPClient("localhost", port, Loopback.TIMER, Loopback.CLIENTS,
+                () -> Loopback.ssl(true), e -> {});
+        c.setAutoReconnect(5, 10);
+        ConnectionListener l = new ConnectionListener();
+        c.connect(id("a"), id("secret"), "pw", l);
+        long deadline = System.currentTimeMillis() + 2000;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                c.connect(id("a"), id("secret"), "pw", l);
+                fail("parallel connect");
+            } catch (IllegalStateException e) {
+                // expected, whatever the phase of the reconnection loop
+            }
+        }
+        assertTrue(l.disconnected.get() > 1);
+        c.disconnect();
+        int n = l.disconnected.get();
+        Thread.sleep(200);
+        assertTrue(l.disconnected.get() <= n + 1);
+    }
+}
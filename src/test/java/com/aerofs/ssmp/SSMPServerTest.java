@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import com.aerofs.ssmp.Loopback.Client;
+import com.aerofs.ssmp.SSMPRequest.SubscriptionFlag;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.aerofs.ssmp.Loopback.id;
+import static com.aerofs.ssmp.Loopback.str;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(Parameterized.class)
+public class SSMPServerTest {
+    @Parameters(name = "shards={0}")
+    public static Collection<Object[]> shards() {
+        return Arrays.asList(new Object[][] { { 0 }, { 4 } });
+    }
+
+    private final int _shards;
+    private SSMPServer _server;
+    private final List<Client> _clients = new ArrayList<>();
+
+    public SSMPServerTest(int shards) {
+        _shards = shards;
+    }
+
+    @Before
+    public void setUp() {
+        _server = Loopback.server();
+        _server.setShards(_shards);
+        _server.start();
+    }
+
+    @After
+    public void tearDown() {
+        _clients.forEach(Client::close);
+        _server.stop();
+    }
+
+    private Client client(String id) throws Exception {
+        Client c = new Client(_server.getListeningPort(), id);
+        _clients.add(c);
+        return c;
+    }
+
+    @Test
+    public void shouldDeliverUcast() throws Exception {
+        Client a = client("alice"), b = client("bob");
+        assertEquals(200, a.req(SSMPRequest.ucast(id("bob"), "hi bob")));
+        SSMPEvent e = b.next();
+        assertEquals(SSMPEvent.Type.UCAST, e.type);
+        assertEquals(id("alice"), e.from);
+        assertEquals("hi bob", str(e.payload));
+        assertEquals(404, a.req(SSMPRequest.ucast(id("nobody"), "x")));
+        a.none();
+    }
+
+    @Test
+    public void shouldDeliverSameMcastToEverySubscriber() throws Exception {
+        SSMPIdentifier t = id("topic");
+        List<Client> l = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            Client c = client("c" + i);
+            assertEquals(200, c.req(SSMPRequest.subscribe(t, SubscriptionFlag.NONE)));
+            l.add(c);
+        }
+        Client p = client("pub");
+        assertEquals(200, p.req(SSMPRequest.mcast(t, "hello")));
+        assertEquals(200, p.req(SSMPRequest.mcast(t, new byte[] { 0, 1, 2, 10, 32 })));
+        for (Client c : l) {
+            SSMPEvent e = c.next();
+            assertEquals(SSMPEvent.Type.MCAST, e.type);
+            assertEquals(id("pub"), e.from);
+            assertEquals(t, e.to);
+            assertEquals("hello", str(e.payload));
+            e = c.next();
+            assertTrue(e.binary);
+            assertArrayEquals(new byte[] { 0, 1, 2, 10, 32 }, e.payload);
+        }
+        p.none();
+    }
+
+    @Test
+    public void shouldDeliverBcastOncePerSharingClient() throws Exception {
+        Client a = client("alice"), b = client("bob"), d = client("dave"), lone = client("lone");
+        // more topics than SmallMap keeps inline
+        for (String t : new String[] { "t1", "t2", "t3", "t4", "t5", "t6" }) {
+            for (Client c : new Client[] { a, b, d }) {
+                assertEquals(200, c.req(SSMPRequest.subscribe(id(t), SubscriptionFlag.NONE)));
+            }
+        }
+        assertEquals(200, a.req(SSMPRequest.bcast("all")));
+        for (Client c : new Client[] { b, d }) {
+            SSMPEvent e = c.next();
+            assertEquals(SSMPEvent.Type.BCAST, e.type);
+            assertEquals("all", str(e.payload));
+            c.none();
+        }
+        a.none();
+        lone.none();
+    }
+
+    @Test
+    public void shouldNotifyPresenceSubscribers() throws Exception {
+        SSMPIdentifier t = id("topic");
+        Client a = client("alice"), b = client("bob"), d = client("dave");
+        assertEquals(200, a.req(SSMPRequest.subscribe(t, SubscriptionFlag.PRESENCE)));
+        assertEquals(200, b.req(SSMPRequest.subscribe(t, SubscriptionFlag.PRESENCE)));
+        SSMPEvent e = a.next();
+        assertEquals(SSMPEvent.Type.SUBSCRIBE, e.type);
+        assertEquals(id("bob"), e.from);
+        e = b.next();
+        assertEquals(SSMPEvent.Type.SUBSCRIBE, e.type);
+        assertEquals(id("alice"), e.from);
+        assertEquals(200, d.req(SSMPRequest.subscribe(t, SubscriptionFlag.NONE)));
+        assertEquals(409, d.req(SSMPRequest.subscribe(t, SubscriptionFlag.NONE)));
+        e = a.next();
+        assertEquals(id("dave"), e.from);
+        assertNull(e.payload);
+        assertEquals(id("dave"), b.next().from);
+        assertEquals(200, d.req(SSMPRequest.unsubscribe(t)));
+        assertEquals(404, d.req(SSMPRequest.unsubscribe(t)));
+        e = a.next();
+        assertEquals(SSMPEvent.Type.UNSUBSCRIBE, e.type);
+        assertEquals(id("dave"), e.from);
+        assertEquals(SSMPEvent.Type.UNSUBSCRIBE, b.next().type);
+    }
+
+    @Test
+    public void shouldAnswerPipelinedRequestsInOrder() throws Exception {
+        SSMPIdentifier t = id("topic");
+        Client a = client("alice"), b = client("bob");
+        assertEquals(200, b.req(SSMPRequest.subscribe(t, SubscriptionFlag.NONE)));
+        List<Future<SSMPResponse>> l = new ArrayList<>();
+        for (int i = 0; i < 200; ++i) {
+            l.add(a.c.request(i % 2 == 0
+                    ? SSMPRequest.mcast(t, "m" + i)
+                    : SSMPRequest.ucast(id("nobody"), "x")));
+        }
+        for (int i = 0; i < 200; ++i) {
+            assertEquals(i % 2 == 0 ? 200 : 404, l.get(i).get(5, TimeUnit.SECONDS).code);
+        }
+        for (int i = 0; i < 100; ++i) assertEquals("m" + 2 * i, str(b.next().payload));
+    }
+
+    @Test
+    public void shouldAnswerPipelinedMcastInOrderWithFanOut() throws Exception {
+        _server.stop();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            _server = Loopback.server();
+            _server.setShards(_shards);
+            _server.setFanOut(new FanOut(pool, 4, 2));
+            _server.start();
+            SSMPIdentifier t = id("topic");
+            List<Client> subs = new ArrayList<>();
+            for (int i = 0; i < 10; ++i) {
+                Client c = client("c" + i);
+                assertEquals(200, c.req(SSMPRequest.subscribe(t, SubscriptionFlag.NONE)));
+                subs.add(c);
+            }
+            Client p = client("pub");
+            List<Future<SSMPResponse>> l = new ArrayList<>();
+            for (int i = 0; i < 100; ++i) {
+                l.add(p.c.request(i % 2 == 0
+                        ? SSMPRequest.mcast(t, "m" + i)
+                        : SSMPRequest.ucast(id("nobody"), "x")));
+            }
+            for (int i = 0; i < 100; ++i) {
+                assertEquals(i % 2 == 0 ? 200 : 404, l.get(i).get(5, TimeUnit.SECONDS).code);
+            }
+            for (Client c : subs) {
+                for (int i = 0; i < 50; ++i) assertEquals("m" + 2 * i, str(c.next().payload));
+            }
+        } finally {
+            _clients.forEach(Client::close);
+            _clients.clear();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldReportDepartureOnDisconnect() throws Exception {
+        SSMPIdentifier t = id("topic");
+        Client a = client("alice");
+        Client b = new Client(_server.getListeningPort(), "bob");
+        assertEquals(200, a.req(SSMPRequest.subscribe(t, SubscriptionFlag.PRESENCE)));
+        assertEquals(200, b.req(SSMPRequest.subscribe(t, SubscriptionFlag.NONE)));
+        assertEquals(SSMPEvent.Type.SUBSCRIBE, a.next().type);
+        b.close();
+        SSMPEvent e = a.next();
+        assertEquals(SSMPEvent.Type.UNSUBSCRIBE, e.type);
+        assertEquals(id("bob"), e.from);
+    }
+
+    @Test
+    public void shouldReportMassDepartureOnce() throws Exception {
+        SSMPIdentifier t = id("topic");
+        Client a = client("alice");
+        Client b = client("bob");
+        assertEquals(200, a.req(SSMPRequest.subscribe(t, SubscriptionFlag.PRESENCE)));
+        assertEquals(200, b.req(SSMPRequest.subscribe(t, SubscriptionFlag.BATCHED_PRESENCE)));
+        assertEquals(SSMPEvent.Type.SUBSCRIBE, a.next().type);
+        assertEquals(SSMPEvent.Type.PRESENCE, b.next().type);
+        int n = 50;
+        List<Client> l = new ArrayList<>();
+        for (int i = 0; i < n; ++i) {
+            Client c = new Client(_server.getListeningPort(), "c" + i);
+            assertEquals(200, c.req(SSMPRequest.subscribe(t, SubscriptionFlag.NONE)));
+            assertEquals(SSMPEvent.Type.SUBSCRIBE, a.next().type);
+            l.add(c);
+        }
+        l.forEach(Client::close);
+
+        // legacy presence subscribers never see the PRESENCE verb, only one UNSUBSCRIBE each
+        Set<String> left = new HashSet<>();
+        while (left.size() < n) {
+            SSMPEvent e = a.next();
+            assertEquals(SSMPEvent.Type.UNSUBSCRIBE, e.type);
+            assertEquals(t, e.to);
+            assertTrue(left.add(e.from.toString()));
+        }
+        a.none();
+
+        // batched subscribers get them as '-' entries, alongside the earlier '+' entries
+        Set<String> batched = new HashSet<>();
+        while (batched.size() < n) {
+            SSMPEvent e = b.next();
+            assertEquals(SSMPEvent.Type.PRESENCE, e.type);
+            for (String entry : str(e.payload).split(" ")) {
+                if (entry.charAt(0) == '-') assertTrue(batched.add(entry.substring(1)));
+            }
+        }
+        assertEquals(left, batched);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShardExecutorTest {
+    private ShardExecutor _executor;
+
+    @Before
+    public void setUp() {
+        _executor = new ShardExecutor("test-shard");
+        _executor.start();
+    }
+
+    @After
+    public void tearDown() {
+        _executor.stop();
+    }
+
+    @Test
+    public void shouldRunTasksOfEachProducerInOrder() throws Exception {
+        int producers = 4, tasks = 20000;
+        // only touched by the executor thread
+        int[] last = new int[producers];
+        AtomicInteger outOfOrder = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(producers);
+        List<Thread> l = new ArrayList<>();
+        for (int p = 0; p < producers; ++p) {
+            int id = p;
+            l.add(new Thread(() -> {
+                for (int i = 1; i <= tasks; ++i) {
+                    int n = i;
+                    _executor.execute(() -> {
+                        if (last[id] != n - 1) outOfOrder.incrementAndGet();
+                        last[id] = n;
+                        if (n == tasks) done.countDown();
+                    });
+                    // let the consumer park now and then
+                    if (i % 5000 == 0) Thread.yield();
+                }
+            }));
+        }
+        l.forEach(Thread::start);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, outOfOrder.get());
+    }
+
+    @Test
+    public void shouldWakeUpWhenIdle() throws Exception {
+        for (int i = 0; i < 100; ++i) {
+            CountDownLatch l = new CountDownLatch(1);
+            _executor.execute(l::countDown);
+            assertTrue(l.await(5, TimeUnit.SECONDS));
+            if (i % 10 == 0) Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void shouldSurviveFailingTasks() throws Exception {
+        CountDownLatch l = new CountDownLatch(1);
+        _executor.execute(() -> { throw new IllegalStateException(); });
+        _executor.execute(l::countDown);
+        assertTrue(l.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void shouldRunSubmittedTasksBeforeStopping() {
+        ShardExecutor e = new ShardExecutor("stopping");
+        AtomicInteger n = new AtomicInteger();
+        for (int i = 0; i < 1000; ++i) e.execute(n::incrementAndGet);
+        e.start();
+        e.stop();
+        assertEquals(1000, n.get());
+    }
+}
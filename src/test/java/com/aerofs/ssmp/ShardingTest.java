@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import com.aerofs.ssmp.Loopback.Client;
+import com.aerofs.ssmp.SSMPRequest.SubscriptionFlag;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.aerofs.ssmp.Loopback.id;
+import static com.aerofs.ssmp.Loopback.str;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Behaviour specific to sharded mode, see {@link SSMPServer#setShards}
+ *
+ * The common protocol behaviour is covered by the sharded runs of {@link SSMPServerTest}.
+ */
+public class ShardingTest {
+    private static final int TOPICS = 16;
+
+    private SSMPServer _server;
+    private final List<Client> _clients = new ArrayList<>();
+    private final ExecutorService _pool = Executors.newCachedThreadPool();
+
+    @Before
+    public void setUp() {
+        _server = Loopback.server();
+        _server.setShards(4);
+        _server.start();
+    }
+
+    @After
+    public void tearDown() {
+        _pool.shutdownNow();
+        _clients.forEach(Client::close);
+        _server.stop();
+    }
+
+    private Client client(String id) throws Exception {
+        Client c = new Client(_server.getListeningPort(), id);
+        _clients.add(c);
+        return c;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectNegativeShardCount() {
+        Loopback.server().setShards(-1);
+    }
+
+    @Test
+    public void shouldKeepRequestOrderAcrossShards() throws Exception {
+        Client a = client("alice"), b = client("bob");
+        // topics and recipients spread over every shard
+        List<Future<SSMPResponse>> l = new ArrayList<>();
+        for (int i = 0; i < TOPICS; ++i) {
+            l.add(b.c.request(SSMPRequest.subscribe(id("t" + i), SubscriptionFlag.NONE)));
+        }
+        for (Future<SSMPResponse> f : l) assertEquals(200, f.get(5, TimeUnit.SECONDS).code);
+        l.clear();
+        for (int i = 0; i < 500; ++i) {
+            l.add(a.c.request(i % 2 == 0 ? SSMPRequest.mcast(id("t" + i % TOPICS), "m" + i)
+                    : SSMPRequest.ucast(id("bob"), "u" + i)));
+        }
+        for (Future<SSMPResponse> f : l) assertEquals(200, f.get(5, TimeUnit.SECONDS).code);
+        for (int i = 0; i < 500; ++i) {
+            assertEquals((i % 2 == 0 ? "m" : "u") + i, str(b.next().payload));
+        }
+        b.none();
+    }
+
+    @Test
+    public void shouldStayConsistentUnderConcurrentChurn() throws Exception {
+        List<Client> l = new ArrayList<>();
+        for (int i = 0; i < 8; ++i) l.add(client("c" + i));
+        List<Future<?>> churn = new ArrayList<>();
+        for (Client c : l) {
+            churn.add(_pool.submit(() -> {
+                for (int round = 0; round < 10; ++round) {
+                    List<Future<SSMPResponse>> r = new ArrayList<>();
+                    for (int t = 0; t < TOPICS; ++t) {
+                        r.add(c.c.request(SSMPRequest.subscribe(id("t" + t),
+                                SubscriptionFlag.PRESENCE)));
+                        r.add(c.c.request(SSMPRequest.unsubscribe(id("t" + t))));
+                    }
+                    for (Future<SSMPResponse> f : r) {
+                        assertEquals(200, f.get(5, TimeUnit.SECONDS).code);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : churn) f.get(30, TimeUnit.SECONDS);
+        assertEquals(0, _server.getTopicCount());
+        assertEquals(0, _server.getSubscriptionCount());
+
+        // topics come back to life cleanly
+        for (Client c : l) {
+            assertEquals(200, c.req(SSMPRequest.subscribe(id("t0"), SubscriptionFlag.NONE)));
+        }
+        assertEquals(1, _server.getTopicCount());
+        assertEquals(l.size(), _server.getSubscriptionCount());
+        Client p = client("publisher");
+        assertEquals(200, p.req(SSMPRequest.mcast(id("t0"), "hello")));
+        for (Client c : l) {
+            // presence events from the churn may still be in flight
+            SSMPEvent e;
+            do {
+                e = c.next();
+            } while (e.type != SSMPEvent.Type.MCAST);
+            assertEquals("hello", str(e.payload));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import com.aerofs.ssmp.Loopback.Client;
+import com.aerofs.ssmp.SSMPRequest.SubscriptionFlag;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static com.aerofs.ssmp.Loopback.id;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A subscriber that stops reading must not hold up publishers or other subscribers
+ *
+ * The slow subscriber is a raw socket, so that nothing drains the server's writes to it.
+ */
+public class SlowConsumerTest {
+    private static final int EVENTS = 5000;
+
+    private SSMPServer _server;
+    private SSLSocket _slow;
+    private BufferedReader _in;
+    private Client _alice;
+
+    @Before
+    public void setUp() {
+        _server = Loopback.server();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (_alice != null) _alice.close();
+        if (_slow != null) _slow.close();
+        _server.stop();
+    }
+
+    private void publish(SlowConsumerPolicy policy) throws Exception {
+        _server.setSlowConsumerPolicy(policy, 64 * 1024, 32 * 1024);
+        _server.start();
+        int port = _server.getListeningPort();
+
+        _slow = (SSLSocket)Loopback.clientContext().getSocketFactory()
+                .createSocket("localhost", port);
+        _slow.setSoTimeout(5000);
+        OutputStream os = _slow.getOutputStream();
+        os.write("LOGIN slow secret pw\nSUBSCRIBE t\n".getBytes(StandardCharsets.US_ASCII));
+        os.flush();
+        _in = new BufferedReader(new InputStreamReader(_slow.getInputStream(),
+                StandardCharsets.US_ASCII));
+        assertEquals("200", _in.readLine());
+        assertEquals("200", _in.readLine());
+
+        _alice = new Client(port, "alice");
+        assertEquals(200, _alice.req(SSMPRequest.subscribe(id("t"), SubscriptionFlag.NONE)));
+        char[] payload = new char[900];
+        Arrays.fill(payload, 'x');
+        for (int i = 0; i < EVENTS; ++i) {
+            _alice.c.request(SSMPRequest.mcast(id("t"), new String(payload)));
+        }
+        assertEquals(200, _alice.req(SSMPRequest.mcast(id("t"), "end")));
+
+        // the publisher still gets every one of its own events
+        for (int i = 0; i <= EVENTS; ++i) _alice.next();
+    }
+
+    /**
+     * @return whether the slow subscriber reads the last event before the end of the stream
+     */
+    private boolean drain() throws IOException {
+        String l;
+        while ((l = _in.readLine()) != null) {
+            if (l.endsWith(" end")) return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void shouldDropNewestEvents() throws Exception {
+        publish(SlowConsumerPolicy.DROP_NEWEST);
+        assertTrue(_server.getDroppedEvents() > 0);
+        assertEquals(0, _server.getEvictedConsumers());
+    }
+
+    @Test
+    public void shouldDropOldestEvents() throws Exception {
+        publish(SlowConsumerPolicy.DROP_OLDEST);
+        assertTrue(_server.getDroppedEvents() > 0);
+        assertEquals(0, _server.getEvictedConsumers());
+        // the latest events survive
+        assertTrue(drain());
+    }
+
+    @Test
+    public void shouldDisconnectSlowConsumer() throws Exception {
+        publish(SlowConsumerPolicy.DISCONNECT);
+        assertEquals(1, _server.getEvictedConsumers());
+        assertFalse(drain());
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SmallMapTest {
+    private static <K, V> void assertSameEntries(Map<K, V> expected, SmallMap<K, V> m) {
+        assertEquals(expected.keySet(), new HashSet<>(m.keys()));
+        assertEquals(expected.size(), m.keys().size());
+        assertEquals(new HashSet<>(expected.values()), new HashSet<>(m.values()));
+        for (Map.Entry<K, V> e : expected.entrySet()) assertEquals(e.getValue(), m.get(e.getKey()));
+    }
+
+    @Test
+    public void shouldStartEmpty() {
+        SmallMap<String, Integer> m = new SmallMap<>();
+        assertNull(m.get("a"));
+        assertNull(m.remove("a"));
+        assertTrue(m.keys().isEmpty());
+        assertTrue(m.values().isEmpty());
+    }
+
+    @Test
+    public void shouldReplaceAndRemoveInline() {
+        SmallMap<String, Integer> m = new SmallMap<>();
+        for (int i = 0; i < SmallMap.INLINE; ++i) assertNull(m.put("k" + i, i));
+        assertEquals(Integer.valueOf(2), m.put("k2", 20));
+        assertEquals(Integer.valueOf(20), m.get("k2"));
+
+        // removing from the middle keeps every other entry reachable
+        assertEquals(Integer.valueOf(1), m.remove("k1"));
+        assertNull(m.remove("k1"));
+        Map<String, Integer> expected = new HashMap<>();
+        expected.put("k0", 0);
+        expected.put("k2", 20);
+        expected.put("k3", 3);
+        assertSameEntries(expected, m);
+
+        for (String k : Arrays.asList("k0", "k2", "k3")) m.remove(k);
+        assertSameEntries(new HashMap<>(), m);
+        assertNull(m.put("k0", 0));
+        assertEquals(Integer.valueOf(0), m.get("k0"));
+    }
+
+    @Test
+    public void shouldGrowPastInlineCapacity() {
+        SmallMap<String, Integer> m = new SmallMap<>();
+        Map<String, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 3 * SmallMap.INLINE; ++i) {
+            assertNull(m.put("k" + i, i));
+            expected.put("k" + i, i);
+            assertSameEntries(expected, m);
+        }
+        for (int i = 0; i < 3 * SmallMap.INLINE; i += 2) {
+            assertEquals(Integer.valueOf(i), m.remove("k" + i));
+            expected.remove("k" + i);
+        }
+        assertSameEntries(expected, m);
+    }
+
+    @Test
+    public void shouldReturnCopies() {
+        SmallMap<String, Integer> m = new SmallMap<>();
+        m.put("a", 1);
+        List<String> keys = m.keys();
+        List<Integer> values = m.values();
+        m.put("b", 2);
+        m.remove("a");
+        assertEquals(Arrays.asList("a"), keys);
+        assertEquals(Arrays.asList(1), values);
+    }
+
+    @Test
+    public void shouldVisitEveryValueInPlace() {
+        SmallMap<String, Integer> m = new SmallMap<>();
+        Map<String, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 2 * SmallMap.INLINE; ++i) {
+            m.put("k" + i, i);
+            expected.put("k" + i, i);
+            List<Integer> visited = new ArrayList<>();
+            m.forEachValue((v, l) -> l.add(v), visited);
+            assertEquals(expected.size(), visited.size());
+            assertEquals(new HashSet<>(expected.values()), new HashSet<>(visited));
+        }
+    }
+
+    @Test
+    public void shouldBehaveLikeHashMap() {
+        Random r = new Random(42);
+        for (int round = 0; round < 100; ++round) {
+            SmallMap<Integer, Integer> m = new SmallMap<>();
+            Map<Integer, Integer> expected = new HashMap<>();
+            // few keys, so that maps hover around the inline capacity
+            int keys = 1 + r.nextInt(2 * SmallMap.INLINE);
+            for (int op = 0; op < 200; ++op) {
+                Integer k = r.nextInt(keys);
+                if (r.nextInt(3) == 0) {
+                    assertEquals(expected.remove(k), m.remove(k));
+                } else {
+                    Integer v = r.nextInt();
+                    assertEquals(expected.put(k, v), m.put(k, v));
+                }
+                assertEquals(expected.get(k), m.get(k));
+            }
+            assertSameEntries(expected, m);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class SwarTest {
+    private final Random _r = new Random(42);
+
+    // heap and direct buffers of either byte order, with data not starting at index 0
+    private ChannelBuffer[] buffers(byte[] b) {
+        ChannelBuffer[] l = {
+                ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, b.length + 3),
+                ChannelBuffers.buffer(ByteOrder.LITTLE_ENDIAN, b.length + 3),
+                ChannelBuffers.directBuffer(ByteOrder.BIG_ENDIAN, b.length + 3),
+                ChannelBuffers.directBuffer(ByteOrder.LITTLE_ENDIAN, b.length + 3),
+        };
+        for (ChannelBuffer c : l) {
+            c.writeBytes(new byte[3]);
+            c.writeBytes(b);
+        }
+        return l;
+    }
+
+    private byte[] identifier(int n) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; ++i) b[i] = (byte)("abcXYZ019.@:/-_+=~".charAt(_r.nextInt(18)));
+        return b;
+    }
+
+    @Test
+    public void shouldFindFirstByteNotInSet() {
+        for (int n = 0; n < 80; ++n) {
+            byte[] b = identifier(n);
+            for (int bad = 0; bad <= n; ++bad) {
+                if (bad < n) b[bad] = (byte)(_r.nextBoolean() ? ' ' : 0x80 | _r.nextInt(128));
+                for (ChannelBuffer c : buffers(b)) {
+                    for (int from = 3; from <= 3 + n; ++from) {
+                        int expected = bad < n && bad + 3 >= from ? bad + 3 : 3 + n;
+                        assertEquals(expected, Swar.span(c, from, 3 + n, SSMPIdentifier.ALLOWED));
+                    }
+                }
+                if (bad < n) b[bad] = 'a';
+            }
+        }
+    }
+
+    @Test
+    public void shouldFindFirstOccurrence() {
+        for (int n = 0; n < 80; ++n) {
+            byte[] b = new byte[n];
+            for (int i = 0; i < n; ++i) b[i] = (byte)(_r.nextInt(256));
+            for (int i = 0; i < n; ++i) if (b[i] == '\n') b[i] = 0;
+            for (int at = 0; at <= n; ++at) {
+                if (at < n) b[at] = '\n';
+                for (ChannelBuffer c : buffers(b)) {
+                    for (int from = 3; from <= 3 + n; ++from) {
+                        int expected = at < n && at + 3 >= from ? at + 3 : -1;
+                        assertEquals(expected, Swar.indexOf(c, from, 3 + n, (byte)'\n'));
+                    }
+                }
+                if (at < n) b[at] = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import com.aerofs.ssmp.Loopback.Client;
+import com.aerofs.ssmp.SSMPRequest.SubscriptionFlag;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.aerofs.ssmp.Loopback.id;
+import static com.aerofs.ssmp.Loopback.str;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Reclamation of empty topics, as seen through the topic and subscription counts
+ */
+@RunWith(Parameterized.class)
+public class TopicCountTest {
+    @Parameters(name = "shards={0}")
+    public static Collection<Object[]> shards() {
+        return Arrays.asList(new Object[][] { { 0 }, { 4 } });
+    }
+
+    private final int _shards;
+    private SSMPServer _server;
+    private final List<Client> _clients = new ArrayList<>();
+
+    public TopicCountTest(int shards) {
+        _shards = shards;
+    }
+
+    @Before
+    public void setUp() {
+        _server = Loopback.server();
+        _server.setShards(_shards);
+        _server.start();
+    }
+
+    @After
+    public void tearDown() {
+        _clients.forEach(Client::close);
+        _server.stop();
+    }
+
+    private Client client(String id) throws Exception {
+        Client c = new Client(_server.getListeningPort(), id);
+        _clients.add(c);
+        return c;
+    }
+
+    private static SSMPRequest subscribe(String topic) {
+        return SSMPRequest.subscribe(id(topic), SubscriptionFlag.NONE);
+    }
+
+    // departures are applied asynchronously
+    private void awaitCounts(long topics, long subscriptions) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < deadline && (_server.getTopicCount() != topics
+                || _server.getSubscriptionCount() != subscriptions)) {
+            Thread.sleep(10);
+        }
+        assertEquals(topics, _server.getTopicCount());
+        assertEquals(subscriptions, _server.getSubscriptionCount());
+    }
+
+    @Test
+    public void shouldCountSubscriptions() throws Exception {
+        Client a = client("alice"), b = client("bob");
+        assertEquals(0, _server.getTopicCount());
+        assertEquals(200, a.req(subscribe("t1")));
+        assertEquals(200, a.req(subscribe("t2")));
+        assertEquals(200, b.req(subscribe("t1")));
+        assertEquals(409, b.req(subscribe("t1")));
+        assertEquals(2, _server.getTopicCount());
+        assertEquals(3, _server.getSubscriptionCount());
+
+        assertEquals(200, a.req(SSMPRequest.unsubscribe(id("t1"))));
+        assertEquals(404, a.req(SSMPRequest.unsubscribe(id("t1"))));
+        assertEquals(2, _server.getTopicCount());
+        assertEquals(2, _server.getSubscriptionCount());
+        assertEquals(200, b.req(SSMPRequest.unsubscribe(id("t1"))));
+        assertEquals(1, _server.getTopicCount());
+        assertEquals(1, _server.getSubscriptionCount());
+
+        // a reclaimed topic comes back to life
+        assertEquals(200, b.req(subscribe("t1")));
+        assertEquals(200, a.req(SSMPRequest.mcast(id("t1"), "hello")));
+        assertEquals("hello", str(b.next().payload));
+        assertEquals(2, _server.getTopicCount());
+    }
+
+    @Test
+    public void shouldReclaimTopicsOfDisconnectedClients() throws Exception {
+        Client a = client("alice"), b = client("bob");
+        for (int i = 0; i < 20; ++i) assertEquals(200, a.req(subscribe("t" + i)));
+        assertEquals(200, b.req(subscribe("t0")));
+        awaitCounts(20, 21);
+        a.close();
+        awaitCounts(1, 1);
+        b.close();
+        awaitCounts(0, 0);
+    }
+
+    @Test
+    public void shouldReclaimTopicsOfReplacedConnections() throws Exception {
+        Client a = client("alice");
+        assertEquals(200, a.req(subscribe("t")));
+        // logging in again with the same identity supersedes the previous connection
+        Client a2 = client("alice");
+        assertEquals(200, a2.req(subscribe("u")));
+        a.close();
+        awaitCounts(1, 1);
+        assertEquals(200, client("bob").req(SSMPRequest.ucast(id("alice"), "hi")));
+        assertEquals("hi", str(a2.next().payload));
+    }
+
+    @Test
+    public void shouldSubscribeWhileLastSubscriberLeaves() throws Exception {
+        Client a = client("alice"), b = client("bob"), p = client("publisher");
+        for (int round = 0; round < 100; ++round) {
+            String t = "t" + round;
+            assertEquals(200, a.req(subscribe(t)));
+            // races with the reclamation of the topic
+            Future<SSMPResponse> leave = a.c.request(SSMPRequest.unsubscribe(id(t)));
+            Future<SSMPResponse> join = b.c.request(subscribe(t));
+            assertEquals(200, leave.get(5, TimeUnit.SECONDS).code);
+            assertEquals(200, join.get(5, TimeUnit.SECONDS).code);
+            assertEquals(200, p.req(SSMPRequest.mcast(id(t), t)));
+            assertEquals(t, str(b.next().payload));
+            assertEquals(200, b.req(SSMPRequest.unsubscribe(id(t))));
+        }
+        awaitCounts(0, 0);
+        a.none();
+    }
+}
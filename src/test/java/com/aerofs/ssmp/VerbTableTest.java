@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class VerbTableTest {
+    // the verb is looked up in the middle of a frame
+    private static ChannelBuffer frame(String verb) {
+        return ChannelBuffers.wrappedBuffer(("000 " + verb + " foo\n")
+                .getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void shouldFindEveryRequestVerb() {
+        for (SSMPRequest.Type t : SSMPRequest.Type.values()) {
+            assertEquals(t, SSMPRequest.Type.byName(frame(t.name()), 4, t.name().length()));
+        }
+    }
+
+    @Test
+    public void shouldFindEveryEventVerb() {
+        for (SSMPEvent.Type t : SSMPEvent.Type.values()) {
+            assertEquals(t, SSMPEvent.Type.byName(frame(t.name()), 4, t.name().length()));
+        }
+    }
+
+    @Test
+    public void shouldRejectUnknownVerbs() {
+        for (String v : new String[] { "", "U", "UCAS", "UCASTX", "ucast", "NACK", "PRESENCE",
+                "@CAST", "[CAST", "SUBSCRIBEXYZ" }) {
+            assertNull(v, SSMPRequest.Type.byName(frame(v), 4, v.length()));
+        }
+        assertNull(SSMPEvent.Type.byName(frame("LOGIN"), 4, 5));
+        assertNull(SSMPEvent.Type.byName(frame("CLOSE"), 4, 5));
+    }
+}
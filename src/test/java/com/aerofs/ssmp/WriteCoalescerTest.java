@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import com.aerofs.ssmp.Loopback.Client;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static com.aerofs.ssmp.Loopback.id;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WriteCoalescerTest {
+    private static ChannelBuffer frame(String s) {
+        return ChannelBuffers.wrappedBuffer(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String str(Object o) {
+        return ((ChannelBuffer)o).toString(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void shouldWriteThroughWithoutWorker() {
+        WriteCoalescer.Stats stats = new WriteCoalescer.Stats();
+        EncoderEmbedder<ChannelBuffer> e = new EncoderEmbedder<>(
+                new WriteCoalescer(1024, 0, Loopback.TIMER, stats));
+        for (int i = 0; i < 3; ++i) {
+            e.offer(frame("f" + i + "\n"));
+            assertEquals("f" + i + "\n", str(e.poll()));
+        }
+        assertEquals(3, stats.writes());
+    }
+
+    @Test
+    public void shouldFlushFullBatch() {
+        EncoderEmbedder<ChannelBuffer> e = new EncoderEmbedder<>(
+                new WriteCoalescer(8, 60000, Loopback.TIMER, new WriteCoalescer.Stats()));
+        e.offer(frame("abc\n"));
+        assertNull(e.poll());
+        e.offer(frame("defg\n"));
+        assertEquals("abc\ndefg\n", str(e.poll()));
+    }
+
+    @Test
+    public void shouldFlushAfterDelay() throws Exception {
+        EncoderEmbedder<ChannelBuffer> e = new EncoderEmbedder<>(
+                new WriteCoalescer(1024, 50, Loopback.TIMER, new WriteCoalescer.Stats()));
+        e.offer(frame("a\n"));
+        e.offer(frame("b\n"));
+        assertNull(e.poll());
+        Object o = null;
+        for (int i = 0; i < 100 && o == null; ++i) {
+            Thread.sleep(10);
+            o = e.poll();
+        }
+        assertEquals("a\nb\n", str(o));
+    }
+
+    @Test
+    public void shouldFlushOnClose() {
+        EncoderEmbedder<ChannelBuffer> e = new EncoderEmbedder<>(
+                new WriteCoalescer(1024, 60000, Loopback.TIMER, new WriteCoalescer.Stats()));
+        e.offer(frame("a\n"));
+        assertTrue(e.finish());
+        assertEquals("a\n", str(e.poll()));
+    }
+
+    @Test
+    public void shouldCoalesceFanOutOnSocket() throws Exception {
+        SSMPServer s = Loopback.server();
+        s.start();
+        try (Client a = new Client(s.getListeningPort(), "alice");
+             Client b = new Client(s.getListeningPort(), "bob")) {
+            for (int i = 0; i < 100; ++i) a.c.request(SSMPRequest.ucast(id("bob"), "m" + i));
+            for (int i = 0; i < 100; ++i) assertEquals("m" + i, Loopback.str(b.next().payload));
+            WriteCoalescer.Stats stats = s.getWriteStats();
+            assertTrue(stats.writes() < stats.frames());
+        } finally {
+            s.stop();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2015, Air Computing Inc. <oss@aerofs.com>
+ * All rights reserved.
+ */
+
+package com.aerofs.ssmp;
+
+import com.aerofs.ssmp.Loopback.Client;
+import com.aerofs.ssmp.SSMPRequest.SubscriptionFlag;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.aerofs.ssmp.Loopback.id;
+import static com.aerofs.ssmp.Loopback.str;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Payloads relayed as slices of the inbound buffer, see {@link SSMPServer#setZeroCopyPayloads}
+ */
+public class ZeroCopyTest {
+    private SSMPServer _server;
+    private final List<Client> _clients = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        _server = Loopback.server();
+        _server.setZeroCopyPayloads(true);
+        _server.start();
+    }
+
+    @After
+    public void tearDown() {
+        _clients.forEach(Client::close);
+        _server.stop();
+    }
+
+    private Client client(String id) throws Exception {
+        Client c = new Client(_server.getListeningPort(), id);
+        _clients.add(c);
+        return c;
+    }
+
+    private static byte[] payload(int i) {
+        byte[] b = new byte[i % 1000 + 1];
+        for (int j = 0; j < b.length; ++j) b[j] = (byte)(i + j);
+        return b;
+    }
+
+    private static String text(int i) {
+        char[] c = new char[i % 500 + 1];
+        Arrays.fill(c, (char)('a' + i % 26));
+        return new String(c);
+    }
+
+    @Test
+    public void shouldSliceRequestPayloads() {
+        DecoderEmbedder<Object> e = new DecoderEmbedder<>(
+                new SSMPRequestDecoder(Loopback.AUTH, true, new IdentifierTable(16)));
+        byte[] in = "LOGIN alice secret pw\nMCAST t hello\nUCAST bob \u0000\u0001\n\u0000\n"
+                .getBytes(StandardCharsets.ISO_8859_1);
+        e.offer(ChannelBuffers.wrappedBuffer(in));
+        assertEquals("200\n", ((ChannelBuffer)e.poll()).toString(StandardCharsets.US_ASCII));
+
+        SSMPRequest text = (SSMPRequest)e.poll();
+        SSMPRequest binary = (SSMPRequest)e.poll();
+        assertNull(text.payload);
+        assertEquals("hello", text._slice.toString(StandardCharsets.US_ASCII));
+        assertNull(binary.payload);
+        assertTrue(binary.binary);
+        assertEquals(ChannelBuffers.wrappedBuffer(new byte[] { '\n', 0 }), binary._slice);
+
+        // further input does not disturb slices already handed upstream
+        e.offer(ChannelBuffers.wrappedBuffer(
+                "MCAST t world\n".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals("world", ((SSMPRequest)e.poll())._slice.toString(StandardCharsets.US_ASCII));
+        assertEquals("hello", text._slice.toString(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void shouldRelayPipelinedPayloadsIntact() throws Exception {
+        Client a = client("alice"), b = client("bob");
+        assertEquals(200, a.req(SSMPRequest.subscribe(id("t"), SubscriptionFlag.NONE)));
+        assertEquals(200, b.req(SSMPRequest.subscribe(id("t"), SubscriptionFlag.NONE)));
+
+        // many requests per inbound read, so slices share and outlive their buffers
+        List<Future<SSMPResponse>> l = new ArrayList<>();
+        for (int i = 0; i < 600; ++i) {
+            switch (i % 3) {
+            case 0: l.add(a.c.request(SSMPRequest.mcast(id("t"), payload(i)))); break;
+            case 1: l.add(a.c.request(SSMPRequest.ucast(id("bob"), text(i)))); break;
+            default: l.add(a.c.request(SSMPRequest.bcast(text(i)))); break;
+            }
+        }
+        for (Future<SSMPResponse> f : l) assertEquals(200, f.get(5, TimeUnit.SECONDS).code);
+
+        for (int i = 0; i < 600; ++i) {
+            SSMPEvent e = b.next();
+            switch (i % 3) {
+            case 0:
+                assertEquals(SSMPEvent.Type.MCAST, e.type);
+                assertTrue(e.binary);
+                assertArrayEquals("event " + i, payload(i), e.payload);
+                break;
+            case 1:
+                assertEquals(SSMPEvent.Type.UCAST, e.type);
+                assertEquals("event " + i, text(i), str(e.payload));
+                break;
+            default:
+                assertEquals(SSMPEvent.Type.BCAST, e.type);
+                assertEquals("event " + i, text(i), str(e.payload));
+                break;
+            }
+            assertEquals(id("alice"), e.from);
+        }
+        b.none();
+    }
+}